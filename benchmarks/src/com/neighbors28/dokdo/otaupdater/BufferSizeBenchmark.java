@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sweeps the size of each write while copying a 64 MB download from a
+ * socket-like stream (at most 16 KB per read) into a file, which is forced to
+ * disk at the end. fixedSize writes whenever a buffer of that size is full;
+ * transferBuffer is TransferBuffer with its own sizing, for comparison.
+ */
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class BufferSizeBenchmark {
+    private static final int LENGTH = 64 * 1048576;
+    private static final int READ_SIZE = 16384;
+
+    private final byte[] data = new byte[LENGTH];
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    @State(Scope.Benchmark)
+    public static class WriteSize {
+        @Param({ "4096", "16384", "65536", "262144", "1048576" })
+        public int size;
+    }
+
+    /** Hands out at most READ_SIZE bytes per read, like a socket. */
+    private static class SocketStream extends ByteArrayInputStream {
+        SocketStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, READ_SIZE));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(data);
+        file = File.createTempFile("package", ".zip.part");
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    @Setup(Level.Invocation)
+    public void truncate() throws IOException {
+        channel.truncate(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public long fixedSize(WriteSize writeSize) throws IOException {
+        InputStream is = new SocketStream(data);
+        byte[] buf = new byte[writeSize.size];
+        long position = 0;
+        int fill = 0;
+        int nRead;
+        while ((nRead = is.read(buf, fill, buf.length - fill)) != -1) {
+            fill += nRead;
+            if (fill < buf.length) continue;
+            position += write(buf, fill, position);
+            fill = 0;
+        }
+        position += write(buf, fill, position);
+        channel.force(false);
+        return position;
+    }
+
+    @Benchmark
+    public long transferBuffer() throws IOException {
+        InputStream is = new SocketStream(data);
+        TransferBuffer tb = new TransferBuffer(4096, 0);
+        long written = 0;
+        try {
+            while (tb.readFrom(is, Long.MAX_VALUE, null) != -1) {
+                written += tb.drainTo(channel);
+            }
+            written += tb.flushTo(channel);
+        } finally {
+            tb.release();
+        }
+        channel.force(false);
+        return written;
+    }
+
+    private int write(byte[] buf, int len, long position) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            channel.write(bb, position + bb.position());
+        }
+        return len;
+    }
+}
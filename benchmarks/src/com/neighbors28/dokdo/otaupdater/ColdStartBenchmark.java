@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What OTAUpdaterActivity.onCreate spends on the download directory in a
+ * fresh process. Every fork measures exactly one call, cold, the way the
+ * first activity launch makes it. The properties are loaded beforehand,
+ * because onCreate loads them for isROMSupported() either way.
+ */
+@Fork(value = 30, jvmArgsAppend = "-Dandroid.log.level=7")
+@Warmup(iterations = 0)
+@Measurement(iterations = 1, batchSize = 1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ColdStartBenchmark {
+    /** Whether the download directory still has to be created. */
+    @Param({ "true", "false" })
+    public boolean firstLaunch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File sdcard = File.createTempFile("sdcard", "");
+        sdcard.delete();
+        sdcard.mkdirs();
+        if (!firstLaunch) new File(sdcard, Config.DL_DIR).mkdirs();
+
+        final Map<String, String> props = Collections.singletonMap(
+                Config.OTA_SD_PATH_OS_PROP, sdcard.getPath().substring(1));
+        Utils.setPropertyProvider(new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return props;
+            }
+        });
+        Utils.getOSSdPath();
+
+        // on a device these come out of the zygote or the dex file, not a
+        // cold jar, so load them up front and time only the work itself
+        ClassLoader loader = ColdStartBenchmark.class.getClassLoader();
+        for (String name : new String[] { "StorageLocation", "StorageLocation$1", "StorageLocation$2",
+                "StorageLocation$Callback", "ColdStartBenchmark$1" }) {
+            try {
+                Class.forName(ColdStartBenchmark.class.getPackage().getName() + "." + name, false, loader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * The static initializer Config had before StorageLocation: it ran on
+     * whichever thread touched Config first, in onCreate the main thread.
+     */
+    @Benchmark
+    public File legacyStaticInit() {
+        File dlDir = new File("/" + Utils.getOSSdPath() + "/" + Config.DL_DIR + "/");
+        if (dlDir.exists()) {
+            if (!dlDir.isDirectory()) {
+                dlDir.delete();
+                dlDir.mkdirs();
+            }
+        } else {
+            dlDir.mkdirs();
+        }
+        return dlDir;
+    }
+
+    /**
+     * What the main thread pays now: StorageLocation hands the work to its
+     * own thread and calls back later.
+     */
+    @Benchmark
+    public CountDownLatch storageLocation() {
+        final CountDownLatch done = new CountDownLatch(1);
+        StorageLocation.getDownloadDir(new StorageLocation.Callback() {
+            @Override
+            public void onResolved(File resolved) {
+                done.countDown();
+            }
+        });
+        return done;
+    }
+
+    /**
+     * The same, timed until the callback has run on the main looper: the
+     * latency of the directory, no longer spent on the main thread.
+     */
+    @Benchmark
+    public boolean storageLocationResolved() throws InterruptedException {
+        return storageLocation().await(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * DateCodec against the SimpleDateFormat-per-call parseDate/formatDate it
+ * replaced. Logging is silenced (7 is Log.ASSERT) and the legacy error path
+ * leaves out printStackTrace, so the invalid cases measure the parse rather
+ * than the console.
+ */
+@Fork(jvmArgsAppend = "-Dandroid.log.level=7")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DateCodecBenchmark {
+    private String date;
+    private String invalid;
+    private Date value;
+
+    @Setup
+    public void setUp() {
+        date = "20140301-1200";
+        invalid = "20140301-12:0";
+        value = new Date(DateCodec.parse(date));
+    }
+
+    @Benchmark
+    public long parse() {
+        return DateCodec.parse(date);
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return Utils.parseDate(date);
+    }
+
+    @Benchmark
+    public Date legacyParseDate() {
+        return legacyParseDate(date);
+    }
+
+    @Benchmark
+    public long parseInvalid() {
+        return DateCodec.parse(invalid);
+    }
+
+    @Benchmark
+    public Date legacyParseInvalid() {
+        return legacyParseDate(invalid);
+    }
+
+    @Benchmark
+    public String format() {
+        return DateCodec.format(value.getTime());
+    }
+
+    @Benchmark
+    public String legacyFormatDate() {
+        return new SimpleDateFormat("yyyyMMdd-kkmm").format(value);
+    }
+
+    private static Date legacyParseDate(String date) {
+        if (date == null) return null;
+        try {
+            return new SimpleDateFormat("yyyyMMdd-kkmm").parse(date);
+        } catch (ParseException e) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A single-stream download from a local HTTP stand-in, unthrottled, written
+ * to disk and hashed: the 4 KB BufferedInputStream/FileOutputStream loop
+ * DownloadTask used against TransferBuffer, PartWriter and FileHasher under
+ * each sync policy. megabytes is the throughput in MB/s; cpuMillis is the
+ * CPU time of the downloading thread per second, so cpuMillis / megabytes *
+ * 1024 is its CPU milliseconds per GB.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dandroid.log.level=7")
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 20)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DownloadWriterBenchmark {
+    private static final long LENGTH = 256 * 1048576;
+    private static final String ETAG = "\"dokdo-20140308\"";
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final byte[] block = new byte[1048576];
+    private HttpServer server;
+    private File dir;
+    private File dest;
+    private String url;
+
+    @State(Scope.Benchmark)
+    public static class Policy {
+        @Param({ "0", "1", "2" })
+        public int syncPolicy;
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Cost {
+        public double megabytes;
+        public double cpuMillis;
+
+        private long cpuStart;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+            cpuMillis = 0;
+        }
+
+        void start() {
+            cpuStart = threads.getCurrentThreadCpuTime();
+        }
+
+        void stop(long bytes) {
+            cpuMillis += (threads.getCurrentThreadCpuTime() - cpuStart) / 1e6;
+            megabytes += bytes / 1048576.0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(block);
+        dir = File.createTempFile("download", "");
+        dir.delete();
+        dir.mkdirs();
+        dest = new File(dir, "update.zip");
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.sendResponseHeaders(200, LENGTH);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    for (long sent = 0; sent < LENGTH; sent += block.length) {
+                        os.write(block, 0, (int) Math.min(block.length, LENGTH - sent));
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        new PartialDownload(dest).discard();
+        dest.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public String legacyLoop(Cost cost) throws Exception {
+        cost.start();
+        URLConnection conn = new URL(url).openConnection();
+        InputStream is = new BufferedInputStream(conn.getInputStream());
+        OutputStream os = new FileOutputStream(dest);
+        long total = 0;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] data = new byte[4096];
+            int nRead;
+            while ((nRead = is.read(data)) != -1) {
+                os.write(data, 0, nRead);
+                digest.update(data, 0, nRead);
+                total += nRead;
+            }
+            return Utils.byteArrToStr(digest.digest());
+        } finally {
+            os.close();
+            is.close();
+            cost.stop(total);
+        }
+    }
+
+    @Benchmark
+    public String partWriter(Policy policy, Cost cost) throws Exception {
+        cost.start();
+        URLConnection conn = new URL(url).openConnection();
+        PartialDownload part = new PartialDownload(dest);
+        part.load(url);
+        part.saveValidator(conn, LENGTH);
+        InputStream is = conn.getInputStream();
+        PartWriter writer = new PartWriter(part, 0, LENGTH, policy.syncPolicy);
+        TransferBuffer tb = new TransferBuffer(TransferBuffer.getBlockSize(dir.getPath()), 0);
+        FileHasher hasher = new FileHasher(FileHasher.MD5);
+        long total = 0;
+        try {
+            int nRead;
+            while ((nRead = tb.readFrom(is, Integer.MAX_VALUE, hasher)) != -1) {
+                writer.write(tb);
+                total += nRead;
+            }
+            return hasher.digest()[0];
+        } finally {
+            writer.close(tb);
+            tb.release();
+            is.close();
+            cost.stop(total);
+        }
+    }
+}
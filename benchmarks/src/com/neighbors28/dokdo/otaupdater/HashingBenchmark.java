@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing a package: the 4 KB FileInputStream loop DownloadTask used against
+ * FileHasher's 256 KB heap array, and against 256 KB channel reads into a
+ * direct buffer. The file stays in the page cache, so this measures the copy
+ * and digest cost rather than the storage.
+ */
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class HashingBenchmark {
+    @Param({ "104857600", "536870912", "2147483648" })
+    public long size;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("package", ".zip");
+        byte[] buf = new byte[1048576];
+        Random random = new Random(1);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, (int) Math.min(buf.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String legacyLoopMd5() throws Exception {
+        InputStream is = new FileInputStream(file);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] data = new byte[4096];
+            int nRead = -1;
+            while ((nRead = is.read(data)) != -1) {
+                digest.update(data, 0, nRead);
+            }
+            return Utils.byteArrToStr(digest.digest());
+        } finally {
+            is.close();
+        }
+    }
+
+    @Benchmark
+    public String directBufferMd5() throws Exception {
+        return directBuffer("MD5")[0];
+    }
+
+    @Benchmark
+    public String[] directBufferMd5Sha256() throws Exception {
+        return directBuffer("MD5", "SHA-256");
+    }
+
+    /**
+     * FileHasher's first design: 256 KB channel reads into a direct buffer.
+     */
+    private String[] directBuffer(String... algorithms) throws Exception {
+        MessageDigest[] digests = new MessageDigest[algorithms.length];
+        for (int q = 0; q < algorithms.length; q++) {
+            digests[q] = MessageDigest.getInstance(algorithms[q]);
+        }
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(262144);
+            while (channel.read(buf) != -1) {
+                buf.flip();
+                for (MessageDigest digest : digests) {
+                    buf.rewind();
+                    digest.update(buf);
+                }
+                buf.clear();
+            }
+        } finally {
+            is.close();
+        }
+        String[] result = new String[digests.length];
+        for (int q = 0; q < digests.length; q++) {
+            result[q] = Utils.byteArrToStr(digests[q].digest());
+        }
+        return result;
+    }
+
+    @Benchmark
+    public String fileHasherMd5() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5);
+        hasher.hashFile(file);
+        return hasher.digest()[0];
+    }
+
+    @Benchmark
+    public String[] fileHasherMd5Sha256() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5, FileHasher.SHA256);
+        hasher.hashFile(file);
+        return hasher.digest();
+    }
+}
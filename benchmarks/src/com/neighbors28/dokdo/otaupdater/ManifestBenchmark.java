@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ManifestReader against the FetchRomInfoTask path it replaced: read the
+ * whole body into a String, build a JSONObject, then pick the release out of
+ * it. org.json here is the Android implementation; JsonReader is Gson's, which
+ * the platform class was taken from. A single entry is the old one-release
+ * manifest, anything more a "releases" array.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class ManifestBenchmark {
+    @Param({ "1", "10", "100", "1000" })
+    public int entries;
+
+    private byte[] manifest;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder json = new StringBuilder();
+        if (entries == 1) {
+            appendRelease(json, 0);
+        } else {
+            json.append("{\"releases\":[");
+            for (int q = 0; q < entries; q++) {
+                if (q != 0) json.append(',');
+                appendRelease(json, q);
+            }
+            json.append("]}");
+        }
+        manifest = json.toString().getBytes("UTF-8");
+    }
+
+    private void appendRelease(StringBuilder json, int q) {
+        // nightlies, a day apart
+        String date = DateCodec.format(DateCodec.parse("20110101-0300") + q * 86400000L);
+        String version = "4.4.2-" + date.substring(0, 8);
+        json.append("{\"rom\":\"Dokdo\",\"version\":\"").append(version)
+                .append("\",\"changelog\":\"Merged upstream changes; fixed wifi reconnect after sleep; updated translations\"")
+                .append(",\"url\":\"http://mirror.example.com/dokdo/dokdo-").append(version).append(".zip\"")
+                .append(",\"md5\":\"d41d8cd98f00b204e9800998ecf8427e\"")
+                .append(",\"date\":\"").append(date).append("\"}");
+    }
+
+    @Benchmark
+    public RomInfo manifestReader() throws IOException {
+        return ManifestReader.readUpdate(new ByteArrayInputStream(manifest));
+    }
+
+    @Benchmark
+    public RomInfo legacyJsonObject() throws IOException, JSONException {
+        JSONObject json = new JSONObject(toString(new ByteArrayInputStream(manifest)));
+        if (!json.has("releases")) return toRomInfo(json);
+
+        RomInfo newest = null;
+        JSONArray releases = json.getJSONArray("releases");
+        for (int q = 0; q < releases.length(); q++) {
+            RomInfo info = toRomInfo(releases.getJSONObject(q));
+            if (newest == null || info.date.after(newest.date)) newest = info;
+        }
+        return newest;
+    }
+
+    private static RomInfo toRomInfo(JSONObject json) throws JSONException {
+        return new RomInfo(
+                json.getString("rom"),
+                json.getString("version"),
+                json.getString("changelog"),
+                json.getString("url"),
+                json.getString("md5"),
+                Utils.parseDate(json.getString("date")));
+    }
+
+    /**
+     * What EntityUtils.toString does with a body of unknown length.
+     */
+    private static String toString(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, "ISO-8859-1");
+        try {
+            StringBuilder buffer = new StringBuilder(4096);
+            char[] tmp = new char[1024];
+            int l;
+            while ((l = reader.read(tmp)) != -1) {
+                buffer.append(tmp, 0, l);
+            }
+            return buffer.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.os.SystemClock;
+
+/**
+ * Progress reporting for a simulated 1 GB download read 4 KB at a time at
+ * 4 MB/s, on a clock that advances with the bytes read. legacyPublishProgress
+ * is what DownloadTask did for every read: box the two ints into the varargs
+ * array AsyncTask hands to the main thread. reporter only posts when
+ * ProgressReporter says so, one object per message like DownloadService's
+ * Runnable. messages counts what reaches the main thread per GB.
+ */
+@Fork(1)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 5, batchSize = 1)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ProgressBenchmark {
+    private static final long LENGTH = 1073741824L;
+    private static final int READ_SIZE = 4096;
+    private static final long RATE = 4 * 1048576;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Posted {
+        public long messages;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            messages = 0;
+        }
+    }
+
+    /** What AsyncTask wraps each publishProgress call in. */
+    private static final class LegacyResult {
+        final Object task;
+        final Integer[] values;
+
+        LegacyResult(Object task, Integer... values) {
+            this.task = task;
+            this.values = values;
+        }
+    }
+
+    /** What DownloadService posts for each progress update. */
+    private static final class Update {
+        final long bytes;
+        final long total;
+        final long rate;
+        final long eta;
+
+        Update(long bytes, long total, long rate, long eta) {
+            this.bytes = bytes;
+            this.total = total;
+            this.rate = rate;
+            this.eta = eta;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SystemClock.setFrozenTime(-1);
+    }
+
+    private static void advanceClock(long bytes) {
+        SystemClock.setFrozenTime(bytes * 1000 / RATE);
+    }
+
+    @Benchmark
+    public void legacyPublishProgress(Posted posted, Blackhole bh) {
+        int lengthOfFile = (int) LENGTH;
+        int totalRead = 0;
+        while (totalRead < lengthOfFile) {
+            totalRead += READ_SIZE;
+            advanceClock(totalRead);
+            bh.consume(new LegacyResult(this, totalRead, lengthOfFile));
+            posted.messages++;
+        }
+    }
+
+    @Benchmark
+    public void reporter(Posted posted, Blackhole bh) {
+        advanceClock(0);
+        ProgressReporter progress = new ProgressReporter();
+        progress.reset(0);
+        long bytes = 0;
+        while (bytes < LENGTH) {
+            bytes += READ_SIZE;
+            advanceClock(bytes);
+            if (progress.update(bytes, LENGTH)) {
+                bh.consume(new Update(bytes, LENGTH, progress.getRate(), progress.getEta(bytes, LENGTH)));
+                posted.messages++;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Downloads a package through SegmentedDownload from a local HTTP stand-in
+ * that throttles every connection on its own, the way a long-RTT mirror caps
+ * each TCP stream while the link itself has room to spare. The megabytes
+ * counter is the throughput, reported in MB/s.
+ */
+@Fork(value = 1, jvmArgsAppend = "-Dandroid.log.level=7")
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class SegmentedDownloadBenchmark {
+    private static final String ETAG = "\"dokdo-20140308\"";
+    private static final int CHUNK = 32768;
+
+    /** Bytes per second each connection gets. */
+    private static final long CONNECTION_RATE = 4 * 1048576;
+
+    /** Time to first byte of every response. */
+    private static final long LATENCY = 50;
+
+    @Param({ "1", "2", "4", "8" })
+    public int segments;
+
+    // enough for 8 ranges of MIN_SEGMENT_SIZE
+    private final byte[] pkg = new byte[(int) (8 * SegmentedDownload.MIN_SEGMENT_SIZE)];
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private File dir;
+    private File dest;
+    private String url;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Transferred {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        new Random(1).nextBytes(pkg);
+        dir = File.createTempFile("segments", "");
+        dir.delete();
+        dir.mkdirs();
+        dest = new File(dir, "update.zip");
+
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(serverThreads);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        new PartialDownload(dest).discard();
+        dir.delete();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            Thread.sleep(LATENCY);
+        } catch (InterruptedException e) {
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(range);
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        int from = 0;
+        int to = pkg.length - 1;
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (m != null && m.matches()) {
+            from = Integer.parseInt(m.group(1));
+            to = Math.min(Integer.parseInt(m.group(2)), pkg.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + pkg.length);
+            exchange.sendResponseHeaders(206, to - from + 1);
+        } else {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(pkg.length));
+            exchange.sendResponseHeaders(200, head ? -1 : pkg.length);
+        }
+        if (head) {
+            exchange.close();
+            return;
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        long started = System.nanoTime();
+        long sent = 0;
+        try {
+            for (int pos = from; pos <= to; pos += CHUNK) {
+                int len = Math.min(CHUNK, to - pos + 1);
+                out.write(pkg, pos, len);
+                sent += len;
+                long ahead = started + sent * 1000000000L / CONNECTION_RATE - System.nanoTime();
+                if (ahead > 0) TimeUnit.NANOSECONDS.sleep(ahead);
+            }
+        } catch (InterruptedException e) {
+        } catch (IOException e) {
+            // client stopped reading
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Benchmark
+    public long download(Transferred transferred) throws IOException {
+        PartialDownload part = new PartialDownload(dest);
+        part.load(url);
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("HEAD");
+        try {
+            conn.connect();
+            part.saveValidator(conn, pkg.length);
+        } finally {
+            conn.disconnect();
+        }
+
+        SegmentedDownload segDl = new SegmentedDownload(part, new URL(url), segments, Config.SYNC_CHECKPOINT);
+        try {
+            segDl.start();
+            while (!segDl.await(100)) {
+            }
+        } finally {
+            segDl.finish();
+        }
+        if (!segDl.isComplete()) throw new IOException("download stopped short");
+
+        part.discard();
+        transferred.megabytes += pkg.length / 1048576.0;
+        return segDl.getBytesDone();
+    }
+}
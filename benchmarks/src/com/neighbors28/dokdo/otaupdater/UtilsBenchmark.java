@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Utils and Slugify helpers against the implementations they replaced, which
+ * are copied here as legacy* methods.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class UtilsBenchmark {
+    private static final char[] HEX_DIGITS = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private byte[] sha256;
+    private String romName;
+    private RomInfo newer;
+    private RomInfo same;
+
+    @Setup
+    public void setUp() {
+        sha256 = new byte[32];
+        new Random(1).nextBytes(sha256);
+        romName = "Dokdo Project KitKat Nightly_ota_package_4.4.2-20140301";
+
+        final HashMap<String, String> props = new HashMap<String, String>();
+        props.put(Config.OTA_ID_PROP, "dokdo_hammerhead");
+        props.put(Config.OTA_VER_PROP, "4.4.2-20140301");
+        props.put(Config.OTA_DATE_PROP, "20140301-1200");
+        Utils.setPropertyProvider(new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return props;
+            }
+        });
+
+        Date installed = Utils.getOtaDate();
+        same = new RomInfo("Dokdo", "4.4.2-20140301", null, null, null, installed);
+        newer = new RomInfo("Dokdo", "4.4.2-20140308", null, null, null, new Date(installed.getTime() + 7 * 86400000L));
+    }
+
+    @Benchmark
+    public String byteArrToStr() {
+        return Utils.byteArrToStr(sha256);
+    }
+
+    @Benchmark
+    public String legacyByteArrToStr() {
+        StringBuffer str = new StringBuffer();
+        for (int q = 0; q < sha256.length; q++) {
+            str.append(HEX_DIGITS[(0xF0 & sha256[q]) >>> 4]);
+            str.append(HEX_DIGITS[0xF & sha256[q]]);
+        }
+        return str.toString();
+    }
+
+    @Benchmark
+    public String slugify() {
+        return Slugify.slugify(romName);
+    }
+
+    @Benchmark
+    public String legacySlugify() {
+        String input = Normalizer.normalize(romName, Form.NFD);
+        input = input.replaceAll("[^\\p{ASCII}]", "");
+        return input.replace(" ", "-").toLowerCase();
+    }
+
+    @Benchmark
+    public boolean isUpdateSame() {
+        return Utils.isNewerThanBuild(same);
+    }
+
+    @Benchmark
+    public boolean isUpdateNewer() {
+        return Utils.isNewerThanBuild(newer);
+    }
+
+    @Benchmark
+    public boolean legacyIsUpdateSame() {
+        return legacyIsUpdate(same);
+    }
+
+    private static boolean legacyIsUpdate(RomInfo info) {
+        if (info == null) return false;
+        if (info.version != null) {
+            if (Utils.getOtaVersion() == null || !info.version.equalsIgnoreCase(Utils.getOtaVersion())) return true;
+        }
+        if (info.date != null) {
+            if (Utils.getOtaDate() == null || info.date.after(Utils.getOtaDate())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Plain JVM stand-in over Gson's JsonReader, which the platform class was
+ * taken from.
+ */
+public final class JsonReader implements Closeable {
+    private final com.google.gson.stream.JsonReader in;
+
+    public JsonReader(Reader reader) {
+        in = new com.google.gson.stream.JsonReader(reader);
+    }
+
+    public void beginArray() throws IOException {
+        in.beginArray();
+    }
+
+    public void endArray() throws IOException {
+        in.endArray();
+    }
+
+    public void beginObject() throws IOException {
+        in.beginObject();
+    }
+
+    public void endObject() throws IOException {
+        in.endObject();
+    }
+
+    public boolean hasNext() throws IOException {
+        return in.hasNext();
+    }
+
+    public JsonToken peek() throws IOException {
+        return JsonToken.valueOf(in.peek().name());
+    }
+
+    public String nextName() throws IOException {
+        return in.nextName();
+    }
+
+    public String nextString() throws IOException {
+        return in.nextString();
+    }
+
+    public void nextNull() throws IOException {
+        in.nextNull();
+    }
+
+    public void skipValue() throws IOException {
+        in.skipValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
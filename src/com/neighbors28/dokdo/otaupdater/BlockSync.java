@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * zsync-style reconstruction of a package from blocks that are already on
+ * disk. The server publishes a block checksum file next to the zip: the magic
+ * "OTABLKS1", the block size (int) and file length (long), then for every
+ * block its rolling checksum (int) and MD5 (16 bytes), all big endian. Old
+ * packages are scanned with the rolling checksum, every block found is copied
+ * into place, and only the ranges still missing are fetched with Range
+ * requests.
+ *
+ * Which blocks are in place and which old packages have been scanned can be
+ * kept in a state file next to the output, so a paused sync picks up where it
+ * stopped instead of scanning and fetching everything again.
+ */
+public class BlockSync {
+    public static final String MAGIC = "OTABLKS1";
+
+    private static final String STATE_MAGIC = "OTABLKST";
+    private static final int STRONG_LENGTH = 16;
+    private static final int BUFFER_SIZE = 1048576;
+    private static final int TIMEOUT = 30000;
+    private static final long CHECKPOINT_INTERVAL = 2000;
+
+    public static interface ProgressListener {
+        /**
+         * Returns false to stop.
+         */
+        boolean onProgress(long done, long total);
+    }
+
+    private final int blockSize;
+    private final long length;
+    private final int blockCount;
+    private final byte[] strong;
+    // (checksum << 32 | block), sorted so all blocks sharing a checksum are adjacent
+    private final long[] index;
+    private final boolean[] have;
+    private int missing;
+    // MD5 of the checksum file, so saved state is only used against the same one
+    private final byte[] sumsDigest;
+
+    private long reused = 0;
+    private long fetched = 0;
+    private final HashSet<String> scanned = new HashSet<String>();
+    private File stateFile = null;
+    private long lastCheckpoint = 0;
+
+    public BlockSync(InputStream in) throws IOException {
+        MessageDigest sumsMd5;
+        try {
+            sumsMd5 = MessageDigest.getInstance(FileHasher.MD5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+        DataInputStream din = new DataInputStream(new DigestInputStream(in, sumsMd5));
+        byte[] magic = new byte[MAGIC.length()];
+        din.readFully(magic);
+        if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+            throw new IOException("not a block checksum file");
+        }
+
+        blockSize = din.readInt();
+        length = din.readLong();
+        if (blockSize <= 0 || length < 0 || (length + blockSize - 1) / blockSize > Integer.MAX_VALUE / STRONG_LENGTH) {
+            throw new IOException("corrupt block checksum header");
+        }
+
+        blockCount = (int) ((length + blockSize - 1) / blockSize);
+        strong = new byte[blockCount * STRONG_LENGTH];
+        index = new long[blockCount];
+        for (int q = 0; q < blockCount; q++) {
+            int weak = din.readInt();
+            din.readFully(strong, q * STRONG_LENGTH, STRONG_LENGTH);
+            index[q] = ((long) weak << 32) | q;
+        }
+        Arrays.sort(index);
+        sumsDigest = sumsMd5.digest();
+
+        have = new boolean[blockCount];
+        missing = blockCount;
+    }
+
+    /**
+     * Keeps progress in stateFile from now on, first loading whatever an
+     * earlier run saved there if it was for the same checksum file. Returns
+     * whether it did; the caller has to make sure the output it wrote is
+     * still there.
+     */
+    public boolean resume(File stateFile) {
+        this.stateFile = stateFile;
+        if (!stateFile.exists()) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            byte[] magic = new byte[STATE_MAGIC.length()];
+            in.readFully(magic);
+            byte[] digest = new byte[sumsDigest.length];
+            in.readFully(digest);
+            if (!STATE_MAGIC.equals(new String(magic, "US-ASCII")) || !Arrays.equals(digest, sumsDigest)
+                    || in.readInt() != blockSize || in.readLong() != length) {
+                return false;
+            }
+
+            long savedReused = in.readLong();
+            long savedFetched = in.readLong();
+            HashSet<String> savedScanned = new HashSet<String>();
+            for (int q = in.readInt(); q > 0; q--) {
+                savedScanned.add(in.readUTF());
+            }
+            byte[] bits = new byte[(blockCount + 7) / 8];
+            in.readFully(bits);
+
+            int savedMissing = blockCount;
+            for (int q = 0; q < blockCount; q++) {
+                have[q] = (bits[q >> 3] & (1 << (q & 7))) != 0;
+                if (have[q]) savedMissing--;
+            }
+            missing = savedMissing;
+            reused = savedReused;
+            fetched = savedFetched;
+            scanned.clear();
+            scanned.addAll(savedScanned);
+            return true;
+        } catch (IOException e) {
+            Arrays.fill(have, false);
+            return false;
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    /**
+     * Makes everything written to out so far durable and records it in the
+     * state file, if there is one.
+     */
+    public void checkpoint(RandomAccessFile out) throws IOException {
+        lastCheckpoint = System.currentTimeMillis();
+        if (stateFile == null) return;
+        out.getChannel().force(false);
+
+        byte[] bits = new byte[(blockCount + 7) / 8];
+        for (int q = 0; q < blockCount; q++) {
+            if (have[q]) bits[q >> 3] |= 1 << (q & 7);
+        }
+
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            dos.write(STATE_MAGIC.getBytes("US-ASCII"));
+            dos.write(sumsDigest);
+            dos.writeInt(blockSize);
+            dos.writeLong(length);
+            dos.writeLong(reused);
+            dos.writeLong(fetched);
+            dos.writeInt(scanned.size());
+            for (String name : scanned) {
+                dos.writeUTF(name);
+            }
+            dos.write(bits);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            try { fos.close(); }
+            catch (Exception e) { }
+        }
+        if (!tmp.renameTo(stateFile)) {
+            tmp.delete();
+            throw new IOException("couldn't save block sync state to " + stateFile);
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean isComplete() {
+        return missing == 0;
+    }
+
+    public long getReusedBytes() {
+        return reused;
+    }
+
+    public long getFetchedBytes() {
+        return fetched;
+    }
+
+    public long getDoneBytes() {
+        return reused + fetched;
+    }
+
+    public boolean isScanned(File oldFile) {
+        return scanned.contains(oldFile.getName());
+    }
+
+    /**
+     * Looks for blocks of the new package anywhere in oldFile and copies every
+     * one found into out. Returns false if the listener asked to stop.
+     */
+    public boolean scan(File oldFile, RandomAccessFile out, ProgressListener listener) throws IOException {
+        // the short last block is always fetched, it isn't worth a special case
+        if (length < blockSize || missing == 0 || isScanned(oldFile)) return true;
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance(FileHasher.MD5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+
+        InputStream in = new FileInputStream(oldFile);
+        try {
+            byte[] buf = new byte[Math.max(BUFFER_SIZE, 2 * blockSize)];
+            int start = 0;
+            int end = 0;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+
+            while (missing > 0) {
+                if (end - start <= blockSize) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int nRead;
+                    while (end < buf.length && (nRead = in.read(buf, end, buf.length - end)) != -1) {
+                        end += nRead;
+                    }
+                    if (end - start < blockSize) break;
+                    if (!listener.onProgress(getDoneBytes(), length)) return false;
+                }
+
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int q = 0; q < blockSize; q++) {
+                        int x = buf[start + q] & 0xFF;
+                        a += x;
+                        b += (blockSize - q) * x;
+                    }
+                    rolling = true;
+                }
+
+                int weak = (a & 0xFFFF) | (b << 16);
+                if (copyMatches(weak, buf, start, md5, out)) {
+                    start += blockSize;
+                    rolling = false;
+                    continue;
+                }
+
+                if (start + blockSize >= end) break;
+                int outByte = buf[start] & 0xFF;
+                int inByte = buf[start + blockSize] & 0xFF;
+                a += inByte - outByte;
+                b += a - blockSize * outByte;
+                start++;
+            }
+        } finally {
+            try { in.close(); }
+            catch (Exception e) { }
+        }
+        scanned.add(oldFile.getName());
+        checkpoint(out);
+        return true;
+    }
+
+    private boolean copyMatches(int weak, byte[] buf, int off, MessageDigest md5, RandomAccessFile out) throws IOException {
+        int pos = firstIndex(weak);
+        byte[] digest = null;
+        boolean found = false;
+
+        for (; pos < index.length && (int) (index[pos] >> 32) == weak; pos++) {
+            int block = (int) index[pos];
+            if (block == blockCount - 1 && length % blockSize != 0) continue;
+
+            if (digest == null) {
+                md5.update(buf, off, blockSize);
+                digest = md5.digest();
+            }
+            if (!strongEquals(block, digest)) continue;
+
+            found = true;
+            if (have[block]) continue;
+            out.seek((long) block * blockSize);
+            out.write(buf, off, blockSize);
+            have[block] = true;
+            missing--;
+            reused += blockSize;
+        }
+        return found;
+    }
+
+    private int firstIndex(int weak) {
+        long key = (long) weak << 32;
+        int lo = 0;
+        int hi = index.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index[mid] < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private boolean strongEquals(int block, byte[] digest) {
+        int off = block * STRONG_LENGTH;
+        for (int q = 0; q < STRONG_LENGTH; q++) {
+            if (strong[off + q] != digest[q]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fetches every block still missing from url, one Range request per run
+     * of consecutive missing blocks, writing in fsBlockSize aligned chunks.
+     * Returns false if the listener asked to stop.
+     */
+    public boolean fetchMissing(URL url, RandomAccessFile out, int fsBlockSize, ProgressListener listener) throws IOException {
+        FileChannel channel = out.getChannel();
+        int q = 0;
+        while (q < blockCount) {
+            if (have[q]) {
+                q++;
+                continue;
+            }
+            int first = q;
+            while (q < blockCount && !have[q]) q++;
+
+            long from = (long) first * blockSize;
+            long to = Math.min((long) q * blockSize, length) - 1;
+
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(TIMEOUT);
+            conn.setReadTimeout(TIMEOUT);
+            conn.setRequestProperty("Range", "bytes=" + from + "-" + to);
+
+            InputStream is = null;
+            TransferBuffer tb = null;
+            // blocks before marked are recorded as fetched; bytes before written are on disk
+            int marked = first;
+            long written = from;
+            try {
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new SegmentedDownload.RangeNotSupportedException("server answered range " + from + "-" + to + " with " + conn.getResponseCode());
+                }
+
+                is = conn.getInputStream();
+                tb = new TransferBuffer(fsBlockSize, from);
+                long pos = from;
+                int nRead;
+                while (pos <= to && (nRead = tb.readFrom(is, to - pos + 1, null)) != -1) {
+                    written += tb.drainTo(channel);
+                    pos += nRead;
+                    if (!listener.onProgress(getDoneBytes() + pos - (long) marked * blockSize, length)) return false;
+
+                    if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                        written += tb.flushTo(channel);
+                        marked = markFetched(marked, q, written, to);
+                        checkpoint(out);
+                    }
+                }
+                if (pos <= to) {
+                    throw new IOException("range " + from + "-" + to + " closed at " + pos);
+                }
+            } finally {
+                if (tb != null) {
+                    // whatever arrived is still good for the next attempt
+                    try { written += tb.flushTo(channel); }
+                    catch (Exception e) { }
+                    tb.release();
+                }
+                marked = markFetched(marked, q, written, to);
+                if (is != null) {
+                    try { is.close(); }
+                    catch (Exception e) { }
+                }
+                conn.disconnect();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the blocks from first up to the run's end that are wholly on
+     * disk, given that the run ends at byte to and everything before written
+     * has been written. Returns the first block not recorded.
+     */
+    private int markFetched(int first, int end, long written, long to) {
+        int upTo = written > to ? end : (int) (written / blockSize);
+        if (upTo <= first) return first;
+        for (int block = first; block < upTo; block++) {
+            have[block] = true;
+        }
+        missing -= upTo - first;
+        fetched += Math.min((long) upTo * blockSize, length) - (long) first * blockSize;
+        return upTo;
+    }
+}
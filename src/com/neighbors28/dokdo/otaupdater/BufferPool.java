@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the large transfer buffers around between downloads (and between the
+ * connections of a segmented one) instead of allocating fresh ones every
+ * time. Buffers are handed out in power-of-two sizes so they can be reused
+ * for any request of the same size class.
+ */
+public class BufferPool {
+    // 4 KB writes take 1.9x as long as 16 KB ones, and nothing is gained past
+    // 256 KB (benchmarks/results/buffersize.txt); the cap bounds memory
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int MAX_POOLED = 4 * MAX_SIZE;
+
+    private static final ArrayList<byte[]> free = new ArrayList<byte[]>();
+    private static int pooled = 0;
+
+    /**
+     * Rounds size up to the buffer size that acquire would hand out.
+     */
+    public static int sizeFor(int size) {
+        if (size <= MIN_SIZE) return MIN_SIZE;
+        if (size >= MAX_SIZE) return MAX_SIZE;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    public static synchronized byte[] acquire(int size) {
+        size = sizeFor(size);
+        for (int q = free.size() - 1; q >= 0; q--) {
+            byte[] buf = free.get(q);
+            if (buf.length == size) {
+                free.remove(q);
+                pooled -= size;
+                return buf;
+            }
+        }
+        return new byte[size];
+    }
+
+    public static synchronized void release(byte[] buf) {
+        if (buf == null || buf.length != sizeFor(buf.length)) return;
+        // make room by dropping the oldest buffers rather than refusing this one
+        while (!free.isEmpty() && pooled + buf.length > MAX_POOLED) {
+            pooled -= free.remove(0).length;
+        }
+        if (pooled + buf.length > MAX_POOLED) return;
+        free.add(buf);
+        pooled += buf.length;
+    }
+
+    public static synchronized void trim() {
+        free.clear();
+        pooled = 0;
+    }
+}
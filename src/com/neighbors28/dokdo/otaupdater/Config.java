@@ -17,7 +17,14 @@
 
 package com.neighbors28.dokdo.otaupdater;
 
-import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -37,23 +44,27 @@ public class Config {
     public static final String OTA_NOFLASH_PROP = "otaupdater.noflash";
 
     public static final int WAKE_TIMEOUT = 30000;
+    public static final int DL_SEGMENTS = 4;
+    public static final long MANIFEST_TTL = 3600000;
+    public static final long MIN_FREE_SPACE = 256 * 1048576L;
 
-    public static final String DL_PATH = "/" + Utils.getOSSdPath() + "/DokdoOTA/download/";
-    public static final File DL_PATH_FILE = new File(Config.DL_PATH);
+    /** Never force downloaded data to disk, leave it to the kernel. */
+    public static final int SYNC_NEVER = 0;
+    /** Force it out before each checkpoint of how far the download got. */
+    public static final int SYNC_CHECKPOINT = 1;
+    /** Force it out and checkpoint after every write. */
+    public static final int SYNC_ALWAYS = 2;
 
-    static {
-        if (DL_PATH_FILE.exists()) {
-            if (!DL_PATH_FILE.isDirectory()) {
-                DL_PATH_FILE.delete();
-                DL_PATH_FILE.mkdirs();
-            }
-        } else {
-            DL_PATH_FILE.mkdirs();
-        }
-    }
+    public static final String DL_DIR = "DokdoOTA/download";
 
     private boolean showNotif = true;
     private boolean ignoredDataWarn = false;
+    private boolean wifiOnly = false;
+    private boolean chargingOnly = false;
+    private int minBattery = 0;
+    private int dlQuota = 0;
+    private int syncPolicy = SYNC_CHECKPOINT;
+    private boolean checkDeferred = false;
 
     private int lastVersion = -1;
     private String lastDevice = null;
@@ -63,29 +74,45 @@ public class Config {
     private String curDevice = null;
     private String curRomID = null;
 
-    private RomInfo storedUpdate = null;
-
     private static final String PREFS_NAME = "prefs";
+    private static final String[] OLD_UPDATE_KEYS = { "info_rom", "info_version", "info_changelog", "info_url",
+            "info_md5", "info_date", "info_hash_algo", "info_hash", "info_delta_url", "info_delta_base",
+            "info_delta_md5", "info_blocks_url" };
+    private static final long FLUSH_DELAY = 250;
     private final SharedPreferences PREFS;
 
-    private Config(Context ctx) {
+    private final Map<String, Object> pending = new HashMap<String, Object>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private boolean flushScheduled = false;
+
+    private final Future<UpdateHistory> history;
+
+    // package-private so tests can build one around their own preferences
+    Config(Context ctx) {
         PREFS = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, 0);
 
         showNotif = PREFS.getBoolean("showNotif", showNotif);
         ignoredDataWarn = PREFS.getBoolean("ignoredDataWarn", ignoredDataWarn);
+        wifiOnly = PREFS.getBoolean("wifiOnly", wifiOnly);
+        chargingOnly = PREFS.getBoolean("chargingOnly", chargingOnly);
+        minBattery = PREFS.getInt("minBattery", minBattery);
+        dlQuota = PREFS.getInt("dlQuota", dlQuota);
+        syncPolicy = PREFS.getInt("syncPolicy", syncPolicy);
+        checkDeferred = PREFS.getBoolean("checkDeferred", checkDeferred);
 
         lastVersion = PREFS.getInt("version", lastVersion);
         lastDevice = PREFS.getString("device", lastDevice);
         lastRomID = PREFS.getString("romid", lastRomID);
 
-        if (PREFS.contains("info_rom")) {
-            storedUpdate = new RomInfo(PREFS.getString("info_rom", null),
-                    PREFS.getString("info_version", null),
-                    PREFS.getString("info_changelog", null),
-                    PREFS.getString("info_url", null),
-                    PREFS.getString("info_md5", null),
-                    Utils.parseDate(PREFS.getString("info_date", null)));
-        }
+        // replaying the history reads a file, keep that off the caller's thread
+        final Context appCtx = ctx.getApplicationContext();
+        history = flusher.submit(new Callable<UpdateHistory>() {
+            @Override
+            public UpdateHistory call() {
+                return loadHistory(appCtx);
+            }
+        });
 
         try {
             curVersion = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0).versionCode;
@@ -98,6 +125,40 @@ public class Config {
             setIgnoredDataWarn(false);
         }
     }
+
+    private UpdateHistory loadHistory(Context ctx) {
+        UpdateHistory history = UpdateHistory.getInstance(ctx);
+        history.setWriteBehind(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFlush();
+            }
+        });
+
+        if (PREFS.contains("info_rom")) {
+            // the pending update used to live in these keys, move it over
+            RomInfo info = new RomInfo(PREFS.getString("info_rom", null),
+                    PREFS.getString("info_version", null),
+                    PREFS.getString("info_changelog", null),
+                    PREFS.getString("info_url", null),
+                    PREFS.getString("info_md5", null),
+                    Utils.parseDate(PREFS.getString("info_date", null)),
+                    PREFS.getString("info_hash_algo", null),
+                    PREFS.getString("info_hash", null));
+            info.deltaUrl = PREFS.getString("info_delta_url", null);
+            info.deltaBaseMd5 = PREFS.getString("info_delta_base", null);
+            info.deltaMd5 = PREFS.getString("info_delta_md5", null);
+            info.blocksUrl = PREFS.getString("info_blocks_url", null);
+            history.offered(info);
+            synchronized (pending) {
+                for (String key : OLD_UPDATE_KEYS) {
+                    put(key, null);
+                }
+            }
+        }
+        return history;
+    }
+
     private static Config instance = null;
     public static synchronized Config getInstance(Context ctx) {
         if (instance == null) instance = new Config(ctx);
@@ -110,11 +171,7 @@ public class Config {
 
     public void setShowNotif(boolean showNotif) {
         this.showNotif = showNotif;
-        synchronized (PREFS) {
-            SharedPreferences.Editor editor = PREFS.edit();
-            editor.putBoolean("showNotif", showNotif);
-            editor.commit();
-        }
+        put("showNotif", showNotif);
     }
 
     public boolean getIgnoredDataWarn() {
@@ -123,11 +180,67 @@ public class Config {
 
     public void setIgnoredDataWarn(boolean ignored) {
         this.ignoredDataWarn = ignored;
-        synchronized (PREFS) {
-            SharedPreferences.Editor editor = PREFS.edit();
-            editor.putBoolean("ignoredDataWarn", ignored);
-            editor.commit();
-        }
+        put("ignoredDataWarn", ignored);
+    }
+
+    public boolean getWifiOnly() {
+        return wifiOnly;
+    }
+
+    public void setWifiOnly(boolean wifiOnly) {
+        this.wifiOnly = wifiOnly;
+        put("wifiOnly", wifiOnly);
+    }
+
+    public boolean getChargingOnly() {
+        return chargingOnly;
+    }
+
+    public void setChargingOnly(boolean chargingOnly) {
+        this.chargingOnly = chargingOnly;
+        put("chargingOnly", chargingOnly);
+    }
+
+    public int getMinBattery() {
+        return minBattery;
+    }
+
+    public void setMinBattery(int minBattery) {
+        this.minBattery = minBattery;
+        put("minBattery", minBattery);
+    }
+
+    /**
+     * Most bytes the download directory may hold, 0 for no limit.
+     */
+    public long getDownloadQuota() {
+        return dlQuota * 1048576L;
+    }
+
+    /**
+     * quota is in MB, 0 for no limit.
+     */
+    public void setDownloadQuota(int quota) {
+        this.dlQuota = quota;
+        put("dlQuota", quota);
+    }
+
+    public int getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public void setSyncPolicy(int syncPolicy) {
+        this.syncPolicy = syncPolicy;
+        put("syncPolicy", syncPolicy);
+    }
+
+    public boolean getCheckDeferred() {
+        return checkDeferred;
+    }
+
+    public void setCheckDeferred(boolean deferred) {
+        this.checkDeferred = deferred;
+        put("checkDeferred", deferred);
     }
 
     public int getLastVersion() {
@@ -143,12 +256,10 @@ public class Config {
     }
 
     public void setValuesToCurrent() {
-        synchronized (PREFS) {
-            SharedPreferences.Editor editor = PREFS.edit();
-            editor.putInt("version", curVersion);
-            editor.putString("device", curDevice);
-            editor.putString("romid", curRomID);
-            editor.commit();
+        synchronized (pending) {
+            put("version", curVersion);
+            put("device", curDevice);
+            put("romid", curRomID);
         }
     }
 
@@ -159,37 +270,103 @@ public class Config {
         return curVersion == lastVersion && curDevice.equals(lastDevice) && curRomID.equals(lastRomID);
     }
 
+    /**
+     * The update history, waiting for it to finish loading if it hasn't yet.
+     */
+    UpdateHistory getHistory() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return history.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
     public boolean hasStoredUpdate() {
-        return storedUpdate != null;
+        return getHistory().getNewestPending() != null;
     }
 
     public RomInfo getStoredUpdate() {
-        return storedUpdate;
+        return getHistory().getNewestPending();
     }
 
     public void storeUpdate(RomInfo info) {
-        synchronized (PREFS) {
-            SharedPreferences.Editor editor = PREFS.edit();
-            editor.putString("info_rom", info.romName);
-            editor.putString("info_version", info.version);
-            editor.putString("info_changelog", info.changelog);
-            editor.putString("info_url", info.url);
-            editor.putString("info_md5", info.md5);
-            editor.putString("info_date", Utils.formatDate(info.date));
-            editor.commit();
-        }
+        getHistory().offered(info);
     }
 
     public void clearStoredUpdate() {
-        synchronized (PREFS) {
+        getHistory().dismissPending();
+    }
+
+    /**
+     * Writes every change made so far to disk before returning. Changes are
+     * otherwise written shortly after they are made, in the background;
+     * anything that is about to take the device down (reboot to recovery)
+     * must call this first.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, Object> batch;
+            synchronized (pending) {
+                flushScheduled = false;
+                batch = new HashMap<String, Object>(pending);
+                pending.clear();
+            }
+
+            getHistory().flush();
+            if (batch.isEmpty()) return;
+
             SharedPreferences.Editor editor = PREFS.edit();
-            editor.remove("info_rom");
-            editor.remove("info_version");
-            editor.remove("info_changelog");
-            editor.remove("info_url");
-            editor.remove("info_md5");
-            editor.remove("info_date");
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                Object value = entry.getValue();
+                if (value == null) {
+                    editor.remove(entry.getKey());
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(entry.getKey(), (Boolean) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(entry.getKey(), (Integer) value);
+                } else {
+                    editor.putString(entry.getKey(), value.toString());
+                }
+            }
             editor.commit();
         }
     }
+
+    /**
+     * Queues key to be written (or removed, for a null value) with the next
+     * flush. Later writes to the same key replace earlier ones, so a burst of
+     * changes costs one commit.
+     */
+    private void put(String key, Object value) {
+        synchronized (pending) {
+            pending.put(key, value);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Schedules a flush unless one already is; history records wait for the
+     * same one.
+     */
+    private void scheduleFlush() {
+        synchronized (pending) {
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        flusher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+    }
 }
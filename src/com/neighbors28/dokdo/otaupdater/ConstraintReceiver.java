@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Only enabled while a download or update check is waiting on the network or
+ * power state. Each change kicks off everything that was deferred in one go.
+ */
+public class ConstraintReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Config cfg = Config.getInstance(context.getApplicationContext());
+        boolean pendingJobs = DownloadJobStore.getInstance(context).hasPending();
+        boolean pendingCheck = cfg.getCheckDeferred();
+
+        if (!pendingJobs && !pendingCheck) {
+            DownloadPolicy.setWatching(context, false);
+            return;
+        }
+
+        if (pendingCheck && Utils.dataAvailable(context)) {
+            Log.v("OTA::Receiver", "Network is back, running deferred update check");
+            cfg.setCheckDeferred(false);
+            context.sendBroadcast(new Intent(context, UpdateCheckReceiver.class));
+        }
+        if (pendingJobs) {
+            // the service checks the policy itself and goes back to waiting if need be
+            DownloadService.startPending(context);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import android.util.Log;
+
+/**
+ * Reads and writes the "yyyyMMdd-kkmm" timestamps used by manifests, prefs and
+ * intents (local time, hour 1-24) without going through SimpleDateFormat.
+ * The common case, a well-formed 13 character string, is decoded straight to
+ * epoch millis without allocating anything; whatever SimpleDateFormat would
+ * have read differently (out of range fields, stray characters, odd years)
+ * is still handed to it so old values keep parsing the same way.
+ */
+public class DateCodec {
+    private static final String TAG = "OTA::DateCodec";
+
+    public static final String PATTERN = "yyyyMMdd-kkmm";
+    public static final int LENGTH = 13;
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MINUTE = 60000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    private static final int MIN_YEAR = 1600;
+    private static final int MAX_YEAR = 9999;
+
+    private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private static volatile TimeZone zone = null;
+
+    /**
+     * Forgets the cached default time zone, for when the user changes it.
+     */
+    public static void resetTimeZone() {
+        zone = null;
+    }
+
+    private static TimeZone getZone() {
+        TimeZone tz = zone;
+        if (tz == null) zone = tz = TimeZone.getDefault();
+        return tz;
+    }
+
+    /**
+     * Returns the epoch millis date stands for, or INVALID if it can't be
+     * read at all.
+     */
+    public static long parse(CharSequence date) {
+        if (date == null) return INVALID;
+        if (date.length() == LENGTH && date.charAt(8) == '-') {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 4, 2);
+            int day = digits(date, 6, 2);
+            int hour = digits(date, 9, 2);
+            int minute = digits(date, 11, 2);
+            if (year >= MIN_YEAR && year <= MAX_YEAR && month >= 1 && month <= 12
+                    && day >= 1 && day <= daysInMonth(year, month)
+                    && hour >= 0 && hour <= 24 && minute >= 0 && minute <= 59) {
+                if (hour == 24) hour = 0;
+                return toUtc(daysFromCivil(year, month, day) * DAY + hour * HOUR + minute * MINUTE);
+            }
+        }
+        return parseSlow(date.toString());
+    }
+
+    public static String format(long millis) {
+        TimeZone tz = getZone();
+        long local = millis + tz.getOffset(millis);
+        long days = local >= 0 ? local / DAY : (local - DAY + 1) / DAY;
+        int minuteOfDay = (int) ((local - days * DAY) / MINUTE);
+
+        // days since 1970-01-01 to a civil date, see daysFromCivil
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < MIN_YEAR || year > MAX_YEAR) return formatSlow(millis);
+
+        int hour = minuteOfDay / 60;
+        if (hour == 0) hour = 24;
+
+        char[] str = new char[LENGTH];
+        put(str, 0, (int) year, 4);
+        put(str, 4, month, 2);
+        put(str, 6, day, 2);
+        str[8] = '-';
+        put(str, 9, hour, 2);
+        put(str, 11, minuteOfDay % 60, 2);
+        return new String(str);
+    }
+
+    private static int digits(CharSequence str, int off, int count) {
+        int value = 0;
+        for (int q = off; q < off + count; q++) {
+            int digit = str.charAt(q) - '0';
+            if (digit < 0 || digit > 9) return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static void put(char[] str, int off, int value, int count) {
+        for (int q = off + count - 1; q >= off; q--) {
+            str[q] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2 && (year % 4 != 0 || (year % 100 == 0 && year % 400 != 0))) return 28;
+        return DAYS_IN_MONTH[month - 1];
+    }
+
+    /**
+     * Days between 1970-01-01 and the given proleptic Gregorian date.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        if (month <= 2) year--;
+        int era = year / 400;
+        int yoe = year - era * 400;
+        int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return (long) era * 146097 + doe - 719468;
+    }
+
+    private static long toUtc(long local) {
+        TimeZone tz = getZone();
+        int offset = tz.getOffset(local - tz.getRawOffset());
+        int actual = tz.getOffset(local - offset);
+        // the guess was on the other side of a DST switch
+        if (actual != offset) offset = actual;
+        return local - offset;
+    }
+
+    private static long parseSlow(String date) {
+        try {
+            return new SimpleDateFormat(PATTERN).parse(date).getTime();
+        } catch (ParseException e) {
+            // a stack trace here costs far more than the parse itself
+            Log.w(TAG, "Unparseable date: " + date);
+        }
+        return INVALID;
+    }
+
+    private static String formatSlow(long millis) {
+        return new SimpleDateFormat(PATTERN).format(new Date(millis));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Applies a bsdiff-style binary patch to a package that is already on disk.
+ *
+ * The patch is the 8 byte magic "OTADIFF1" and the size of the new file,
+ * followed by one zlib stream holding, for each step, a control triple (bytes
+ * to add onto the old file, bytes to copy from the patch, how far to move in
+ * the old file) and then the bytes for that step. All integers use bsdiff's
+ * 8 byte sign-magnitude little endian encoding. Because everything sits in a
+ * single stream in the order it is needed, the patch is applied front to back
+ * with a couple of fixed size buffers, no matter how big the package is.
+ */
+public class DeltaPatch {
+    public static final String MAGIC = "OTADIFF1";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    public static interface ProgressListener {
+        /**
+         * Returns false to stop applying the patch.
+         */
+        boolean onProgress(long written, long total);
+    }
+
+    private final DataInputStream in;
+    private final long newSize;
+
+    public DeltaPatch(InputStream patch) throws IOException {
+        DataInputStream header = new DataInputStream(patch);
+        byte[] magic = new byte[MAGIC.length()];
+        header.readFully(magic);
+        if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+            throw new IOException("not a delta patch");
+        }
+
+        byte[] buf = new byte[8];
+        header.readFully(buf);
+        newSize = readOffset(buf);
+        if (newSize < 0) throw new IOException("corrupt delta patch header");
+
+        in = new DataInputStream(new InflaterInputStream(patch));
+    }
+
+    public long getNewSize() {
+        return newSize;
+    }
+
+    /**
+     * Scans dir for a package whose MD5 is md5, using (and filling) the digest
+     * cache so only packages that haven't been seen before are read.
+     */
+    public static File findBase(File dir, String md5, DigestCache digests) {
+        File[] files = dir.listFiles();
+        if (files == null) return null;
+
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().endsWith(".zip")) continue;
+
+            String fileMd5 = digests.lookup(file, FileHasher.MD5);
+            if (fileMd5 == null) {
+                try {
+                    FileHasher hasher = new FileHasher(FileHasher.MD5);
+                    hasher.hashFile(file);
+                    fileMd5 = hasher.digest()[0];
+                    digests.store(file, FileHasher.MD5, fileMd5);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    continue;
+                }
+            }
+            if (md5.equalsIgnoreCase(fileMd5)) return file;
+        }
+        return null;
+    }
+
+    /**
+     * Writes the patched file to out, feeding every byte written to hasher.
+     * Returns false if the listener asked to stop.
+     */
+    public boolean apply(File oldFile, OutputStream out, FileHasher hasher, ProgressListener listener) throws IOException {
+        RandomAccessFile old = new RandomAccessFile(oldFile, "r");
+        try {
+            long oldSize = old.length();
+            long oldPos = 0;
+            long newPos = 0;
+
+            byte[] ctrl = new byte[8];
+            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] oldBuf = new byte[BUFFER_SIZE];
+
+            while (newPos < newSize) {
+                in.readFully(ctrl);
+                long diffLen = readOffset(ctrl);
+                in.readFully(ctrl);
+                long extraLen = readOffset(ctrl);
+                in.readFully(ctrl);
+                long seek = readOffset(ctrl);
+
+                if (diffLen < 0 || extraLen < 0 || newPos + diffLen + extraLen > newSize) {
+                    throw new IOException("corrupt delta patch at " + newPos);
+                }
+
+                while (diffLen > 0) {
+                    int n = (int) Math.min(BUFFER_SIZE, diffLen);
+                    in.readFully(buf, 0, n);
+                    readOld(old, oldSize, oldPos, oldBuf, n);
+                    for (int q = 0; q < n; q++) {
+                        buf[q] += oldBuf[q];
+                    }
+                    out.write(buf, 0, n);
+                    hasher.update(buf, 0, n);
+
+                    oldPos += n;
+                    newPos += n;
+                    diffLen -= n;
+                    if (!listener.onProgress(newPos, newSize)) return false;
+                }
+
+                while (extraLen > 0) {
+                    int n = (int) Math.min(BUFFER_SIZE, extraLen);
+                    in.readFully(buf, 0, n);
+                    out.write(buf, 0, n);
+                    hasher.update(buf, 0, n);
+
+                    newPos += n;
+                    extraLen -= n;
+                    if (!listener.onProgress(newPos, newSize)) return false;
+                }
+
+                oldPos += seek;
+            }
+            return true;
+        } finally {
+            try { old.close(); }
+            catch (Exception e) { }
+        }
+    }
+
+    private static void readOld(RandomAccessFile old, long oldSize, long oldPos, byte[] buf, int len) throws IOException {
+        // bytes outside the old file count as zero, like in bsdiff
+        Arrays.fill(buf, 0, len, (byte) 0);
+        long start = Math.max(oldPos, 0);
+        long end = Math.min(oldPos + len, oldSize);
+        if (start >= end) return;
+
+        old.seek(start);
+        old.readFully(buf, (int) (start - oldPos), (int) (end - start));
+    }
+
+    private static long readOffset(byte[] buf) {
+        long y = buf[7] & 0x7F;
+        for (int q = 6; q >= 0; q--) {
+            y = (y << 8) | (buf[q] & 0xFF);
+        }
+        return (buf[7] & 0x80) != 0 ? -y : y;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Remembers the digests of verified packages, keyed by path and invalidated
+ * whenever the file's size, mtime or (where the platform exposes it) inode
+ * changes, so an already-checked zip doesn't have to be re-read.
+ */
+public class DigestCache {
+    private static final String CACHE_NAME = "digests";
+
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final long inode;
+        final HashMap<String, String> digests = new HashMap<String, String>();
+
+        Entry(long size, long mtime, long inode) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+        }
+
+        boolean matches(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+
+    private final File cacheFile;
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+    private DigestCache(Context ctx) {
+        cacheFile = new File(ctx.getFilesDir(), CACHE_NAME);
+        load();
+    }
+    private static DigestCache instance = null;
+    public static synchronized DigestCache getInstance(Context ctx) {
+        if (instance == null) instance = new DigestCache(ctx.getApplicationContext());
+        return instance;
+    }
+
+    public synchronized String lookup(File file, String algorithm) {
+        Entry entry = entries.get(file.getAbsolutePath());
+        if (entry == null) return null;
+        if (!entry.matches(identify(file))) return null;
+        return entry.digests.get(algorithm);
+    }
+
+    public synchronized void store(File file, String algorithm, String digest) {
+        String path = file.getAbsolutePath();
+        Entry current = identify(file);
+        Entry entry = entries.get(path);
+        if (entry == null || !entry.matches(current)) {
+            entry = current;
+            entries.put(path, entry);
+        }
+        entry.digests.put(algorithm, digest.toLowerCase());
+        save();
+    }
+
+    public synchronized void remove(File file) {
+        if (entries.remove(file.getAbsolutePath()) != null) save();
+    }
+
+    private static Entry identify(File file) {
+        return new Entry(file.length(), file.lastModified(), getInode(file));
+    }
+
+    private static long getInode(File file) {
+        if (Build.VERSION.SDK_INT < 21) return 0;
+        try {
+            Class<?> os = Class.forName("android.system.Os");
+            Method stat = os.getMethod("stat", String.class);
+            Object st = stat.invoke(null, file.getAbsolutePath());
+            return st.getClass().getField("st_ino").getLong(st);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) return;
+
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(cacheFile));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 5) continue;
+
+                Entry entry = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                for (int q = 4; q < fields.length; q++) {
+                    int split = fields[q].indexOf('=');
+                    if (split <= 0) continue;
+                    entry.digests.put(fields[q].substring(0, split), fields[q].substring(split + 1));
+                }
+                entries.put(fields[0], entry);
+            }
+        } catch (Exception e) {
+            Log.w("OTA::DigestCache", "couldn't read digest cache, starting over");
+            entries.clear();
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    private void save() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(it.next().getKey()).exists()) it.remove();
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(tmpFile));
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.write(e.getKey());
+                out.write("\t" + entry.size + "\t" + entry.mtime + "\t" + entry.inode);
+                for (Map.Entry<String, String> digest : entry.digests.entrySet()) {
+                    out.write("\t" + digest.getKey() + "=" + digest.getValue());
+                }
+                out.write("\n");
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(cacheFile)) {
+                Log.w("OTA::DigestCache", "couldn't replace digest cache");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try { out.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * What is in the download directory: size, mtime, known MD5 and, where one
+ * matches, the release each package belongs to. Built on a background thread
+ * and kept current from a {@link FileObserver} while anyone is listening, so
+ * the list only has to hear about the file that actually changed. Listeners
+ * are added, removed and called on the main thread; the directory itself is
+ * only touched on the worker, which is also where it is first resolved.
+ */
+public class DownloadIndex {
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    public static class Item implements Comparable<Item> {
+        public final File file;
+        public final long size;
+        public final long mtime;
+        public final String md5;
+        public final RomInfo info;
+
+        Item(File file, long size, long mtime, String md5, RomInfo info) {
+            this.file = file;
+            this.size = size;
+            this.mtime = mtime;
+            this.md5 = md5;
+            this.info = info;
+        }
+
+        /**
+         * Newest first.
+         */
+        @Override
+        public int compareTo(Item other) {
+            if (mtime != other.mtime) return mtime > other.mtime ? -1 : 1;
+            return file.getName().compareTo(other.file.getName());
+        }
+
+        @Override
+        public String toString() {
+            return file.getName();
+        }
+    }
+
+    public static interface Listener {
+        void onIndexLoaded(List<Item> items);
+        void onItemChanged(Item item);
+        void onItemRemoved(File file);
+    }
+
+    private final DigestCache digests;
+    private final UpdateHistory history;
+    private final HashMap<String, Item> items = new HashMap<String, Item>();
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    // only used on the worker, which resolves them before anything else
+    private File dir;
+    private FileObserver observer;
+    private boolean watching = false;
+
+    private DownloadIndex(Context ctx) {
+        digests = DigestCache.getInstance(ctx);
+        history = UpdateHistory.getInstance(ctx);
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                dir = StorageLocation.getDownloadDir();
+                observer = createObserver();
+            }
+        });
+    }
+    private static DownloadIndex instance = null;
+    public static synchronized DownloadIndex getInstance(Context ctx) {
+        if (instance == null) instance = new DownloadIndex(ctx.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Starts watching the directory if listener is the first one. The listener
+     * gets the whole index once it has been brought up to date, then
+     * changes one file at a time.
+     */
+    public void addListener(Listener listener) {
+        if (listeners.contains(listener)) return;
+        listeners.add(listener);
+        if (listeners.size() == 1) setWatching(true);
+
+        final Listener target = listener;
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                // catch up on whatever changed while nobody was watching
+                scan(false);
+                final List<Item> snapshot = new ArrayList<Item>(items.values());
+                Collections.sort(snapshot);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listeners.contains(target)) target.onIndexLoaded(snapshot);
+                    }
+                });
+            }
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        if (!listeners.remove(listener)) return;
+        if (listeners.isEmpty()) setWatching(false);
+    }
+
+    private void setWatching(final boolean watching) {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                DownloadIndex.this.watching = watching;
+                if (watching) {
+                    observer.startWatching();
+                } else {
+                    observer.stopWatching();
+                }
+            }
+        });
+    }
+
+    private FileObserver createObserver() {
+        return new FileObserver(dir.getPath(), EVENTS) {
+            @Override
+            public void onEvent(int event, final String path) {
+                if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    rewatch();
+                    return;
+                }
+                if (path == null) {
+                    rescan();
+                    return;
+                }
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        update(path);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The watch went away with the directory it was on (deleted, or moved by
+     * something like a file manager), so recreate the directory, put a new
+     * watch on it and report whatever is or isn't there now.
+     */
+    private void rewatch() {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                observer.stopWatching();
+                dir = StorageLocation.getDownloadDir();
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    Log.w("OTA::DownloadIndex", "can't recreate " + dir);
+                }
+                observer = createObserver();
+                if (watching) observer.startWatching();
+                scan(true);
+            }
+        });
+    }
+
+    /**
+     * Re-stats every file, reporting only the ones that changed.
+     */
+    public void rescan() {
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                scan(true);
+            }
+        });
+    }
+
+    private void scan(boolean report) {
+        HashMap<String, RomInfo> releases = getReleases();
+        File[] files = dir.listFiles();
+        HashMap<String, File> present = new HashMap<String, File>();
+        if (files != null) {
+            for (File file : files) {
+                present.put(file.getName(), file);
+            }
+        }
+
+        Iterator<Item> it = items.values().iterator();
+        while (it.hasNext()) {
+            final Item item = it.next();
+            if (present.containsKey(item.file.getName())) continue;
+            it.remove();
+            if (report) postRemoved(item.file);
+        }
+        for (String name : present.keySet()) {
+            Item item = stat(name, releases);
+            if (item != null && report) postChanged(item);
+        }
+    }
+
+    private void update(String name) {
+        File file = new File(dir, name);
+        if (!file.isFile() || PartialDownload.isPartialFile(file)) {
+            if (items.remove(name) != null) postRemoved(file);
+            return;
+        }
+        Item item = stat(name, getReleases());
+        if (item != null) postChanged(item);
+    }
+
+    /**
+     * Refreshes the entry for name, returning it if it is new or changed.
+     */
+    private Item stat(String name, HashMap<String, RomInfo> releases) {
+        File file = new File(dir, name);
+        if (!file.isFile() || PartialDownload.isPartialFile(file)) return null;
+
+        long size = file.length();
+        long mtime = file.lastModified();
+        Item old = items.get(name);
+        // a download's digest is stored just after it lands, so look again until there is one
+        if (old != null && old.size == size && old.mtime == mtime && old.md5 != null) return null;
+
+        String md5 = digests.lookup(file, FileHasher.MD5);
+        RomInfo info = releases.get(name);
+        if (md5 != null && (info == null || !md5.equalsIgnoreCase(info.md5))) {
+            RomInfo byMd5 = releases.get(md5.toLowerCase());
+            if (byMd5 != null) info = byMd5;
+        }
+
+        Item item = new Item(file, size, mtime, md5, info);
+        if (old != null && old.size == size && old.mtime == mtime && md5 == null && old.info == info) return null;
+        items.put(name, item);
+        return item;
+    }
+
+    /**
+     * Releases in the update history keyed by both the file name they are
+     * saved under and their MD5.
+     */
+    private HashMap<String, RomInfo> getReleases() {
+        HashMap<String, RomInfo> releases = new HashMap<String, RomInfo>();
+        for (UpdateHistory.Entry entry : history.getEntries()) {
+            RomInfo info = entry.info;
+            if (!releases.containsKey(info.getFileName())) releases.put(info.getFileName(), info);
+            if (info.md5 != null && !releases.containsKey(info.md5.toLowerCase())) releases.put(info.md5.toLowerCase(), info);
+        }
+        return releases;
+    }
+
+    private void postChanged(final Item item) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<Listener>(listeners)) {
+                    listener.onItemChanged(item);
+                }
+            }
+        });
+    }
+
+    private void postRemoved(final File file) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : new ArrayList<Listener>(listeners)) {
+                    listener.onItemRemoved(file);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+
+/**
+ * A package queued for download. Jobs are kept in {@link DownloadJobStore}
+ * until they finish, so they outlive the process that queued them.
+ */
+public class DownloadJob {
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_DONE = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_CANCELLED = 5;
+
+    public long id = -1;
+    public int position;
+    public int state = STATE_QUEUED;
+    public int result = Downloader.RESULT_OK;
+    public final RomInfo info;
+    public final File destFile;
+
+    // progress of the running job, only kept in memory
+    public volatile long bytes = 0;
+    public volatile long total = -1;
+    // why a queued job isn't running, see DownloadPolicy; 0 is DownloadPolicy.OK
+    public volatile int deferReason = 0;
+
+    public DownloadJob(RomInfo info, File destFile) {
+        this.info = info;
+        this.destFile = destFile;
+    }
+
+    public boolean isFinished() {
+        return state == STATE_DONE || state == STATE_FAILED || state == STATE_CANCELLED;
+    }
+}
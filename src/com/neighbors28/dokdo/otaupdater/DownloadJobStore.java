@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * Persistent queue of unfinished download jobs, in the order they'll run.
+ * Jobs are removed once they finish one way or another.
+ */
+public class DownloadJobStore extends SQLiteOpenHelper {
+    private static final String DB_NAME = "downloads.db";
+    private static final int DB_VERSION = 1;
+    private static final String TABLE = "jobs";
+
+    private static final String[] COLUMNS = new String[] {
+        "_id", "position", "state", "dest",
+        "rom", "version", "changelog", "url", "md5", "date", "hash_algo", "hash", "channel",
+        "delta_url", "delta_base", "delta_md5", "blocks_url"
+    };
+
+    private DownloadJobStore(Context ctx) {
+        super(ctx, DB_NAME, null, DB_VERSION);
+    }
+    private static DownloadJobStore instance = null;
+    public static synchronized DownloadJobStore getInstance(Context ctx) {
+        if (instance == null) instance = new DownloadJobStore(ctx.getApplicationContext());
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "position INTEGER NOT NULL, "
+                + "state INTEGER NOT NULL, "
+                + "dest TEXT NOT NULL, "
+                + "rom TEXT, version TEXT, changelog TEXT, url TEXT NOT NULL, md5 TEXT NOT NULL, date TEXT, "
+                + "hash_algo TEXT, hash TEXT, channel TEXT, "
+                + "delta_url TEXT, delta_base TEXT, delta_md5 TEXT, blocks_url TEXT)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    public synchronized void add(DownloadJob job) {
+        SQLiteDatabase db = getWritableDatabase();
+        Cursor c = db.rawQuery("SELECT MAX(position) FROM " + TABLE, null);
+        try {
+            job.position = c.moveToFirst() && !c.isNull(0) ? c.getInt(0) + 1 : 0;
+        } finally {
+            c.close();
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("position", job.position);
+        values.put("state", job.state);
+        values.put("dest", job.destFile.getAbsolutePath());
+        RomInfo info = job.info;
+        values.put("rom", info.romName);
+        values.put("version", info.version);
+        values.put("changelog", info.changelog);
+        values.put("url", info.url);
+        values.put("md5", info.md5);
+        values.put("date", Utils.formatDate(info.date));
+        values.put("hash_algo", info.hashAlgorithm);
+        values.put("hash", info.hash);
+        values.put("channel", info.channel);
+        values.put("delta_url", info.deltaUrl);
+        values.put("delta_base", info.deltaBaseMd5);
+        values.put("delta_md5", info.deltaMd5);
+        values.put("blocks_url", info.blocksUrl);
+        job.id = db.insert(TABLE, null, values);
+    }
+
+    public synchronized void setState(DownloadJob job) {
+        ContentValues values = new ContentValues();
+        values.put("state", job.state);
+        getWritableDatabase().update(TABLE, values, "_id = ?", new String[] { String.valueOf(job.id) });
+    }
+
+    public synchronized void remove(DownloadJob job) {
+        getWritableDatabase().delete(TABLE, "_id = ?", new String[] { String.valueOf(job.id) });
+    }
+
+    public synchronized DownloadJob get(long id) {
+        List<DownloadJob> jobs = query("_id = ?", new String[] { String.valueOf(id) });
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    public synchronized DownloadJob findByFile(File destFile) {
+        List<DownloadJob> jobs = query("dest = ?", new String[] { destFile.getAbsolutePath() });
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    public synchronized List<DownloadJob> getJobs() {
+        return query(null, null);
+    }
+
+    public synchronized DownloadJob getNextQueued() {
+        List<DownloadJob> jobs = query("state = ?", new String[] { String.valueOf(DownloadJob.STATE_QUEUED) });
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    public synchronized boolean hasPending() {
+        Cursor c = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE state = ? OR state = ?",
+                new String[] { String.valueOf(DownloadJob.STATE_QUEUED), String.valueOf(DownloadJob.STATE_RUNNING) });
+        try {
+            return c.moveToFirst() && c.getInt(0) != 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Puts jobs that were running when the process died back in the queue.
+     */
+    public synchronized void requeueRunning() {
+        ContentValues values = new ContentValues();
+        values.put("state", DownloadJob.STATE_QUEUED);
+        getWritableDatabase().update(TABLE, values, "state = ?", new String[] { String.valueOf(DownloadJob.STATE_RUNNING) });
+    }
+
+    /**
+     * Moves the job to index in the queue, shifting the others along.
+     */
+    public synchronized void move(long id, int index) {
+        List<DownloadJob> jobs = getJobs();
+        DownloadJob moved = null;
+        for (DownloadJob job : jobs) {
+            if (job.id == id) moved = job;
+        }
+        if (moved == null) return;
+        jobs.remove(moved);
+        jobs.add(Math.max(0, Math.min(index, jobs.size())), moved);
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int q = 0; q < jobs.size(); q++) {
+                ContentValues values = new ContentValues();
+                values.put("position", q);
+                db.update(TABLE, values, "_id = ?", new String[] { String.valueOf(jobs.get(q).id) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private List<DownloadJob> query(String selection, String[] args) {
+        List<DownloadJob> jobs = new ArrayList<DownloadJob>();
+        Cursor c = getReadableDatabase().query(TABLE, COLUMNS, selection, args, null, null, "position");
+        try {
+            while (c.moveToNext()) {
+                RomInfo info = new RomInfo(c.getString(4), c.getString(5), c.getString(6), c.getString(7), c.getString(8),
+                        Utils.parseDate(c.getString(9)), c.getString(10), c.getString(11));
+                info.channel = c.getString(12);
+                info.deltaUrl = c.getString(13);
+                info.deltaBaseMd5 = c.getString(14);
+                info.deltaMd5 = c.getString(15);
+                info.blocksUrl = c.getString(16);
+
+                DownloadJob job = new DownloadJob(info, new File(c.getString(3)));
+                job.id = c.getLong(0);
+                job.position = c.getInt(1);
+                job.state = c.getInt(2);
+                jobs.add(job);
+            }
+        } finally {
+            c.close();
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+/**
+ * The conditions downloads are allowed to run under, as set in the settings:
+ * a network at all, optionally an unmetered one, and optionally a charger or
+ * enough battery left. Anything that doesn't pass waits for
+ * {@link ConstraintReceiver} to say the device's state changed.
+ */
+public class DownloadPolicy {
+    public static final int OK = 0;
+    public static final int NO_NETWORK = 1;
+    public static final int METERED = 2;
+    public static final int NOT_CHARGING = 3;
+    public static final int LOW_BATTERY = 4;
+
+    public static final int NETWORK_NONE = 0;
+    public static final int NETWORK_METERED = 1;
+    public static final int NETWORK_UNMETERED = 2;
+
+    private final Context ctx;
+    private final Config cfg;
+
+    public DownloadPolicy(Context ctx) {
+        this.ctx = ctx.getApplicationContext();
+        this.cfg = Config.getInstance(this.ctx);
+    }
+
+    public static int getNetworkState(Context ctx) {
+        ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo ni = cm.getActiveNetworkInfo();
+        if (ni == null || !ni.isConnected()) return NETWORK_NONE;
+        if (ni.getType() == ConnectivityManager.TYPE_MOBILE || cm.isActiveNetworkMetered()) return NETWORK_METERED;
+        return NETWORK_UNMETERED;
+    }
+
+    /**
+     * Returns OK if a download may run right now, else why not.
+     */
+    public int check() {
+        int network = getNetworkState(ctx);
+        if (network == NETWORK_NONE) return NO_NETWORK;
+        if (network == NETWORK_METERED && cfg.getWifiOnly()) return METERED;
+
+        if (cfg.getChargingOnly() || cfg.getMinBattery() > 0) {
+            // sticky broadcast, so this just reads the current state
+            Intent battery = ctx.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery != null) {
+                boolean plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                if (cfg.getChargingOnly() && !plugged) return NOT_CHARGING;
+
+                int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (!plugged && level >= 0 && scale > 0 && level * 100 / scale < cfg.getMinBattery()) return LOW_BATTERY;
+            }
+        }
+        return OK;
+    }
+
+    public static int getReasonText(int reason) {
+        switch (reason) {
+        case NO_NETWORK:
+            return R.string.notif_waiting_network;
+        case METERED:
+            return R.string.notif_waiting_wifi;
+        case NOT_CHARGING:
+            return R.string.notif_waiting_charging;
+        default:
+            return R.string.notif_waiting_battery;
+        }
+    }
+
+    /**
+     * Turns {@link ConstraintReceiver} on or off, so the app is only woken up
+     * by network and power changes while something is actually waiting.
+     */
+    public static void setWatching(Context ctx, boolean watching) {
+        ctx.getPackageManager().setComponentEnabledSetting(new ComponentName(ctx, ConstraintReceiver.class),
+                watching ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.util.Log;
+
+/**
+ * Owns all package downloads. Jobs come in through the static helpers (from the
+ * activity or the notification's actions), are persisted in
+ * {@link DownloadJobStore} and run one at a time, in queue order, on a worker
+ * thread. Commands, and every other store access of the service's own, run
+ * on a store thread rather than the main thread. Since the service is sticky
+ * and re-reads the store whenever it starts, a download cut off by process
+ * death or a reboot picks up again on its own. Jobs only run while
+ * {@link DownloadPolicy} allows it; otherwise they wait, and the running one
+ * is put back in the queue as soon as the conditions stop holding. UI binds
+ * to observe progress through a {@link Listener}.
+ */
+public class DownloadService extends Service {
+    public static final String ACTION_ENQUEUE = "com.neighbors28.dokdo.otaupdater.action.DL_ENQUEUE";
+    public static final String ACTION_PAUSE = "com.neighbors28.dokdo.otaupdater.action.DL_PAUSE";
+    public static final String ACTION_RESUME = "com.neighbors28.dokdo.otaupdater.action.DL_RESUME";
+    public static final String ACTION_CANCEL = "com.neighbors28.dokdo.otaupdater.action.DL_CANCEL";
+    public static final String ACTION_MOVE = "com.neighbors28.dokdo.otaupdater.action.DL_MOVE";
+
+    private static final String EXTRA_JOB_ID = "job_id";
+    private static final String EXTRA_DEST = "dest";
+    private static final String EXTRA_POSITION = "position";
+
+    private static final int NOTIF_ID = 2;
+    private static final long NOTIF_INTERVAL = 1000;
+
+    public static interface Listener {
+        /**
+         * Called on the main thread whenever a job is queued, starts, is paused
+         * or finishes.
+         */
+        void onJobChanged(DownloadJob job);
+        /**
+         * Called on the main thread as the running job makes progress. A total
+         * of -1 means the size isn't known (yet).
+         */
+        void onProgress(DownloadJob job, long rate, long eta);
+    }
+
+    public static interface JobCallback {
+        /**
+         * Called on the main thread with the job that was looked up, or null.
+         */
+        void onJob(DownloadJob job);
+    }
+
+    public class LocalBinder extends Binder {
+        public DownloadService getService() {
+            return DownloadService.this;
+        }
+    }
+
+    public static void enqueue(Context ctx, RomInfo info, File destFile) {
+        Intent i = new Intent(ctx, DownloadService.class);
+        i.setAction(ACTION_ENQUEUE);
+        info.addToIntent(i);
+        i.putExtra(EXTRA_DEST, destFile.getAbsolutePath());
+        ctx.startService(i);
+    }
+
+    public static void pause(Context ctx, long id) {
+        ctx.startService(getJobIntent(ctx, ACTION_PAUSE, id));
+    }
+
+    public static void resume(Context ctx, long id) {
+        ctx.startService(getJobIntent(ctx, ACTION_RESUME, id));
+    }
+
+    public static void cancel(Context ctx, long id) {
+        ctx.startService(getJobIntent(ctx, ACTION_CANCEL, id));
+    }
+
+    public static void move(Context ctx, long id, int position) {
+        Intent i = getJobIntent(ctx, ACTION_MOVE, id);
+        i.putExtra(EXTRA_POSITION, position);
+        ctx.startService(i);
+    }
+
+    /**
+     * Starts the service if the store has downloads waiting to run. The store
+     * is read on a background thread, so this is safe to call from the main
+     * thread.
+     */
+    public static void startPending(Context ctx) {
+        final Context app = ctx.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (DownloadJobStore.getInstance(app).hasPending()) {
+                    app.startService(new Intent(app, DownloadService.class));
+                }
+            }
+        }, "OTA::StartPending").start();
+    }
+
+    private static Intent getJobIntent(Context ctx, String action, long id) {
+        Intent i = new Intent(ctx, DownloadService.class);
+        i.setAction(action);
+        i.putExtra(EXTRA_JOB_ID, id);
+        return i;
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    private Handler handler;
+    private HandlerThread storeThread;
+    private Handler storeHandler;
+    private DownloadJobStore store;
+    private NotificationManager nm;
+    private DownloadPolicy policy;
+    private WakeLock wl;
+    private WakeLock screenLock;
+
+    private Thread worker = null;
+    private DownloadJob current = null;
+    private Downloader downloader = null;
+    private int requestedState = -1;
+    private int deferReason = DownloadPolicy.OK;
+    private boolean watching = false;
+    private long lastNotif = 0;
+    // once set, the worker winds down and nothing it posts touches the service
+    private boolean destroyed = false;
+
+    // while a job runs, any change that might break the policy gets it re-checked
+    private final BroadcastReceiver policyWatcher = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            enforcePolicy();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        handler = new Handler();
+        storeThread = new HandlerThread("OTA::JobStore");
+        storeThread.start();
+        storeHandler = new Handler(storeThread.getLooper());
+        store = DownloadJobStore.getInstance(this);
+        nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        policy = new DownloadPolicy(this);
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, DownloadService.class.getName());
+        wl.setReferenceCounted(false);
+        screenLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, DownloadService.class.getName());
+
+        storeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // whatever was running when the process died goes back in the queue
+                store.requeueRunning();
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, int flags, int startId) {
+        storeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (intent != null && intent.getAction() != null) {
+                    handleCommand(intent);
+                }
+                schedule();
+            }
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopWatching();
+        synchronized (this) {
+            destroyed = true;
+            if (downloader != null) {
+                requestedState = DownloadJob.STATE_QUEUED;
+                downloader.cancel();
+            }
+        }
+        handler.removeCallbacksAndMessages(null);
+        // commands already posted still reach the store, schedule() ignores them
+        storeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                storeThread.quit();
+            }
+        });
+        BufferPool.trim();
+        super.onDestroy();
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Looks up the running job, or else the first queued or paused one, on
+     * the store thread and hands it to callback.
+     */
+    public void getActiveJob(final JobCallback callback) {
+        storeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final DownloadJob job = findActiveJob();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed) callback.onJob(job);
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized DownloadJob findActiveJob() {
+        if (current != null) return current;
+        List<DownloadJob> jobs = store.getJobs();
+        if (jobs.isEmpty()) return null;
+        DownloadJob job = jobs.get(0);
+        if (job.state == DownloadJob.STATE_QUEUED) job.deferReason = deferReason;
+        return job;
+    }
+
+    private void handleCommand(Intent intent) {
+        String action = intent.getAction();
+        long id = intent.getLongExtra(EXTRA_JOB_ID, -1);
+
+        if (ACTION_ENQUEUE.equals(action)) {
+            File destFile = new File(intent.getStringExtra(EXTRA_DEST));
+            DownloadJob job = store.findByFile(destFile);
+            if (job == null) {
+                job = new DownloadJob(RomInfo.fromIntent(intent), destFile);
+                store.add(job);
+                Log.v("OTA::DownloadService", "queued " + destFile.getName());
+            } else if (job.state == DownloadJob.STATE_PAUSED) {
+                job.state = DownloadJob.STATE_QUEUED;
+                store.setState(job);
+            }
+            notifyChanged(job);
+        } else if (ACTION_PAUSE.equals(action)) {
+            pauseJob(id);
+        } else if (ACTION_RESUME.equals(action)) {
+            resumeJob(id);
+        } else if (ACTION_CANCEL.equals(action)) {
+            cancelJob(id);
+        } else if (ACTION_MOVE.equals(action)) {
+            store.move(id, intent.getIntExtra(EXTRA_POSITION, 0));
+            DownloadJob job = store.get(id);
+            if (job != null) notifyChanged(job);
+        }
+    }
+
+    private synchronized void pauseJob(long id) {
+        if (current != null && current.id == id) {
+            requestedState = DownloadJob.STATE_PAUSED;
+            downloader.cancel();
+            return;
+        }
+
+        DownloadJob job = store.get(id);
+        if (job == null || job.state != DownloadJob.STATE_QUEUED) return;
+        job.state = DownloadJob.STATE_PAUSED;
+        store.setState(job);
+        notifyChanged(job);
+    }
+
+    private synchronized void resumeJob(long id) {
+        DownloadJob job = store.get(id);
+        if (job == null || job.state != DownloadJob.STATE_PAUSED) return;
+        job.state = DownloadJob.STATE_QUEUED;
+        store.setState(job);
+        notifyChanged(job);
+    }
+
+    private synchronized void cancelJob(long id) {
+        if (current != null && current.id == id) {
+            requestedState = DownloadJob.STATE_CANCELLED;
+            downloader.cancel();
+            return;
+        }
+
+        DownloadJob job = store.get(id);
+        if (job == null) return;
+        store.remove(job);
+        Downloader.discardPartial(job.destFile);
+        job.state = DownloadJob.STATE_CANCELLED;
+        nm.cancel(NOTIF_ID);
+        notifyChanged(job);
+    }
+
+    private synchronized void schedule() {
+        if (destroyed) return;
+        if (worker != null) {
+            enforcePolicy();
+            return;
+        }
+        DownloadJob next = store.getNextQueued();
+        if (next == null) {
+            stopWatching();
+            deferReason = DownloadPolicy.OK;
+            if (!Config.getInstance(this).getCheckDeferred()) DownloadPolicy.setWatching(this, false);
+            stopSelf();
+            return;
+        }
+
+        int reason = policy.check();
+        if (reason != DownloadPolicy.OK) {
+            stopWatching();
+            defer(next, reason);
+            return;
+        }
+        deferReason = DownloadPolicy.OK;
+        startWatching();
+
+        worker = new Thread("OTA::DownloadService") {
+            @Override
+            public void run() {
+                wl.acquire();
+                try {
+                    DownloadJob job;
+                    while ((job = startNext()) != null) {
+                        PackageRetention.getInstance(DownloadService.this).enforce(0, job.destFile);
+                        int result = downloader.run();
+                        finishJob(job, result);
+                    }
+                } finally {
+                    wl.release();
+                }
+                // by the time this runs an ENQUEUE may have started the next
+                // worker already, so leave it to schedule() whether to stop watching
+                storeHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        schedule();
+                    }
+                });
+            }
+        };
+        worker.start();
+    }
+
+    /**
+     * Leaves job in the queue until {@link ConstraintReceiver} reports a change
+     * that might let it run.
+     */
+    private void defer(DownloadJob job, int reason) {
+        Log.v("OTA::DownloadService", "deferring " + job.destFile.getName() + ", policy says " + reason);
+        deferReason = reason;
+        job.deferReason = reason;
+        DownloadPolicy.setWatching(this, true);
+        showWaitingNotif(job, reason);
+        notifyChanged(job);
+        stopSelf();
+    }
+
+    private synchronized void enforcePolicy() {
+        if (downloader == null) return;
+        if (policy.check() == DownloadPolicy.OK) return;
+
+        Log.v("OTA::DownloadService", "conditions changed, putting " + current.destFile.getName() + " back in the queue");
+        requestedState = DownloadJob.STATE_QUEUED;
+        downloader.cancel();
+    }
+
+    private void startWatching() {
+        if (watching) return;
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        registerReceiver(policyWatcher, filter);
+        watching = true;
+    }
+
+    private void stopWatching() {
+        if (!watching) return;
+        unregisterReceiver(policyWatcher);
+        watching = false;
+    }
+
+    private synchronized DownloadJob startNext() {
+        final DownloadJob job = destroyed ? null : store.getNextQueued();
+        if (job == null || policy.check() != DownloadPolicy.OK) {
+            // schedule() sorts out waiting once the worker is gone; after
+            // onDestroy the job just stays queued for the next start
+            worker = null;
+            return null;
+        }
+
+        job.state = DownloadJob.STATE_RUNNING;
+        store.setState(job);
+        current = job;
+        requestedState = -1;
+        downloader = new Downloader(this, job.info, job.destFile, new Downloader.Listener() {
+            @Override
+            public void onIndeterminate() {
+                job.total = -1;
+                postProgress(job, 0, -1);
+            }
+            @Override
+            public void onProgress(long bytes, long total, long rate, long eta) {
+                job.bytes = bytes;
+                job.total = total;
+                postProgress(job, rate, eta);
+            }
+        });
+        Log.v("OTA::DownloadService", "starting " + job.destFile.getName());
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (destroyed) return;
+                startForeground(NOTIF_ID, buildProgressNotif(job));
+                deliverChanged(job);
+            }
+        });
+        return job;
+    }
+
+    private synchronized void finishJob(final DownloadJob job, int result) {
+        job.result = result;
+        if (result == Downloader.RESULT_OK) {
+            job.state = DownloadJob.STATE_DONE;
+            UpdateHistory.getInstance(this).record(job.info, UpdateHistory.EVENT_DOWNLOADED);
+        } else if (requestedState == DownloadJob.STATE_CANCELLED) {
+            job.state = DownloadJob.STATE_CANCELLED;
+        } else if (requestedState == DownloadJob.STATE_QUEUED) {
+            job.state = DownloadJob.STATE_QUEUED;
+        } else if (result == Downloader.RESULT_INTERRUPTED) {
+            job.state = DownloadJob.STATE_PAUSED;
+        } else {
+            job.state = DownloadJob.STATE_FAILED;
+        }
+        Log.v("OTA::DownloadService", job.destFile.getName() + " stopped with result " + result + ", state " + job.state);
+
+        if (job.state == DownloadJob.STATE_PAUSED || job.state == DownloadJob.STATE_QUEUED) {
+            store.setState(job);
+        } else {
+            store.remove(job);
+            if (job.state == DownloadJob.STATE_CANCELLED) Downloader.discardPartial(job.destFile);
+        }
+        current = null;
+        downloader = null;
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (destroyed) return;
+                stopForeground(true);
+                showFinishedNotif(job);
+                if (job.state == DownloadJob.STATE_DONE && !listeners.isEmpty()) {
+                    screenLock.acquire(Config.WAKE_TIMEOUT);
+                }
+                deliverChanged(job);
+            }
+        });
+    }
+
+    private void postProgress(final DownloadJob job, final long rate, final long eta) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (destroyed) return;
+                long now = System.currentTimeMillis();
+                if (now - lastNotif >= NOTIF_INTERVAL && job.state == DownloadJob.STATE_RUNNING) {
+                    lastNotif = now;
+                    nm.notify(NOTIF_ID, buildProgressNotif(job));
+                }
+                for (Listener listener : new ArrayList<Listener>(listeners)) {
+                    listener.onProgress(job, rate, eta);
+                }
+            }
+        });
+    }
+
+    private void notifyChanged(final DownloadJob job) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!destroyed) deliverChanged(job);
+            }
+        });
+    }
+
+    private void deliverChanged(DownloadJob job) {
+        for (Listener listener : new ArrayList<Listener>(listeners)) {
+            listener.onJobChanged(job);
+        }
+    }
+
+    private Notification buildProgressNotif(DownloadJob job) {
+        Notification.Builder builder = new Notification.Builder(this);
+        builder.setContentIntent(getActivityIntent(OTAUpdaterActivity.class));
+        builder.setContentTitle(getString(R.string.alert_downloading));
+        builder.setContentText(job.info.romName + " " + job.info.version);
+        builder.setSmallIcon(android.R.drawable.stat_sys_download);
+        builder.setOngoing(true);
+        builder.setOnlyAlertOnce(true);
+        if (job.total > 0) {
+            builder.setProgress(1000, (int) (1000L * job.bytes / job.total), false);
+        } else {
+            builder.setProgress(0, 0, true);
+        }
+        builder.addAction(android.R.drawable.ic_media_pause, getString(R.string.alert_pause), getServiceIntent(ACTION_PAUSE, job.id));
+        builder.addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(R.string.alert_cancel), getServiceIntent(ACTION_CANCEL, job.id));
+        return builder.build();
+    }
+
+    /**
+     * Replaces the progress notification with the outcome. Completion and
+     * failure are left to the UI when it's watching.
+     */
+    private void showFinishedNotif(DownloadJob job) {
+        Notification.Builder builder = new Notification.Builder(this);
+        builder.setContentText(job.info.romName + " " + job.info.version);
+        builder.setWhen(System.currentTimeMillis());
+
+        switch (job.state) {
+        case DownloadJob.STATE_PAUSED:
+            builder.setContentTitle(getString(R.string.notif_download_paused));
+            builder.setContentIntent(getActivityIntent(OTAUpdaterActivity.class));
+            builder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+            builder.addAction(android.R.drawable.ic_media_play, getString(R.string.alert_resume), getServiceIntent(ACTION_RESUME, job.id));
+            builder.addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(R.string.alert_cancel), getServiceIntent(ACTION_CANCEL, job.id));
+            break;
+        case DownloadJob.STATE_DONE:
+            if (!listeners.isEmpty()) return;
+            builder.setContentTitle(getString(R.string.notif_download_done));
+            builder.setContentIntent(getActivityIntent(ListFilesActivity.class));
+            builder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+            builder.setAutoCancel(true);
+            break;
+        case DownloadJob.STATE_FAILED:
+            if (!listeners.isEmpty()) return;
+            builder.setContentTitle(getString(R.string.notif_download_failed));
+            builder.setContentIntent(getActivityIntent(OTAUpdaterActivity.class));
+            builder.setSmallIcon(android.R.drawable.stat_notify_error);
+            builder.setAutoCancel(true);
+            break;
+        default:
+            return;
+        }
+        nm.notify(NOTIF_ID, builder.build());
+    }
+
+    private void showWaitingNotif(DownloadJob job, int reason) {
+        Notification.Builder builder = new Notification.Builder(this);
+        builder.setContentTitle(getString(R.string.notif_download_waiting));
+        builder.setContentText(getString(DownloadPolicy.getReasonText(reason)));
+        builder.setContentIntent(getActivityIntent(OTAUpdaterActivity.class));
+        builder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+        builder.setWhen(System.currentTimeMillis());
+        builder.setOnlyAlertOnce(true);
+        builder.addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(R.string.alert_cancel), getServiceIntent(ACTION_CANCEL, job.id));
+        nm.notify(NOTIF_ID, builder.build());
+    }
+
+    private PendingIntent getActivityIntent(Class<?> cls) {
+        Intent i = new Intent(this, cls);
+        i.setAction(Intent.ACTION_MAIN);
+        return PendingIntent.getActivity(this, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private PendingIntent getServiceIntent(String action, long id) {
+        return PendingIntent.getService(this, (int) id, getJobIntent(this, action, id), PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
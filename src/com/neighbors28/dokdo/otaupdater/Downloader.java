@@ -0,0 +1,644 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * Downloads one package into its final place: reuses a verified zip already
+ * there, applies a delta or block sync when the release offers one, and
+ * otherwise resumes or starts the full download. Runs synchronously on the
+ * calling thread; {@link DownloadService} owns the thread.
+ */
+public class Downloader {
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_MD5_MISMATCH = 1;
+    public static final int RESULT_INTERRUPTED = 2;
+    public static final int RESULT_NO_SPACE = 3;
+    public static final int RESULT_ERROR = -1;
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 5000;
+    private static final long PROGRESS_INTERVAL = 500;
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final String PATCHED_SUFFIX = ".patched" + PartialDownload.PART_SUFFIX;
+    private static final String BLOCKS_SUFFIX = ".blocks" + PartialDownload.PART_SUFFIX;
+    private static final String BLOCKS_STATE_SUFFIX = ".blocks" + PartialDownload.INFO_SUFFIX;
+
+    public static interface Listener {
+        void onIndeterminate();
+        void onProgress(long bytes, long total, long rate, long eta);
+    }
+
+    private final RomInfo info;
+    private final File destFile;
+    private final Listener listener;
+    private final DigestCache digests;
+    private final PackageRetention retention;
+    private final int syncPolicy;
+    private final ProgressReporter progress = new ProgressReporter();
+
+    private volatile boolean cancelled = false;
+    private boolean segmentsDisabled = false;
+    private BlockSync blockSync = null;
+
+    public Downloader(Context ctx, RomInfo info, File destFile, Listener listener) {
+        this.info = info;
+        this.destFile = destFile;
+        this.listener = listener;
+        this.digests = DigestCache.getInstance(ctx);
+        this.retention = PackageRetention.getInstance(ctx);
+        this.syncPolicy = Config.getInstance(ctx).getSyncPolicy();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Deletes everything an unfinished download of destFile left behind.
+     */
+    public static void discardPartial(File destFile) {
+        new PartialDownload(destFile).discard();
+        new PartialDownload(new File(destFile.getPath() + DELTA_SUFFIX)).discard();
+        new File(destFile.getPath() + PATCHED_SUFFIX).delete();
+        new File(destFile.getPath() + BLOCKS_SUFFIX).delete();
+        new File(destFile.getPath() + BLOCKS_STATE_SUFFIX).delete();
+    }
+
+    /**
+     * The package an unfinished download's file belongs to, the inverse of
+     * the names discardPartial cleans up.
+     */
+    public static File getDestFile(File partial) {
+        String path = partial.getPath();
+        String[] suffixes = { PATCHED_SUFFIX, BLOCKS_SUFFIX, BLOCKS_STATE_SUFFIX, DELTA_SUFFIX + PartialDownload.INFO_SUFFIX,
+                DELTA_SUFFIX + PartialDownload.PART_SUFFIX, PartialDownload.INFO_SUFFIX, PartialDownload.PART_SUFFIX };
+        for (String suffix : suffixes) {
+            if (path.endsWith(suffix)) return new File(path.substring(0, path.length() - suffix.length()));
+        }
+        return partial;
+    }
+
+    /**
+     * Returns one of the RESULT_ codes once the package is in place or the
+     * download has given up.
+     */
+    public int run() {
+        String[] algorithms = info.getHashAlgorithms();
+        if (destFile.exists()) {
+            String[] oldHashes = new String[algorithms.length];
+            boolean cached = true;
+            for (int q = 0; q < algorithms.length; q++) {
+                oldHashes[q] = digests.lookup(destFile, algorithms[q]);
+                if (oldHashes[q] == null) cached = false;
+            }
+
+            if (cached) {
+                Log.v("OTA::Download", "Found old zip, using cached digests");
+            } else {
+                Log.v("OTA::Download", "Found old zip, checking digests");
+                try {
+                    FileHasher hasher = new FileHasher(algorithms);
+                    hasher.hashFile(destFile);
+                    oldHashes = hasher.digest();
+                    storeHashes(algorithms, oldHashes);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    oldHashes = null;
+                }
+            }
+
+            if (oldHashes != null && verifyHashes(algorithms, oldHashes)) {
+                retention.touch(destFile);
+                return RESULT_OK;
+            }
+            digests.remove(destFile);
+            destFile.delete();
+        }
+
+        if (info.hasDelta()) {
+            listener.onIndeterminate();
+            File base = DeltaPatch.findBase(destFile.getParentFile(), info.deltaBaseMd5, digests);
+            if (base != null) {
+                Log.v("OTA::Download", "Found delta base " + base.getName());
+                retention.touch(base);
+                int result = runAttempts(null, base);
+                if (result == RESULT_OK || result == RESULT_INTERRUPTED || result == RESULT_NO_SPACE) return result;
+                Log.w("OTA::Download", "Delta update failed, falling back to full download");
+            }
+        }
+
+        PartialDownload part = new PartialDownload(destFile);
+        if (part.load(info.url)) {
+            Log.v("OTA::Download", "Found partial download, " + part.getResumeOffset() + " bytes on disk");
+        } else if (info.blocksUrl != null && !findOldPackages().isEmpty()) {
+            int result = runAttempts(null, null);
+            if (result == RESULT_OK || result == RESULT_INTERRUPTED || result == RESULT_NO_SPACE) return result;
+            Log.w("OTA::Download", "Block sync failed, falling back to full download");
+        }
+        return runAttempts(part, null);
+    }
+
+    /**
+     * Runs the full download of part, the patch against deltaBase or, with
+     * neither, the block sync, retrying transient failures.
+     */
+    private int runAttempts(PartialDownload part, File deltaBase) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                if (deltaBase != null) return downloadDelta(deltaBase);
+                if (part != null) return download(part);
+                return downloadBlocks();
+            } catch (PartialDownload.NoSpaceException e) {
+                Log.w("OTA::Download", "Not enough space: " + e.getMessage());
+                return RESULT_NO_SPACE;
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (isCancelled()) return RESULT_INTERRUPTED;
+                if (attempt == MAX_ATTEMPTS) break;
+
+                Log.v("OTA::Download", "Download failed, retrying (attempt " + (attempt + 1) + ")");
+                try {
+                    Thread.sleep(RETRY_DELAY * attempt);
+                } catch (InterruptedException ie) {
+                    return RESULT_INTERRUPTED;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+        return RESULT_ERROR;
+    }
+
+    private int download(PartialDownload part) throws Exception {
+        FileHasher hasher = new FileHasher(info.getHashAlgorithms());
+        int result = fetch(part, info.url, hasher);
+        if (result != RESULT_OK) return result;
+        return finish(part, hasher);
+    }
+
+    /**
+     * Downloads url into part, feeding every byte to hasher. Returns RESULT_OK once
+     * the whole file is in the .part file, or one of the other result codes.
+     */
+    private int fetch(PartialDownload part, String url, FileHasher hasher) throws Exception {
+        if (part.isComplete()) {
+            Log.v("OTA::Download", "Partial download already complete, verifying");
+            part.digestExisting(hasher);
+            return RESULT_OK;
+        }
+        if (part.isSegmented()) {
+            return fetchSegmented(part, url, hasher);
+        }
+
+        InputStream is = null;
+        PartWriter writer = null;
+        TransferBuffer tb = null;
+        try {
+            URL getUrl = new URL(url);
+            Log.v("OTA::Download", "downloading from: " + getUrl);
+            Log.d("OTA::Download", "downloading to: " + part.getDestFile().getAbsolutePath());
+
+            URLConnection conn = getUrl.openConnection();
+
+            // Start
+            if (getUrl.toString().contains("goo.im")) {
+                segmentsDisabled = true;
+
+                // do a dl then wait for timer
+                conn.connect();
+                Log.v("OTA::Download", "Waiting out timer");
+                listener.onIndeterminate(); // pending on dialog
+
+                // dl the catch page then wait
+                is = new BufferedInputStream(conn.getInputStream());
+                byte[] buf = new byte[4096];
+                while (is.read(buf) != -1) {
+                    if (isCancelled()) break;
+                }
+                is.close();
+                is = null;
+
+                // got hold page pause
+                try {
+                    Thread.sleep(10500); // pause the async task for 10.5 seconds
+                } catch (InterruptedException e) {
+                    // don't panic and reset the link
+                }
+
+                Log.v("OTA::Download", "Timer Complete, Continuing with File Download");
+
+                getUrl = new URL(url);
+                conn = getUrl.openConnection();
+            }
+
+            // end do your thing as normal
+
+            part.addResumeHeaders(conn);
+            conn.connect();
+
+            boolean resume = conn instanceof HttpURLConnection && part.isResumeResponse((HttpURLConnection) conn);
+            long offset = resume ? part.getResumeOffset() : 0;
+            if (resume) {
+                Log.v("OTA::Download", "Resuming download at " + offset);
+            } else if (part.getResumeOffset() > 0) {
+                Log.v("OTA::Download", "Server ignored range request, restarting download");
+            }
+
+            final long contentLength = getContentLength(conn);
+            final long lengthOfFile = contentLength < 0 ? -1 : offset + contentLength;
+
+            if (!makeRoom(lengthOfFile < 0 ? -1 : getGrowth(part.getPartFile(), lengthOfFile))) {
+                return RESULT_NO_SPACE;
+            }
+
+            startProgress(offset, lengthOfFile);
+
+            if (resume) {
+                part.digestExisting(hasher);
+            } else {
+                part.saveValidator(conn, lengthOfFile);
+                if (!segmentsDisabled && SegmentedDownload.canSegment(conn, part, Config.DL_SEGMENTS)) {
+                    ((HttpURLConnection) conn).disconnect();
+                    return fetchSegmented(part, url, hasher);
+                }
+            }
+
+            is = conn.getInputStream();
+            writer = new PartWriter(part, offset, lengthOfFile, syncPolicy);
+            tb = new TransferBuffer(TransferBuffer.getBlockSize(StorageLocation.getDownloadPath()), offset);
+
+            int nRead = -1;
+            long totalRead = offset;
+            while ((nRead = tb.readFrom(is, Integer.MAX_VALUE, hasher)) != -1) {
+                if (isCancelled()) break;
+                writer.write(tb);
+                totalRead += nRead;
+                reportProgress(totalRead, lengthOfFile);
+            }
+
+            if (isCancelled()) {
+                return RESULT_INTERRUPTED;
+            }
+            if (lengthOfFile >= 0 && totalRead < lengthOfFile) {
+                throw new IOException("connection closed after " + totalRead + " of " + lengthOfFile + " bytes");
+            }
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+            if (writer != null) {
+                // whatever made it into the buffer is still good for a resume
+                try { writer.close(tb); }
+                catch (Exception e) { }
+            }
+            if (tb != null) tb.release();
+        }
+        return RESULT_OK;
+    }
+
+    private int fetchSegmented(PartialDownload part, String url, FileHasher hasher) throws Exception {
+        final long lengthOfFile = part.getLength();
+        if (!makeRoom(getGrowth(part.getPartFile(), lengthOfFile))) {
+            return RESULT_NO_SPACE;
+        }
+
+        SegmentedDownload segDl = new SegmentedDownload(part, new URL(url), Config.DL_SEGMENTS, syncPolicy);
+        try {
+            try {
+                segDl.start();
+                startProgress(segDl.getBytesDone(), lengthOfFile);
+                while (!segDl.await(PROGRESS_INTERVAL)) {
+                    if (isCancelled()) segDl.cancel();
+                    reportProgress(segDl.getBytesDone(), lengthOfFile);
+                }
+            } finally {
+                segDl.finish();
+            }
+        } catch (SegmentedDownload.RangeNotSupportedException e) {
+            Log.v("OTA::Download", "Server refused range request, falling back to single stream: " + e.getMessage());
+            part.discard();
+            segmentsDisabled = true;
+            return fetch(part, url, hasher);
+        }
+
+        if (isCancelled()) {
+            return RESULT_INTERRUPTED;
+        }
+        if (!segDl.isComplete()) {
+            throw new IOException("segmented download stopped early");
+        }
+
+        // ranges arrive out of order, so the digests have to be taken off the finished file
+        part.digestExisting(hasher);
+        return RESULT_OK;
+    }
+
+    /**
+     * Fetches the patch from base to the new package and rebuilds the
+     * package from it. The result is checked like a full download, so a
+     * bad patch just means falling back to the full zip.
+     */
+    private int downloadDelta(File base) throws Exception {
+        PartialDownload patch = new PartialDownload(new File(destFile.getPath() + DELTA_SUFFIX));
+        if (patch.load(info.deltaUrl)) {
+            Log.v("OTA::Download", "Found partial patch, " + patch.getResumeOffset() + " bytes on disk");
+        }
+
+        FileHasher patchHasher = new FileHasher(FileHasher.MD5);
+        int result = fetch(patch, info.deltaUrl, patchHasher);
+        if (result != RESULT_OK) return result;
+
+        String patchMd5 = patchHasher.digest()[0];
+        if (info.deltaMd5 != null && !info.deltaMd5.equalsIgnoreCase(patchMd5)) {
+            Log.w("OTA::Download", "downloaded patch md5 " + patchMd5 + " doesn't match " + info.deltaMd5);
+            patch.discard();
+            return RESULT_MD5_MISMATCH;
+        }
+
+        File patched = new File(destFile.getPath() + PATCHED_SUFFIX);
+        FileHasher hasher = new FileHasher(info.getHashAlgorithms());
+        boolean applied = false;
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(patch.getPartFile()));
+            DeltaPatch delta = new DeltaPatch(is);
+            if (!makeRoom(getGrowth(patched, delta.getNewSize()))) {
+                return RESULT_NO_SPACE;
+            }
+
+            final long lengthOfFile = delta.getNewSize();
+            startProgress(0, lengthOfFile);
+            Log.v("OTA::Download", "applying patch to " + base.getName());
+
+            os = new BufferedOutputStream(new FileOutputStream(patched), 65536);
+            applied = delta.apply(base, os, hasher, new DeltaPatch.ProgressListener() {
+                @Override
+                public boolean onProgress(long written, long total) {
+                    reportProgress(written, total);
+                    return !isCancelled();
+                }
+            });
+            os.flush();
+        } catch (IOException e) {
+            // the patch on disk is no good, fetch it again on the next attempt
+            patch.discard();
+            throw e;
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+            if (os != null) {
+                try { os.close(); }
+                catch (Exception e) { }
+            }
+            if (!applied) patched.delete();
+        }
+
+        if (!applied) {
+            return RESULT_INTERRUPTED;
+        }
+        patch.discard();
+        return finish(patched, hasher);
+    }
+
+    /**
+     * Rebuilds the package from matching blocks of the packages already on
+     * disk, fetching only the blocks none of them has. Progress is saved next
+     * to the output, so a later run carries on from there.
+     */
+    private int downloadBlocks() throws Exception {
+        File synced = new File(destFile.getPath() + BLOCKS_SUFFIX);
+        File state = new File(destFile.getPath() + BLOCKS_STATE_SUFFIX);
+        if (blockSync == null) {
+            Log.v("OTA::Download", "fetching block checksums from: " + info.blocksUrl);
+            URLConnection conn = new URL(info.blocksUrl).openConnection();
+            InputStream is = new BufferedInputStream(conn.getInputStream());
+            try {
+                blockSync = new BlockSync(is);
+            } finally {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+
+            if (synced.length() != blockSync.getLength()) state.delete();
+            if (blockSync.resume(state)) {
+                Log.v("OTA::Download", "Found partial block sync, " + blockSync.getDoneBytes() + " bytes in place");
+            } else {
+                synced.delete();
+            }
+        }
+
+        final long lengthOfFile = blockSync.getLength();
+        BlockSync.ProgressListener blockListener = new BlockSync.ProgressListener() {
+            @Override
+            public boolean onProgress(long done, long total) {
+                reportProgress(done, total);
+                return !isCancelled();
+            }
+        };
+
+        RandomAccessFile out = new RandomAccessFile(synced, "rw");
+        try {
+            if (out.length() != lengthOfFile) {
+                if (!makeRoom(getGrowth(synced, lengthOfFile))) {
+                    return RESULT_NO_SPACE;
+                }
+                out.setLength(lengthOfFile);
+            }
+
+            startProgress(blockSync.getDoneBytes(), lengthOfFile);
+            for (File old : findOldPackages()) {
+                if (blockSync.isComplete()) break;
+                if (blockSync.isScanned(old)) continue;
+                Log.v("OTA::Download", "looking for blocks in " + old.getName());
+                if (!blockSync.scan(old, out, blockListener)) return RESULT_INTERRUPTED;
+            }
+
+            int fsBlockSize = TransferBuffer.getBlockSize(StorageLocation.getDownloadPath());
+            if (!blockSync.fetchMissing(new URL(info.url), out, fsBlockSize, blockListener)) return RESULT_INTERRUPTED;
+        } catch (SegmentedDownload.RangeNotSupportedException e) {
+            // without ranges there's nothing to gain over the full download
+            Log.v("OTA::Download", "Server refused range request: " + e.getMessage());
+            blockSync = null;
+            try { out.close(); }
+            catch (Exception ex) { }
+            synced.delete();
+            state.delete();
+            return RESULT_ERROR;
+        } finally {
+            if (blockSync != null) {
+                try { blockSync.checkpoint(out); }
+                catch (Exception e) { }
+            }
+            try { out.close(); }
+            catch (Exception e) { }
+        }
+        state.delete();
+
+        Log.v("OTA::Download", "block sync reused " + blockSync.getReusedBytes() + " bytes, fetched "
+                + blockSync.getFetchedBytes() + " of " + blockSync.getLength());
+
+        // blocks land out of order, so the digests have to be taken off the finished file
+        FileHasher hasher = new FileHasher(info.getHashAlgorithms());
+        hasher.hashFile(synced);
+        return finish(synced, hasher);
+    }
+
+    private List<File> findOldPackages() {
+        List<File> packages = new ArrayList<File>();
+        File[] files = destFile.getParentFile().listFiles();
+        if (files == null) return packages;
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".zip") && !file.equals(destFile)) {
+                packages.add(file);
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * How many bytes file still has to grow by to be length long. Whatever
+     * it already holds, resumed or preallocated, is gone from the free space
+     * and counted against the quota already, so only the rest is needed.
+     */
+    private static long getGrowth(File file, long length) {
+        return Math.max(0, length - file.length());
+    }
+
+    /**
+     * Whether bytes more fit on the sdcard, evicting old packages if they
+     * don't yet.
+     */
+    private boolean makeRoom(long bytes) {
+        if (bytes < getAvailableSpace() - Config.MIN_FREE_SPACE) return true;
+        retention.enforce(bytes, destFile);
+        return bytes < getAvailableSpace();
+    }
+
+    /**
+     * The Content-Length conn reported, or -1. URLConnection.getContentLength()
+     * is an int and gives up on anything past 2 GB.
+     */
+    private static long getContentLength(URLConnection conn) {
+        String length = conn.getHeaderField("Content-Length");
+        if (length == null) return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getAvailableSpace() {
+        StatFs stat = new StatFs(StorageLocation.getDownloadPath());
+        return ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
+    }
+
+    private void startProgress(long bytes, long total) {
+        progress.reset(bytes);
+        listener.onProgress(bytes, total, 0, -1);
+    }
+
+    private void reportProgress(long bytes, long total) {
+        if (!progress.update(bytes, total)) return;
+        listener.onProgress(bytes, total, progress.getRate(), progress.getEta(bytes, total));
+    }
+
+    private int finish(PartialDownload part, FileHasher hasher) {
+        String[] algorithms = hasher.getAlgorithms();
+        String[] hashes = hasher.digest();
+        if (!verifyHashes(algorithms, hashes)) {
+            part.discard();
+            return RESULT_MD5_MISMATCH;
+        }
+
+        if (!part.commit()) {
+            Log.w("OTA::Download", "couldn't move finished download to " + destFile);
+            return RESULT_ERROR;
+        }
+        storeHashes(algorithms, hashes);
+        return RESULT_OK;
+    }
+
+    /**
+     * Like finish(PartialDownload, FileHasher), for a package that was put
+     * together in file.
+     */
+    private int finish(File file, FileHasher hasher) {
+        String[] algorithms = hasher.getAlgorithms();
+        String[] hashes = hasher.digest();
+        if (!verifyHashes(algorithms, hashes)) {
+            file.delete();
+            return RESULT_MD5_MISMATCH;
+        }
+
+        destFile.delete();
+        if (!file.renameTo(destFile)) {
+            Log.w("OTA::Download", "couldn't move finished download to " + destFile);
+            file.delete();
+            return RESULT_ERROR;
+        }
+        storeHashes(algorithms, hashes);
+        return RESULT_OK;
+    }
+
+    private boolean verifyHashes(String[] algorithms, String[] hashes) {
+        for (int q = 0; q < algorithms.length; q++) {
+            Log.v("OTA::Download", "downloaded " + algorithms[q] + ": " + hashes[q]);
+            String expected = info.getExpectedHash(algorithms[q]);
+            if (!hashes[q].equalsIgnoreCase(expected)) {
+                Log.w("OTA::Download", "downloaded " + algorithms[q] + " doesn't match " + expected);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void storeHashes(String[] algorithms, String[] hashes) {
+        for (int q = 0; q < algorithms.length; q++) {
+            digests.store(destFile, algorithms[q], hashes[q]);
+        }
+    }
+}
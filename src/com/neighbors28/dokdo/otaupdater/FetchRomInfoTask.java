@@ -17,17 +17,21 @@
 
 package com.neighbors28.dokdo.otaupdater;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
-import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.AsyncTask;
@@ -37,14 +41,24 @@ public class FetchRomInfoTask extends AsyncTask<Void, Void, RomInfo> {
     private RomInfoListener callback = null;
     private Context context = null;
     private String error = null;
+    private boolean force = false;
 
     public FetchRomInfoTask(Context ctx) {
         this(ctx, null);
     }
 
     public FetchRomInfoTask(Context ctx, RomInfoListener callback) {
+        this(ctx, callback, false);
+    }
+
+    /**
+     * @param force revalidate with the server even if the cached manifest is
+     *              still within its TTL
+     */
+    public FetchRomInfoTask(Context ctx, RomInfoListener callback, boolean force) {
         this.context = ctx;
         this.callback = callback;
+        this.force = force;
     }
 
     @Override
@@ -58,43 +72,66 @@ public class FetchRomInfoTask extends AsyncTask<Void, Void, RomInfo> {
             error = context.getString(R.string.alert_unsupported_title);
             return null;
         }
+
+        ArrayList<BasicNameValuePair> params = new ArrayList<BasicNameValuePair>();
+        params.add(new BasicNameValuePair("device", android.os.Build.DEVICE.toLowerCase()));
+        params.add(new BasicNameValuePair("rom", Utils.getRomID()));
+        String url = Config.PULL_URL + "?" + URLEncodedUtils.format(params, "UTF-8");
+
+        ManifestCache cache = ManifestCache.getInstance(context);
+        if (!force) {
+            RomInfo cached = cache.getFresh(url);
+            if (cached != null) {
+                Log.v("OTA::Fetch", "using cached manifest");
+                return cached;
+            }
+        }
+
         if (!Utils.dataAvailable(context)) {
             error = context.getString(R.string.alert_nodata_title);
             return null;
         }
 
         try {
-            ArrayList<BasicNameValuePair> params = new ArrayList<BasicNameValuePair>();
-            params.add(new BasicNameValuePair("device", android.os.Build.DEVICE.toLowerCase()));
-            params.add(new BasicNameValuePair("rom", Utils.getRomID()));
-
-            HttpClient client = new DefaultHttpClient();
-            HttpGet get = new HttpGet(Config.PULL_URL + "?" + URLEncodedUtils.format(params, "UTF-8"));
+            HttpClient client = UpdaterHttpClient.getInstance();
+            HttpGet get = new HttpGet(url);
+            cache.addConditionalHeaders(url, get);
             HttpResponse r = client.execute(get);
             int status = r.getStatusLine().getStatusCode();
             HttpEntity e = r.getEntity();
-            if (status == 200) {
-                String data = EntityUtils.toString(e);
-                JSONObject json = new JSONObject(data);
-
-                if (json.has("error")) {
-                    Log.e("OTA::Fetch", json.getString("error"));
-                    error = json.getString("error");
-                    return null;
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                if (e != null) e.consumeContent();
+                RomInfo cached = cache.revalidated(url);
+                if (cached != null) {
+                    Log.v("OTA::Fetch", "manifest not modified");
+                    return cached;
                 }
-
-                return new RomInfo(
-                        json.getString("rom"),
-                        json.getString("version"),
-                        json.getString("changelog"),
-                        json.getString("url"),
-                        json.getString("md5"),
-                        Utils.parseDate(json.getString("date")));
+                error = "Server responded with error " + status;
+                return null;
+            } else if (status == 200) {
+                File staging = cache.createStagingFile();
+                InputStream is = null;
+                RomInfo info = null;
+                try {
+                    is = new TeeInputStream(e.getContent(), new FileOutputStream(staging));
+                    info = ManifestReader.readUpdate(is);
+                } finally {
+                    if (is != null) {
+                        try { is.close(); }
+                        catch (Exception ex) { }
+                    }
+                    if (info == null) staging.delete();
+                }
+                cache.store(url, staging, r, info);
+                return info;
             } else {
                 if (e != null) e.consumeContent();
                 error = "Server responded with error " + status;
                 return null;
             }
+        } catch (ManifestReader.ManifestException e) {
+            Log.e("OTA::Fetch", "bad manifest: " + e.getMessage());
+            error = e.getMessage();
         } catch (Exception e) {
             e.printStackTrace();
             error = e.getMessage();
@@ -103,6 +140,48 @@ public class FetchRomInfoTask extends AsyncTask<Void, Void, RomInfo> {
         return null;
     }
 
+    /**
+     * Copies everything read through it into out, so the manifest can be
+     * cached while it is being parsed.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream out;
+        private boolean closed = false;
+
+        public TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) out.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int nRead = super.read(buf, off, len);
+            if (nRead > 0) out.write(buf, off, nRead);
+            return nRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                // drain whatever the parser didn't need so the cached copy is whole
+                byte[] buf = new byte[4096];
+                while (read(buf, 0, buf.length) != -1) { }
+            } finally {
+                out.close();
+                super.close();
+            }
+        }
+    }
+
     @Override
     public void onPostExecute(RomInfo result) {
         if (callback != null) {
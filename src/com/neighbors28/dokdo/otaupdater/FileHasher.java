@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes any combination of MD5, SHA-1 and SHA-256 over the same bytes, so
+ * a package only has to be read once no matter how many digests are wanted.
+ */
+public class FileHasher {
+    public static final String MD5 = "MD5";
+    public static final String SHA1 = "SHA-1";
+    public static final String SHA256 = "SHA-256";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+
+    public FileHasher(String... algorithms) throws NoSuchAlgorithmException {
+        this.algorithms = algorithms;
+        this.digests = new MessageDigest[algorithms.length];
+        for (int q = 0; q < algorithms.length; q++) {
+            digests[q] = MessageDigest.getInstance(algorithms[q]);
+        }
+    }
+
+    /**
+     * Maps the names a manifest may use ("sha256", "SHA1", ...) onto the
+     * supported algorithms, or null if the algorithm isn't supported.
+     */
+    public static String normalize(String algorithm) {
+        if (algorithm == null) return null;
+        String name = algorithm.replace("-", "").replace("_", "").toUpperCase();
+        if (name.equals("MD5")) return MD5;
+        if (name.equals("SHA1")) return SHA1;
+        if (name.equals("SHA256")) return SHA256;
+        return null;
+    }
+
+    public String[] getAlgorithms() {
+        return algorithms;
+    }
+
+    public void update(byte[] buf, int off, int len) {
+        for (MessageDigest digest : digests) {
+            digest.update(buf, off, len);
+        }
+    }
+
+    public void update(ByteBuffer buf) {
+        int pos = buf.position();
+        for (MessageDigest digest : digests) {
+            buf.position(pos);
+            digest.update(buf);
+        }
+    }
+
+    public void hashFile(File file) throws IOException {
+        hashFile(file, Long.MAX_VALUE);
+    }
+
+    /**
+     * Hashes the first length bytes of file, or all of it if it is shorter.
+     */
+    public void hashFile(File file, long length) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            long left = length;
+            while (left > 0) {
+                int n = is.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n == -1) break;
+                update(buf, 0, n);
+                left -= n;
+            }
+        } finally {
+            try { is.close(); }
+            catch (Exception e) { }
+        }
+    }
+
+    public void reset() {
+        for (MessageDigest digest : digests) {
+            digest.reset();
+        }
+    }
+
+    /**
+     * Finishes all digests, returning their hex strings in the order the
+     * algorithms were given.
+     */
+    public String[] digest() {
+        String[] result = new String[digests.length];
+        for (int q = 0; q < digests.length; q++) {
+            result[q] = Utils.byteArrToStr(digests[q].digest());
+        }
+        return result;
+    }
+}
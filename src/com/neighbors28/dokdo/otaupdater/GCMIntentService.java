@@ -24,7 +24,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
@@ -51,8 +50,9 @@ public class GCMIntentService extends GCMBaseIntentService {
     protected void onMessage(Context ctx, Intent payload) {
         final Config cfg = Config.getInstance(getApplicationContext());
         RomInfo info = RomInfo.fromIntent(payload);
+        ManifestCache.getInstance(getApplicationContext()).invalidate();
 
-        if (!Utils.isUpdate(info)) {
+        if (!Utils.isUpdate(ctx, info)) {
             Log.v("OTA::GCM", "got GCM message, not update");
             cfg.clearStoredUpdate();
             return;
@@ -61,7 +61,7 @@ public class GCMIntentService extends GCMBaseIntentService {
         cfg.storeUpdate(info);
         if (cfg.getShowNotif()) {
             Log.v("OTA::GCM", "got GCM message");
-            Utils.showUpdateNotif(ctx, info);
+            UpdateCheckReceiver.showUpdateNotif(ctx, info);
         } else {
             Log.v("OTA::GCM", "got GCM message, notif not shown");
         }
@@ -78,7 +78,7 @@ public class GCMIntentService extends GCMBaseIntentService {
         params.add(new BasicNameValuePair("device_id", ((TelephonyManager) getSystemService(TELEPHONY_SERVICE)).getDeviceId()));
 
         try {
-            HttpClient http = new DefaultHttpClient();
+            HttpClient http = UpdaterHttpClient.getInstance();
             HttpPost req = new HttpPost(Config.GCM_REGISTER_URL);
             req.setEntity(new UrlEncodedFormEntity(params));
 
@@ -109,13 +109,22 @@ public class GCMIntentService extends GCMBaseIntentService {
                         json.getString("changelog"),
                         json.getString("url"),
                         json.getString("md5"),
-                        Utils.parseDate(json.getString("date")));
+                        Utils.parseDate(json.getString("date")),
+                        json.optString("hash_algo", null),
+                        json.optString("hash", null));
+                info.blocksUrl = json.optString("blocks", null);
+                JSONObject delta = json.optJSONObject("delta");
+                if (delta != null) {
+                    info.deltaUrl = delta.optString("url", null);
+                    info.deltaBaseMd5 = delta.optString("base_md5", null);
+                    info.deltaMd5 = delta.optString("md5", null);
+                }
 
                 final Config cfg = Config.getInstance(getApplicationContext());
-                if (Utils.isUpdate(info)) {
+                if (Utils.isUpdate(getApplicationContext(), info)) {
                     cfg.storeUpdate(info);
                     if (cfg.getShowNotif()) {
-                    	Utils.showUpdateNotif(getApplicationContext(), info);
+                    	UpdateCheckReceiver.showUpdateNotif(getApplicationContext(), info);
                     } else {
                         Log.v("OTA::GCMRegister", "got update response, notif not shown");
                     }
@@ -139,10 +148,11 @@ public class GCMIntentService extends GCMBaseIntentService {
         params.add(new BasicNameValuePair("reg_id", regID));
 
         try {
-            HttpClient http = new DefaultHttpClient();
+            HttpClient http = UpdaterHttpClient.getInstance();
             HttpPost req = new HttpPost(Config.GCM_REGISTER_URL);
             req.setEntity(new UrlEncodedFormEntity(params));
             HttpResponse resp = http.execute(req);
+            if (resp.getEntity() != null) resp.getEntity().consumeContent();
             if (resp.getStatusLine().getStatusCode() != 200) {
                 Log.w("OTA::GCMRegister", "unregistration response non-200");
             }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the properties from a single run of getprop, which dumps every
+ * property as "[name]: [value]".
+ */
+public class GetpropPropertyProvider implements SystemPropertyProvider {
+    private static final String GETPROP = "/system/bin/getprop";
+
+    private final String[] command;
+
+    public GetpropPropertyProvider() {
+        this(GETPROP);
+    }
+
+    public GetpropPropertyProvider(String... command) {
+        this.command = command;
+    }
+
+    @Override
+    public Map<String, String> load() {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+
+        Process p = null;
+        BufferedReader in = null;
+        try {
+            p = pb.start();
+            in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            HashMap<String, String> props = new HashMap<String, String>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                parseLine(line, props);
+            }
+            return p.waitFor() == 0 ? props : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (Exception e) { }
+            }
+            // reap it either way, or every failed read leaves a zombie behind
+            if (p != null) p.destroy();
+        }
+        return null;
+    }
+
+    static void parseLine(String line, Map<String, String> props) {
+        if (!line.startsWith("[" + OTA_PROP_PREFIX)) return;
+        int nameEnd = line.indexOf("]: [");
+        if (nameEnd < 0 || !line.endsWith("]")) return;
+
+        String value = line.substring(nameEnd + 4, line.length() - 1);
+        if (value.length() == 0) return;
+        props.put(line.substring(1, nameEnd), value);
+    }
+}
@@ -19,64 +19,125 @@ package com.neighbors28.dokdo.otaupdater;
 
 import java.io.DataOutputStream;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.List;
 
 import android.app.AlertDialog;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.PowerManager;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.TextView;
 import android.widget.Toast;
 
-public class ListFilesActivity extends ListActivity implements AdapterView.OnItemClickListener, AdapterView.OnItemLongClickListener {
-    private ArrayAdapter<String> fileListAdapter;
-    private ArrayList<String> fileList = new ArrayList<String>();
-    private ArrayList<String> pathList = new ArrayList<String>();
-
-    public static final int DL_PATH_LEN = Config.DL_PATH.length();
-
-    private void listFiles(File dir) {
-        fileList.clear();
-        pathList.clear();
-        File[] files = dir.listFiles();
-        if (files == null) return;
-        for (File file : files) {
-            fileList.add(file.getPath().substring(DL_PATH_LEN));
-            pathList.add(file.getPath());
-        }
-        fileListAdapter.notifyDataSetChanged();
-    };
+public class ListFilesActivity extends ListActivity implements AdapterView.OnItemClickListener, AdapterView.OnItemLongClickListener, DownloadIndex.Listener {
+    private ArrayAdapter<DownloadIndex.Item> fileListAdapter;
+    private DownloadIndex index;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        Config.DL_PATH_FILE.mkdirs(); //just in case
-        String extState = Environment.getExternalStorageState();
-        if ((!extState.equals(Environment.MEDIA_MOUNTED) && !extState.equals(Environment.MEDIA_MOUNTED_READ_ONLY)) || !Config.DL_PATH_FILE.exists()) {
-            Toast.makeText(this, extState.equals(Environment.MEDIA_SHARED) ? R.string.toast_nosd_shared : R.string.toast_nosd_error, Toast.LENGTH_LONG).show();
-            finish();
-        }
+        StorageLocation.getDownloadDir(new StorageLocation.Callback() {
+            @Override
+            public void onResolved(File dir) {
+                if (isFinishing()) return;
+                dir.mkdirs(); //just in case
+                String extState = Environment.getExternalStorageState();
+                if ((!extState.equals(Environment.MEDIA_MOUNTED) && !extState.equals(Environment.MEDIA_MOUNTED_READ_ONLY)) || !dir.exists()) {
+                    Toast.makeText(ListFilesActivity.this, extState.equals(Environment.MEDIA_SHARED) ? R.string.toast_nosd_shared : R.string.toast_nosd_error, Toast.LENGTH_LONG).show();
+                    finish();
+                }
+            }
+        });
 
-        fileListAdapter = new ArrayAdapter<String>(this, R.layout.row, R.id.filename, fileList);
+        fileListAdapter = new ArrayAdapter<DownloadIndex.Item>(this, R.layout.row, R.id.filename) {
+            @Override
+            public View getView(int position, View convertView, ViewGroup parent) {
+                View row = super.getView(position, convertView, parent);
+                ((TextView) row.findViewById(R.id.details)).setText(getDetails(getItem(position)));
+                return row;
+            }
+        };
         setListAdapter(fileListAdapter);
-        listFiles(Config.DL_PATH_FILE);
+        index = DownloadIndex.getInstance(this);
 
         this.getListView().setOnItemClickListener(this);
         this.getListView().setOnItemLongClickListener(this);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        index.addListener(this);
+    }
+
+    @Override
+    protected void onPause() {
+        index.removeListener(this);
+        super.onPause();
+    }
+
+    @Override
+    public void onIndexLoaded(List<DownloadIndex.Item> items) {
+        fileListAdapter.setNotifyOnChange(false);
+        fileListAdapter.clear();
+        for (DownloadIndex.Item item : items) {
+            fileListAdapter.add(item);
+        }
+        fileListAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onItemChanged(DownloadIndex.Item item) {
+        fileListAdapter.setNotifyOnChange(false);
+        removeItem(item.file);
+        int pos = 0;
+        while (pos < fileListAdapter.getCount() && fileListAdapter.getItem(pos).compareTo(item) < 0) pos++;
+        fileListAdapter.insert(item, pos);
+        fileListAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onItemRemoved(File file) {
+        if (removeItem(file)) fileListAdapter.notifyDataSetChanged();
+    }
+
+    private boolean removeItem(File file) {
+        for (int q = 0; q < fileListAdapter.getCount(); q++) {
+            DownloadIndex.Item old = fileListAdapter.getItem(q);
+            if (old.file.equals(file)) {
+                fileListAdapter.remove(old);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getDetails(DownloadIndex.Item item) {
+        String size = Formatter.formatFileSize(this, item.size);
+        String date = DateUtils.formatDateTime(this, item.mtime, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME);
+        if (item.info != null) {
+            return getString(R.string.file_details_rom, size, date, item.info.romName, item.info.version);
+        }
+        return getString(R.string.file_details, size, date);
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -114,14 +175,13 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
                         break;
                     }
                     pruneFiles(maxAge);
-                    listFiles(Config.DL_PATH_FILE);
                 }
             });
 
             alert.create().show();
             break;
         case R.id.list_refresh:
-            listFiles(Config.DL_PATH_FILE);
+            index.rescan();
             break;
         }
         return true;
@@ -146,8 +206,7 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
             public void onClick(DialogInterface dialog, int which) {
                 dialog.dismiss();
 
-                String path = pathList.get(pos);
-                final File file = new File(path);
+                final File file = fileListAdapter.getItem(pos).file;
 
                 AlertDialog.Builder alert;
                 switch (which) {
@@ -168,7 +227,7 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
 
                             String newName = input.getText().toString();
                             if (!newName.endsWith(".zip")) newName += ".zip";
-                            File newFile = new File(Config.DL_PATH_FILE, newName);
+                            File newFile = new File(file.getParentFile(), newName);
                             boolean renamed = file.renameTo(newFile);
 
                             if (renamed) {
@@ -176,8 +235,6 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
                             } else {
                                 Toast.makeText(getApplicationContext(), R.string.toast_rename_error, Toast.LENGTH_SHORT).show();
                             }
-
-                            listFiles(Config.DL_PATH_FILE);
                             return;
                         }
                     });
@@ -190,15 +247,7 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
                     alert.create().show();
                     break;
                 case 2:
-                    boolean deleted = file.delete();
-
-                    if (deleted) {
-                        Toast.makeText(getApplicationContext(), R.string.toast_delete, Toast.LENGTH_SHORT).show();
-                    } else {
-                        Toast.makeText(getApplicationContext(), R.string.toast_delete_error, Toast.LENGTH_SHORT).show();
-                    }
-
-                    listFiles(Config.DL_PATH_FILE);
+                    deletePackage(file);
                     break;
                 }
             }
@@ -209,12 +258,86 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
     }
 
     protected static void installFileDialog(final Context ctx, final File file) {
+        final ProgressDialog progress = new ProgressDialog(ctx);
+        progress.setTitle(R.string.alert_verifying);
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(100);
+        progress.setProgress(0);
+        progress.setCancelable(true);
+
+        final AsyncTask<Void, Integer, Integer> task = new AsyncTask<Void, Integer, Integer>() {
+            @Override
+            protected Integer doInBackground(Void... params) {
+                // the retention index and digest cache both read from disk
+                PackageRetention.getInstance(ctx).touch(file);
+                int cached = ZipVerifier.getCachedResult(ctx, file);
+                if (cached != ZipVerifier.RESULT_UNKNOWN) return cached;
+
+                publishProgress(0);
+                return ZipVerifier.verify(ctx, file, new ZipVerifier.ProgressListener() {
+                    @Override
+                    public boolean onProgress(long read, long total) {
+                        publishProgress((int) (read * 100 / total));
+                        return !isCancelled();
+                    }
+                });
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                if (!progress.isShowing()) progress.show();
+                progress.setProgress(values[0]);
+            }
+
+            @Override
+            protected void onPostExecute(Integer result) {
+                if (progress.isShowing()) progress.dismiss();
+                showInstallDialog(ctx, file, result);
+            }
+        };
+        progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            @Override
+            public void onCancel(DialogInterface dialog) {
+                task.cancel(false);
+            }
+        });
+        task.execute();
+    }
+
+    private static void showInstallDialog(final Context ctx, final File file, int result) {
         AlertDialog.Builder alert = new AlertDialog.Builder(ctx);
+        if (!ZipVerifier.isInstallable(result)) {
+            alert.setTitle(R.string.alert_verify_failed);
+            if (result == ZipVerifier.RESULT_CORRUPT) {
+                alert.setMessage(R.string.alert_verify_corrupt);
+            } else if (result == ZipVerifier.RESULT_BAD_SIGNATURE) {
+                alert.setMessage(R.string.alert_verify_bad_signature);
+            } else {
+                alert.setMessage(R.string.alert_verify_error);
+            }
+            alert.setNegativeButton(R.string.alert_cancel, new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    dialog.dismiss();
+                }
+            });
+            alert.create().show();
+            return;
+        }
+
+        String message = ctx.getString(R.string.alert_install_message, file.getAbsolutePath());
+        if (result == ZipVerifier.RESULT_UNSIGNED) {
+            message += "\n\n" + ctx.getString(R.string.alert_install_unsigned);
+        } else if (result == ZipVerifier.RESULT_UNTRUSTED) {
+            message += "\n\n" + ctx.getString(R.string.alert_install_untrusted);
+        }
         alert.setTitle(R.string.alert_install);
-        alert.setMessage(R.string.alert_install_message);
+        alert.setMessage(message);
         alert.setPositiveButton(R.string.alert_install, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
+                // nothing written in the background survives the reboot
+                Config.getInstance(ctx).flush();
                 try {
                     Process p = Runtime.getRuntime().exec("su");
                     DataOutputStream os = new DataOutputStream(p.getOutputStream());
@@ -241,22 +364,43 @@ public class ListFilesActivity extends ListActivity implements AdapterView.OnIte
         alert.create().show();
     }
 
-    private void pruneFiles(long maxAge) {
-        File dir = new File(Config.DL_PATH);
-        File[] files = dir.listFiles();
-
-        boolean success = true;
-        for (File f : files) {
-            final Long lastmodified = f.lastModified();
-            if (lastmodified + maxAge < System.currentTimeMillis()) {
-                if (!f.delete()) success = false;
+    private void deletePackage(final File file) {
+        final PackageRetention retention = PackageRetention.getInstance(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean deleted = retention.delete(file);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (deleted) {
+                            Toast.makeText(getApplicationContext(), R.string.toast_delete, Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(getApplicationContext(), R.string.toast_delete_error, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
             }
-        }
+        }, "OTA::Delete").start();
+    }
 
-        if (success) {
-            Toast.makeText(getApplicationContext(), R.string.toast_prune, Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(getApplicationContext(), R.string.toast_prune_error, Toast.LENGTH_SHORT).show();
-        }
+    private void pruneFiles(final long maxAge) {
+        final PackageRetention retention = PackageRetention.getInstance(this);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final boolean success = retention.pruneOlderThan(maxAge);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (success) {
+                            Toast.makeText(getApplicationContext(), R.string.toast_prune, Toast.LENGTH_SHORT).show();
+                        } else {
+                            Toast.makeText(getApplicationContext(), R.string.toast_prune_error, Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+            }
+        }, "OTA::Prune").start();
     }
 }
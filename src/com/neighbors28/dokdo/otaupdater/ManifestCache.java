@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Last update manifest fetched from the server, together with its validators.
+ * Within Config.MANIFEST_TTL the cached result is used as is; after that the
+ * next check is sent as a conditional GET and a 304 reuses it. Shared by
+ * everything in the process that polls the server.
+ */
+public class ManifestCache {
+    private static final String PREFS_NAME = "manifest_cache";
+    private static final String BODY_NAME = "manifest";
+    private static final String STAGING_SUFFIX = ".tmp";
+
+    private final SharedPreferences PREFS;
+    private final File cacheDir;
+    private final File bodyFile;
+
+    private String url = null;
+    private String etag = null;
+    private String lastModified = null;
+    private long fetched = 0;
+    private RomInfo info = null;
+
+    private ManifestCache(Context ctx) {
+        PREFS = ctx.getSharedPreferences(PREFS_NAME, 0);
+        cacheDir = ctx.getCacheDir();
+        bodyFile = new File(cacheDir, BODY_NAME);
+        deleteStaleStaging();
+
+        url = PREFS.getString("url", null);
+        etag = PREFS.getString("etag", null);
+        lastModified = PREFS.getString("last_modified", null);
+        fetched = PREFS.getLong("fetched", 0);
+        if (!bodyFile.exists()) url = null;
+    }
+    private static ManifestCache instance = null;
+    public static synchronized ManifestCache getInstance(Context ctx) {
+        if (instance == null) instance = new ManifestCache(ctx.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Cached result for url if it was fetched less than the TTL ago.
+     */
+    public synchronized RomInfo getFresh(String url) {
+        if (!url.equals(this.url)) return null;
+        long age = System.currentTimeMillis() - fetched;
+        if (age < 0 || age > Config.MANIFEST_TTL) return null;
+        return getCached();
+    }
+
+    public synchronized void addConditionalHeaders(String url, HttpRequest req) {
+        if (!url.equals(this.url)) return;
+        if (etag != null) req.addHeader("If-None-Match", etag);
+        if (lastModified != null) req.addHeader("If-Modified-Since", lastModified);
+    }
+
+    /**
+     * Called when the server answered a conditional GET for url with 304.
+     */
+    public synchronized RomInfo revalidated(String url) {
+        if (!url.equals(this.url)) return null;
+        RomInfo cached = getCached();
+        if (cached == null) return null;
+
+        fetched = System.currentTimeMillis();
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.putLong("fetched", fetched);
+            editor.commit();
+        }
+        return cached;
+    }
+
+    /**
+     * Creates a new file for one fetch to stream its manifest body into before
+     * calling {@link #store}. Every fetch gets its own, so concurrent checks
+     * can't interleave their bodies.
+     */
+    public File createStagingFile() throws IOException {
+        return File.createTempFile(BODY_NAME, STAGING_SUFFIX, cacheDir);
+    }
+
+    /**
+     * Moves staging into place as the cached body in one rename, so readers
+     * see either the old manifest or the new one.
+     */
+    public synchronized void store(String url, File staging, HttpResponse r, RomInfo info) {
+        if (!staging.renameTo(bodyFile)) {
+            Log.w("OTA::ManifestCache", "couldn't store manifest");
+            staging.delete();
+            invalidate();
+            return;
+        }
+
+        Header etagHeader = r.getFirstHeader("ETag");
+        Header lastModifiedHeader = r.getFirstHeader("Last-Modified");
+
+        this.url = url;
+        this.etag = etagHeader == null ? null : etagHeader.getValue();
+        this.lastModified = lastModifiedHeader == null ? null : lastModifiedHeader.getValue();
+        this.fetched = System.currentTimeMillis();
+        this.info = info;
+
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.putString("url", url);
+            editor.putString("etag", etag);
+            editor.putString("last_modified", lastModified);
+            editor.putLong("fetched", fetched);
+            editor.commit();
+        }
+    }
+
+    public synchronized void invalidate() {
+        url = null;
+        etag = null;
+        lastModified = null;
+        fetched = 0;
+        info = null;
+        bodyFile.delete();
+
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.clear();
+            editor.commit();
+        }
+    }
+
+    /**
+     * Staging files left behind by a process that died mid-fetch.
+     */
+    private void deleteStaleStaging() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(BODY_NAME) && name.endsWith(STAGING_SUFFIX)) file.delete();
+        }
+    }
+
+    private RomInfo getCached() {
+        if (info != null) return info;
+
+        // first use since the process started, the parsed result is gone
+        InputStream is = null;
+        try {
+            is = new FileInputStream(bodyFile);
+            info = ManifestReader.readUpdate(is);
+        } catch (Exception e) {
+            Log.w("OTA::ManifestCache", "couldn't read cached manifest");
+            e.printStackTrace();
+            info = null;
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+        }
+
+        if (info == null) invalidate();
+        return info;
+    }
+}
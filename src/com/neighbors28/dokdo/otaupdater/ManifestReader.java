@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * Pull parser for update manifests. Besides the original single-release
+ * object it accepts a list of releases, either as a top-level array or as a
+ * "releases" array next to other keys, and hands each release over as soon as
+ * it has been read so the document never has to be held in memory.
+ */
+public class ManifestReader {
+    public static class ManifestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ManifestException(String msg) {
+            super(msg);
+        }
+    }
+
+    public static interface ReleaseHandler {
+        void onRelease(RomInfo info);
+    }
+
+    public static void read(InputStream in, ReleaseHandler handler) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                readReleases(reader, handler);
+            } else {
+                readManifest(reader, handler);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads a manifest and returns the release to offer: the newest one not
+     * on a separate channel, or the first release if all of them are.
+     */
+    public static RomInfo readUpdate(InputStream in) throws IOException {
+        final RomInfo[] found = new RomInfo[2];
+        read(in, new ReleaseHandler() {
+            @Override
+            public void onRelease(RomInfo info) {
+                if (found[1] == null) found[1] = info;
+                if (info.channel != null && info.channel.length() != 0) return;
+                if (found[0] == null || isNewer(info, found[0])) found[0] = info;
+            }
+        });
+        if (found[0] != null) return found[0];
+        if (found[1] != null) return found[1];
+        throw new ManifestException("No releases in manifest");
+    }
+
+    private static boolean isNewer(RomInfo info, RomInfo than) {
+        if (info.date == null) return false;
+        return than.date == null || info.date.after(than.date);
+    }
+
+    private static void readManifest(JsonReader reader, ReleaseHandler handler) throws IOException {
+        RomInfo info = new RomInfo(null, null, null, null, null, null);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("error")) {
+                throw new ManifestException(nextString(reader));
+            } else if (name.equals("releases")) {
+                readReleases(reader, handler);
+            } else if (!readField(reader, name, info)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (isValid(info)) handler.onRelease(info);
+    }
+
+    private static void readReleases(JsonReader reader, ReleaseHandler handler) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            RomInfo info = readRelease(reader);
+            if (isValid(info)) handler.onRelease(info);
+        }
+        reader.endArray();
+    }
+
+    private static RomInfo readRelease(JsonReader reader) throws IOException {
+        RomInfo info = new RomInfo(null, null, null, null, null, null);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!readField(reader, reader.nextName(), info)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return info;
+    }
+
+    private static boolean readField(JsonReader reader, String name, RomInfo info) throws IOException {
+        if (name.equals("rom")) {
+            info.romName = nextString(reader);
+        } else if (name.equals("version")) {
+            info.version = nextString(reader);
+        } else if (name.equals("changelog")) {
+            info.changelog = nextString(reader);
+        } else if (name.equals("url")) {
+            info.url = nextString(reader);
+        } else if (name.equals("md5")) {
+            info.md5 = nextString(reader);
+        } else if (name.equals("date")) {
+            info.date = Utils.parseDate(nextString(reader));
+        } else if (name.equals("hash_algo")) {
+            info.hashAlgorithm = nextString(reader);
+        } else if (name.equals("hash")) {
+            info.hash = nextString(reader);
+        } else if (name.equals("channel")) {
+            info.channel = nextString(reader);
+        } else if (name.equals("blocks")) {
+            info.blocksUrl = nextString(reader);
+        } else if (name.equals("delta") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+            readDelta(reader, info);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static void readDelta(JsonReader reader, RomInfo info) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("url")) {
+                info.deltaUrl = nextString(reader);
+            } else if (name.equals("base_md5")) {
+                info.deltaBaseMd5 = nextString(reader);
+            } else if (name.equals("md5")) {
+                info.deltaMd5 = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static boolean isValid(RomInfo info) {
+        return info.url != null && info.md5 != null;
+    }
+}
@@ -17,40 +17,27 @@
 
 package com.neighbors28.dokdo.otaupdater;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.security.MessageDigest;
 import java.text.DateFormat;
-import java.text.Normalizer;
-import java.text.Normalizer.Form;
 import java.util.Date;
 
-import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.content.ServiceConnection;
 import android.net.Uri;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Bundle;
-import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
-import android.os.StatFs;
+import android.os.IBinder;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -60,26 +47,6 @@ import android.widget.Toast;
 import com.google.android.gcm.GCMRegistrar;
 import com.neighbors28.dokdo.otaupdater.FetchRomInfoTask.RomInfoListener;
 
-final class Slugify {
-
-    public static String slugify(String input) {
-        if (input == null || input.length() == 0) return "";
-        String toReturn = normalize(input);
-        toReturn = toReturn.replace(" ", "-");
-        toReturn = toReturn.toLowerCase();
-        return toReturn;
-    }
-
-    @TargetApi(9)
-    private static String normalize(String input) {
-        if (input == null || input.length() == 0) return "";
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            input = Normalizer.normalize(input, Form.NFD);
-        }
-        return input.replaceAll("[^\\p{ASCII}]","");
-    }
-}
-
 public class OTAUpdaterActivity extends PreferenceActivity {
     protected static final String NOTIF_ACTION = "com.otaupdater.action.NOTIF_ACTION";
 
@@ -90,7 +57,79 @@ public class OTAUpdaterActivity extends PreferenceActivity {
     private Preference availUpdatePref;
     private FetchRomInfoTask fetchTask = null;
 
-    private DownloadTask dlTask;
+    private DownloadService dlService = null;
+    private ProgressDialog progressDialog = null;
+    private long progressJobId = -1;
+
+    private final ServiceConnection dlConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            dlService = ((DownloadService.LocalBinder) binder).getService();
+            dlService.addListener(dlListener);
+
+            dlService.getActiveJob(new DownloadService.JobCallback() {
+                @Override
+                public void onJob(DownloadJob job) {
+                    // gone to the background while the store was read
+                    if (job == null || dlService == null) return;
+                    if (job.state == DownloadJob.STATE_RUNNING
+                            || (job.state == DownloadJob.STATE_QUEUED && job.deferReason == DownloadPolicy.OK)) {
+                        showProgressDialog(job);
+                    }
+                }
+            });
+        }
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            dlService = null;
+        }
+    };
+
+    private final DownloadService.Listener dlListener = new DownloadService.Listener() {
+        @Override
+        public void onJobChanged(DownloadJob job) {
+            switch (job.state) {
+            case DownloadJob.STATE_QUEUED:
+                if (job.deferReason != DownloadPolicy.OK) {
+                    if (job.id == progressJobId) dismissProgressDialog();
+                    Toast.makeText(OTAUpdaterActivity.this, DownloadPolicy.getReasonText(job.deferReason), Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                showProgressDialog(job);
+                return;
+            case DownloadJob.STATE_RUNNING:
+                showProgressDialog(job);
+                return;
+            }
+
+            if (job.id == progressJobId) dismissProgressDialog();
+            switch (job.state) {
+            case DownloadJob.STATE_DONE:
+                ListFilesActivity.installFileDialog(OTAUpdaterActivity.this, job.destFile);
+                break;
+            case DownloadJob.STATE_CANCELLED:
+                Toast.makeText(OTAUpdaterActivity.this, R.string.toast_download_interrupted, Toast.LENGTH_SHORT).show();
+                break;
+            case DownloadJob.STATE_FAILED:
+                switch (job.result) {
+                case Downloader.RESULT_MD5_MISMATCH:
+                    Toast.makeText(OTAUpdaterActivity.this, R.string.toast_download_md5_mismatch, Toast.LENGTH_SHORT).show();
+                    break;
+                case Downloader.RESULT_NO_SPACE:
+                    Toast.makeText(OTAUpdaterActivity.this, R.string.toast_download_nospace, Toast.LENGTH_SHORT).show();
+                    break;
+                default:
+                    Toast.makeText(OTAUpdaterActivity.this, R.string.toast_download_error, Toast.LENGTH_SHORT).show();
+                }
+                break;
+            }
+        }
+        @Override
+        public void onProgress(DownloadJob job, long rate, long eta) {
+            if (progressDialog == null || job.id != progressJobId) return;
+            updateProgress(job, rate, eta);
+        }
+    };
 
     /** Called when the activity is first created. */
     @Override
@@ -168,38 +207,16 @@ public class OTAUpdaterActivity extends PreferenceActivity {
             version.setSummary(romVersion);
             availUpdatePref = findPreference("avail_updates");
 
-            Object savedInstance = getLastNonConfigurationInstance();
-            if (savedInstance != null && savedInstance instanceof DownloadTask) {
-                dialogFromNotif = true;
-                dlTask = (DownloadTask) savedInstance;
-
-                final ProgressDialog progressDialog = new ProgressDialog(this);
-                progressDialog.setTitle(R.string.alert_downloading);
-                progressDialog.setMessage("Changelog: " + dlTask.getRomInfo().changelog);
-                progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                progressDialog.setCancelable(false);
-                progressDialog.setProgress(0);
-                progressDialog.setButton(Dialog.BUTTON_NEGATIVE, getString(R.string.alert_cancel), new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        progressDialog.dismiss();
-                        dlTask.cancel(true);
-                    }
-                });
-                dlTask.attach(progressDialog);
-                progressDialog.show();
-            } else {
-                Intent i = getIntent();
-                if (i != null && i.getAction().equals(NOTIF_ACTION)) {
-                    if (Utils.dataAvailable(getApplicationContext())) {
-                        dialogFromNotif = true;
-                        showUpdateDialog(RomInfo.fromIntent(i));
-                    } else {
-                        checkOnResume = true;
-                    }
+            Intent i = getIntent();
+            if (i != null && i.getAction().equals(NOTIF_ACTION)) {
+                if (Utils.dataAvailable(getApplicationContext())) {
+                    dialogFromNotif = true;
+                    showUpdateDialog(RomInfo.fromIntent(i));
                 } else {
                     checkOnResume = true;
                 }
+            } else {
+                checkOnResume = true;
             }
         }
     }
@@ -207,11 +224,11 @@ public class OTAUpdaterActivity extends PreferenceActivity {
     @Override
     public void onResume() {
         super.onResume();
+        bindService(new Intent(this, DownloadService.class), dlConnection, Context.BIND_AUTO_CREATE);
 
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo ni = cm.getActiveNetworkInfo();
-        boolean connected = ni != null && ni.isConnected();
-        if ((!connected || ni.getType() == ConnectivityManager.TYPE_MOBILE) && !cfg.getIgnoredDataWarn() && !dialogFromNotif && Utils.isROMSupported()) {
+        int network = DownloadPolicy.getNetworkState(this);
+        boolean connected = network != DownloadPolicy.NETWORK_NONE;
+        if (network != DownloadPolicy.NETWORK_UNMETERED && !cfg.getIgnoredDataWarn() && !dialogFromNotif && Utils.isROMSupported()) {
             AlertDialog.Builder alert = new AlertDialog.Builder(this);
             alert.setTitle(connected ? R.string.alert_nowifi_title : R.string.alert_nodata_title);
             alert.setMessage(connected ? R.string.alert_nowifi_message : R.string.alert_nodata_message);
@@ -236,7 +253,7 @@ public class OTAUpdaterActivity extends PreferenceActivity {
                             dialogFromNotif = true;
                             showUpdateDialog(RomInfo.fromIntent(i));
                         } else {
-                            checkForRomUpdates();
+                            checkForRomUpdates(false);
                         }
                         checkOnResume = false;
                     }
@@ -257,7 +274,7 @@ public class OTAUpdaterActivity extends PreferenceActivity {
                     dialogFromNotif = true;
                     showUpdateDialog(RomInfo.fromIntent(i));
                 } else {
-                    checkForRomUpdates();
+                    checkForRomUpdates(false);
                 }
                 checkOnResume = false;
             }
@@ -266,27 +283,20 @@ public class OTAUpdaterActivity extends PreferenceActivity {
 
     @Override
     protected void onPause() {
-        if (isFinishing()) {
-            if (dlTask != null && !dlTask.isDone()) dlTask.cancel(true);
-        }
+        // the download carries on in DownloadService, we only stop watching it
+        if (dlService != null) dlService.removeListener(dlListener);
+        unbindService(dlConnection);
+        dlService = null;
+        dismissProgressDialog();
+
         if (fetchTask != null) fetchTask.cancel(true);
         super.onPause();
     }
 
-    @Override
-    public Object onRetainNonConfigurationInstance() {
-        if (dlTask == null) return null;
-
-        dlTask.detach();
-        if (dlTask.isDone()) return null;
-
-        return dlTask;
-    }
-
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference == availUpdatePref) {
-            if (fetchTask == null) checkForRomUpdates();
+            if (fetchTask == null) checkForRomUpdates(true);
             return true;
         }
         return false;
@@ -312,13 +322,13 @@ public class OTAUpdaterActivity extends PreferenceActivity {
             startActivity(i);
             break;
         case R.id.refresh:
-            checkForRomUpdates();
+            checkForRomUpdates(true);
             break;
         }
         return true;
     }
 
-    private void checkForRomUpdates() {
+    private void checkForRomUpdates(boolean force) {
         if (fetchTask != null) return;
         if (!Utils.isROMSupported()) return;
         fetchTask = new FetchRomInfoTask(this, new RomInfoListener() {
@@ -331,7 +341,7 @@ public class OTAUpdaterActivity extends PreferenceActivity {
                 if (info == null) {
                     availUpdatePref.setSummary(getString(R.string.main_updates_error, "Unknown error"));
                     Toast.makeText(OTAUpdaterActivity.this, R.string.toast_fetch_error, Toast.LENGTH_SHORT).show();
-                } else if (Utils.isUpdate(info)) {
+                } else if (Utils.isUpdate(OTAUpdaterActivity.this, info)) {
                     showUpdateDialog(info);
                 } else {
                     availUpdatePref.setSummary(R.string.main_updates_none);
@@ -344,7 +354,7 @@ public class OTAUpdaterActivity extends PreferenceActivity {
                 availUpdatePref.setSummary(getString(R.string.main_updates_error, error));
                 Toast.makeText(OTAUpdaterActivity.this, error, Toast.LENGTH_SHORT).show();
             }
-        });
+        }, force);
         fetchTask.execute();
     }
 
@@ -359,25 +369,12 @@ public class OTAUpdaterActivity extends PreferenceActivity {
             public void onClick(DialogInterface dialog, int whichButton) {
                 dialog.dismiss();
 
-                final ProgressDialog progressDialog = new ProgressDialog(OTAUpdaterActivity.this);
-                progressDialog.setTitle(R.string.alert_downloading);
-                progressDialog.setMessage(getString(R.string.alert_message));
-                progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-                progressDialog.setCancelable(false);
-                progressDialog.setProgress(0);
-
-                final File file = new File(Config.DL_PATH_FILE, Slugify.slugify(info.romName + "_ota_" + "package_" + info.version) + ".zip");
-                dlTask = new DownloadTask(progressDialog, info, file);
-
-                progressDialog.setButton(Dialog.BUTTON_NEGATIVE, getString(R.string.alert_cancel), new DialogInterface.OnClickListener() {
+                StorageLocation.getDownloadDir(new StorageLocation.Callback() {
                     @Override
-                    public void onClick(DialogInterface dialog, int which) {
-                        progressDialog.dismiss();
-                        dlTask.cancel(true);
+                    public void onResolved(File dir) {
+                        DownloadService.enqueue(OTAUpdaterActivity.this, info, new File(dir, info.getFileName()));
                     }
                 });
-
-                dlTask.execute();
             }
         });
 
@@ -390,257 +387,66 @@ public class OTAUpdaterActivity extends PreferenceActivity {
         alert.show();
     }
 
-    private static class DownloadTask extends AsyncTask<Void, Integer, Integer> {
-        private int scale = 1048576;
-
-        private ProgressDialog dialog = null;
-        private Context ctx = null;
-        private RomInfo info;
-        private File destFile;
-        private final WakeLock wl;
-
-        private boolean done = false;
-
-        public DownloadTask(ProgressDialog dialog, RomInfo info, File destFile) {
-            this.attach(dialog);
-
-            this.info = info;
-            this.destFile = destFile;
-
-            PowerManager pm = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
-            wl = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, OTAUpdaterActivity.class.getName());
-        }
-
-        public void attach(ProgressDialog dialog) {
-            this.dialog = dialog;
-            this.ctx = dialog.getContext();
-        }
-
-        public void detach() {
-            if (this.dialog != null) this.dialog.dismiss();
-            this.dialog = null;
-            this.ctx = null;
-        }
-
-        public boolean isDone() {
-            return done;
-        }
-
-        public RomInfo getRomInfo() {
-            return info;
-        }
-
-        @Override
-        protected void onPreExecute() {
-            done = false;
-            dialog.show();
-            wl.acquire();
+    private void showProgressDialog(final DownloadJob job) {
+        if (progressDialog != null) {
+            if (job.id == progressJobId) return;
+            progressDialog.dismiss();
         }
 
-        @Override
-        protected Integer doInBackground(Void... params) {
-            if (destFile.exists()) {
-                Log.v("OTA::Download", "Found old zip, checking md5");
-
-                InputStream is = null;
-                try {
-                    is = new FileInputStream(destFile);
-                    MessageDigest digest = MessageDigest.getInstance("MD5");
-                    byte[] data = new byte[4096];
-                    int nRead = -1;
-                    while ((nRead = is.read(data)) != -1) {
-                        digest.update(data, 0, nRead);
-                    }
-                    String oldMd5 = Utils.byteArrToStr(digest.digest());
-                    Log.v("OTA::Download", "old zip md5: " + oldMd5);
-                    if (!info.md5.equalsIgnoreCase(oldMd5)) {
-                        destFile.delete();
-                    } else {
-                        return 0;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    destFile.delete();
-                } finally {
-                    if (is != null) {
-                        try { is.close(); }
-                        catch (Exception e) { }
-                    }
-                }
+        progressJobId = job.id;
+        progressDialog = new ProgressDialog(this);
+        progressDialog.setTitle(R.string.alert_downloading);
+        progressDialog.setMessage(getString(R.string.alert_message));
+        progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progressDialog.setCancelable(false);
+        progressDialog.setProgress(0);
+        progressDialog.setButton(Dialog.BUTTON_NEGATIVE, getString(R.string.alert_cancel), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+                DownloadService.cancel(OTAUpdaterActivity.this, job.id);
             }
-
-            InputStream is = null;
-            OutputStream os = null;
-            try {
-                URL getUrl = new URL(info.url);
-                Log.v("OTA::Download", "downloading from: " + getUrl);
-                Log.d("OTA::Download", "downloading to: " + destFile.getAbsolutePath());
-
-                URLConnection conn = getUrl.openConnection();
-
- 		// Start
-                if(getUrl.toString().contains("goo.im")){
-
-                    // do a dl then wait for timer
-
-               	    conn.connect();
-        	    Log.v("OTA::Download", "Waiting out timer");
-                    publishProgress(-1); // pending on dialog
-
-                    // dl the catch page then wait
-                    is = new BufferedInputStream(conn.getInputStream());
-                    os = new FileOutputStream(destFile);
-
-                    // get the timer page all 15
-                    byte[] buf = new byte[4096];
-                    int nRead = -1;
-                    while ((nRead = is.read(buf)) != -1) {
-                        if (this.isCancelled()) break;
-                        os.write(buf, 0, nRead);
-                    }
-
-                    // got hold page pause
-
-       		    try {
-        	    	Thread.sleep(10500); // pause the async task for 10.5 seconds
-            	    } catch (InterruptedException e) {
-            		// don't panic and reset the link
-            	    }
-
-		    Log.v("OTA::Download", "Timer Complete, Continuing with File Download");
-
-		    getUrl = new URL(info.url);
-		    conn = getUrl.openConnection();
-
-                }
-
-                // end do your thing as normal
-
-                final int lengthOfFile = conn.getContentLength();
-
-                StatFs stat = new StatFs(Config.DL_PATH);
-                long availSpace = ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
-                if (lengthOfFile >= availSpace) {
-                    destFile.delete();
-                    return 3;
-                }
-
-                if (lengthOfFile < 10000000) scale = 1024; //if less than 10 mb, scale using kb
-                publishProgress(0, lengthOfFile);
-
-                MessageDigest digest = MessageDigest.getInstance("MD5");
-
-                conn.connect();
-                is = new BufferedInputStream(conn.getInputStream());
-                os = new FileOutputStream(destFile);
-
-                byte[] buf = new byte[4096];
-                int nRead = -1;
-                int totalRead = 0;
-                while ((nRead = is.read(buf)) != -1) {
-                    if (this.isCancelled()) break;
-                    os.write(buf, 0, nRead);
-                    digest.update(buf, 0, nRead);
-                    totalRead += nRead;
-                    publishProgress(totalRead, lengthOfFile);
-                }
-
-                if (isCancelled()) {
-                    destFile.delete();
-                    return 2;
-                }
-
-                String dlMd5 = Utils.byteArrToStr(digest.digest());
-                Log.v("OTA::Download", "downloaded md5: " + dlMd5);
-                if (!info.md5.equalsIgnoreCase(dlMd5)) {
-                    Log.w("OTA::Download", "downloaded md5 doesn't match " + info.md5);
-                    destFile.delete();
-                    return 1;
-                }
-
-                return 0;
-            } catch (Exception e) {
-                e.printStackTrace();
-                destFile.delete();
-            } finally {
-                if (is != null) {
-                    try { is.close(); }
-                    catch (Exception e) { }
-                }
-                if (os != null) {
-                    try { os.flush(); os.close(); }
-                    catch (Exception e) { }
-                }
+        });
+        progressDialog.setButton(Dialog.BUTTON_NEUTRAL, getString(R.string.alert_pause), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+                DownloadService.pause(OTAUpdaterActivity.this, job.id);
             }
-            return -1;
-        }
-
-        @Override
-        protected void onCancelled(Integer result) {
-            done = true;
-            dialog.dismiss();
-            wl.release();
-            wl.acquire(Config.WAKE_TIMEOUT);
-
-            if (result == null) {
-                Toast.makeText(ctx, R.string.toast_download_error, Toast.LENGTH_SHORT).show();
-                return;
+        });
+        progressDialog.setButton(Dialog.BUTTON_POSITIVE, getString(R.string.alert_hide), new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                // keep progressDialog set so it doesn't pop up again for this job
+                dialog.dismiss();
             }
+        });
+        progressDialog.show();
+        updateProgress(job, 0, -1);
+    }
 
-            switch (result) {
-            case 0:
-                break;
-            case 1:
-                Toast.makeText(ctx, R.string.toast_download_md5_mismatch, Toast.LENGTH_SHORT).show();
-                break;
-            case 2:
-                Toast.makeText(ctx, R.string.toast_download_interrupted, Toast.LENGTH_SHORT).show();
-                break;
-            case 3:
-                Toast.makeText(ctx, R.string.toast_download_nospace, Toast.LENGTH_SHORT).show();
-                break;
-            default:
-                Toast.makeText(ctx, R.string.toast_download_error, Toast.LENGTH_SHORT).show();
-            }
-        }
+    private void dismissProgressDialog() {
+        if (progressDialog != null) progressDialog.dismiss();
+        progressDialog = null;
+        progressJobId = -1;
+    }
 
-        @Override
-        protected void onPostExecute(Integer result) {
-            done = true;
-            dialog.dismiss();
-            wl.release();
-            wl.acquire(Config.WAKE_TIMEOUT);
-
-            switch (result) {
-            case 0:
-                ListFilesActivity.installFileDialog(ctx, destFile);
-                break;
-            case 1:
-                Toast.makeText(ctx, R.string.toast_download_md5_mismatch, Toast.LENGTH_SHORT).show();
-                break;
-            case 2:
-                Toast.makeText(ctx, R.string.toast_download_interrupted, Toast.LENGTH_SHORT).show();
-                break;
-            default:
-                Toast.makeText(ctx, R.string.toast_download_error, Toast.LENGTH_SHORT).show();
-            }
+    private void updateProgress(DownloadJob job, long rate, long eta) {
+        if (job.total < 0) { // i'm not sure yet please hold
+            progressDialog.setIndeterminate(true);
+            return;
         }
 
-        @Override
-        protected void onProgressUpdate(Integer... values) {
-            if (dialog == null) return;
-
-            if (values[0] == -1) { // i'm not sure yet please hold
-            	dialog.setIndeterminate(true);
-            	return;
-            }
+        progressDialog.setIndeterminate(false); // make sure dialog is ALWAYS sure for progress
 
-            dialog.setIndeterminate(false); // make sure dialog is ALWAYS sure for progress
+        int scale = job.total < 10000000 ? 1024 : 1048576; //if less than 10 mb, scale using kb
+        progressDialog.setMax((int) (job.total / scale));
+        progressDialog.setProgress((int) (job.bytes / scale));
+        if (rate <= 0) return;
 
-            if (values.length == 0) return;
-            dialog.setProgress(values[0] / scale);
-            if (values.length == 1) return;
-            dialog.setMax(values[1] / scale);
-        }
+        String rateText = getString(R.string.alert_download_rate,
+                Formatter.formatShortFileSize(this, rate),
+                eta < 0 ? "--:--" : DateUtils.formatElapsedTime(eta));
+        progressDialog.setProgressNumberFormat("%1d/%2d " + (scale == 1024 ? "KB" : "MB") + "  " + rateText.replace("%", "%%"));
     }
 }
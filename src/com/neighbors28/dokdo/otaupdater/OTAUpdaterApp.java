@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.util.Map;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+public class OTAUpdaterApp extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        Utils.setPropertyProvider(new SnapshotPropertyProvider(this, new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return Utils.readSystemProperties();
+            }
+        }));
+        StorageLocation.resolveAsync();
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                DateCodec.resetTimeZone();
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+        DownloadService.startPending(this);
+    }
+}
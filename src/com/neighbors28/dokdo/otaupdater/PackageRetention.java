@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import android.content.Context;
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * Keeps the download directory within the configured quota and above a floor
+ * of free space by deleting the least recently used packages first. The
+ * pending update, every queued download and the packages their deltas are
+ * built against are never deleted. Partial downloads no job owns any more
+ * are swept as well. Last use is the later of the file's mtime and the last
+ * time it was reused or opened for install, see {@link #touch(File)}.
+ */
+public class PackageRetention {
+    private static final String USAGE_NAME = "usage";
+    private static final long PARTIAL_GRACE = 3600000;
+
+    private final Context ctx;
+    private final File usageFile;
+    private final Properties usage = new Properties();
+
+    private PackageRetention(Context ctx) {
+        this.ctx = ctx;
+        usageFile = new File(ctx.getFilesDir(), USAGE_NAME);
+        loadUsage();
+    }
+    private static PackageRetention instance = null;
+    public static synchronized PackageRetention getInstance(Context ctx) {
+        if (instance == null) instance = new PackageRetention(ctx.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * Marks file as just used, moving it to the back of the eviction order.
+     */
+    public synchronized void touch(File file) {
+        usage.setProperty(file.getAbsolutePath(), String.valueOf(System.currentTimeMillis()));
+        storeUsage();
+    }
+
+    public void enforceAsync() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                enforce(0, null);
+            }
+        }, "OTA::PackageRetention").start();
+    }
+
+    /**
+     * Sweeps orphaned partial downloads and evicts packages until the
+     * directory, plus needed more bytes, fits the quota and leaves the free
+     * space floor. exclude, if given, is never evicted. Returns false if
+     * that couldn't be reached with the packages that may be deleted.
+     */
+    public synchronized boolean enforce(long needed, File exclude) {
+        File dir = StorageLocation.getDownloadDir();
+        File[] files = dir.listFiles();
+        if (files == null) return true;
+
+        DownloadJobStore jobs = DownloadJobStore.getInstance(ctx);
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<File> packages = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.isFile()) continue;
+            if (PartialDownload.isPartialFile(file)) {
+                if (now - file.lastModified() > PARTIAL_GRACE && jobs.findByFile(Downloader.getDestFile(file)) == null) {
+                    Log.v("OTA::PackageRetention", "sweeping orphaned " + file.getName());
+                    if (file.delete()) continue;
+                }
+            } else if (file.getName().endsWith(".zip")) {
+                packages.add(file);
+            }
+            total += file.length();
+        }
+
+        long quota = Config.getInstance(ctx).getDownloadQuota();
+        long available = getAvailableSpace();
+        if (!overLimit(total, available, needed, quota)) return true;
+
+        HashSet<File> pinned = new HashSet<File>();
+        HashSet<String> pinnedMd5 = new HashSet<String>();
+        getPins(dir, pinned, pinnedMd5);
+        if (exclude != null) pinned.add(exclude);
+
+        final DigestCache digests = DigestCache.getInstance(ctx);
+        sortByLastUse(packages);
+        for (File file : packages) {
+            if (!overLimit(total, available, needed, quota)) break;
+            if (pinned.contains(file) || isPinnedBase(file, pinnedMd5, digests)) continue;
+
+            long size = file.length();
+            Log.v("OTA::PackageRetention", "evicting " + file.getName() + " (" + size + " bytes)");
+            if (!remove(file, digests)) continue;
+            total -= size;
+            available += size;
+        }
+        storeUsage();
+        return !overLimit(total, available, needed, quota);
+    }
+
+    /**
+     * Deletes every package last used more than maxAge ago that may be
+     * deleted at all, returning false if any of them couldn't be.
+     */
+    public synchronized boolean pruneOlderThan(long maxAge) {
+        File dir = StorageLocation.getDownloadDir();
+        File[] files = dir.listFiles();
+        if (files == null) return true;
+
+        HashSet<File> pinned = new HashSet<File>();
+        HashSet<String> pinnedMd5 = new HashSet<String>();
+        getPins(dir, pinned, pinnedMd5);
+
+        DigestCache digests = DigestCache.getInstance(ctx);
+        long cutoff = System.currentTimeMillis() - maxAge;
+        boolean success = true;
+        for (File file : files) {
+            if (!file.isFile() || PartialDownload.isPartialFile(file)) continue;
+            if (getLastUse(file) >= cutoff) continue;
+            if (pinned.contains(file) || isPinnedBase(file, pinnedMd5, digests)) continue;
+            if (!remove(file, digests)) success = false;
+        }
+        storeUsage();
+        return success;
+    }
+
+    /**
+     * Deletes a package the user asked to get rid of, along with what is
+     * remembered about it. Returns false if it couldn't be deleted.
+     */
+    public synchronized boolean delete(File file) {
+        if (!remove(file, DigestCache.getInstance(ctx))) return false;
+        storeUsage();
+        return true;
+    }
+
+    private boolean remove(File file, DigestCache digests) {
+        if (!file.delete()) return false;
+        digests.remove(file);
+        usage.remove(file.getAbsolutePath());
+        return true;
+    }
+
+    private static boolean overLimit(long total, long available, long needed, long quota) {
+        if (quota > 0 && total + needed > quota) return true;
+        return available < needed + Config.MIN_FREE_SPACE;
+    }
+
+    /**
+     * The pending update and every download still in the queue, plus the MD5s
+     * of the packages their deltas patch.
+     */
+    private void getPins(File dir, HashSet<File> pinned, HashSet<String> pinnedMd5) {
+        RomInfo pending = Config.getInstance(ctx).getStoredUpdate();
+        if (pending != null) {
+            pinned.add(new File(dir, pending.getFileName()));
+            if (pending.hasDelta()) pinnedMd5.add(pending.deltaBaseMd5.toLowerCase());
+        }
+        for (DownloadJob job : DownloadJobStore.getInstance(ctx).getJobs()) {
+            pinned.add(job.destFile);
+            if (job.info.hasDelta()) pinnedMd5.add(job.info.deltaBaseMd5.toLowerCase());
+        }
+    }
+
+    private static boolean isPinnedBase(File file, HashSet<String> pinnedMd5, DigestCache digests) {
+        if (pinnedMd5.isEmpty()) return false;
+        String md5 = digests.lookup(file, FileHasher.MD5);
+        if (md5 == null) {
+            // only read files about to be deleted, and only when a delta needs a base
+            try {
+                FileHasher hasher = new FileHasher(FileHasher.MD5);
+                hasher.hashFile(file);
+                md5 = hasher.digest()[0];
+                digests.store(file, FileHasher.MD5, md5);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return true;
+            }
+        }
+        return pinnedMd5.contains(md5.toLowerCase());
+    }
+
+    private void sortByLastUse(List<File> packages) {
+        // stat each file once up front; the comparator runs O(n log n) times
+        // and an mtime changing mid-sort would break its contract
+        final HashMap<File, Long> lastUse = new HashMap<File, Long>();
+        for (File file : packages) {
+            lastUse.put(file, getLastUse(file));
+        }
+        Collections.sort(packages, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lastA = lastUse.get(a);
+                long lastB = lastUse.get(b);
+                return lastA < lastB ? -1 : (lastA == lastB ? 0 : 1);
+            }
+        });
+    }
+
+    private long getLastUse(File file) {
+        long lastUse = file.lastModified();
+        try {
+            String used = usage.getProperty(file.getAbsolutePath());
+            if (used != null) lastUse = Math.max(lastUse, Long.parseLong(used));
+        } catch (NumberFormatException e) {
+        }
+        return lastUse;
+    }
+
+    private static long getAvailableSpace() {
+        StatFs stat = new StatFs(StorageLocation.getDownloadPath());
+        return ((long) stat.getAvailableBlocks()) * ((long) stat.getBlockSize());
+    }
+
+    private void loadUsage() {
+        if (!usageFile.exists()) return;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(usageFile);
+            usage.load(is);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    private void storeUsage() {
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(usageFile);
+            usage.store(os, null);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (os != null) {
+                try { os.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a single-stream download into its {@link PartialDownload} through a
+ * FileChannel. The file is claimed at full length before the first byte, so
+ * a full sdcard fails the download at once instead of part way through, and
+ * progress is kept as a committed offset in the sidecar, forced to disk
+ * beforehand according to the sync policy (see Config.SYNC_*).
+ */
+public class PartWriter {
+    private static final long CHECKPOINT_INTERVAL = 2000;
+
+    private final PartialDownload part;
+    private final int syncPolicy;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private long position;
+    private long lastCheckpoint;
+
+    /**
+     * Opens part for writing at offset; anything after offset is discarded
+     * when starting over at 0. length is the full size of the download, -1 if
+     * unknown.
+     */
+    public PartWriter(PartialDownload part, long offset, long length, int syncPolicy) throws IOException {
+        this.part = part;
+        this.syncPolicy = syncPolicy;
+        this.position = offset;
+
+        // before growing the file, so its new length is never taken for progress
+        part.saveCommitted(offset);
+        raf = part.openFile(offset == 0, length);
+        channel = raf.getChannel();
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Writes out whatever tb is ready to give up, returning the number of
+     * bytes written.
+     */
+    public int write(TransferBuffer tb) throws IOException {
+        int len = tb.drainTo(channel);
+        if (len == 0) return 0;
+        position += len;
+
+        if (syncPolicy == Config.SYNC_ALWAYS || System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+        return len;
+    }
+
+    /**
+     * Writes out everything left in tb, records the final position and
+     * closes the file.
+     */
+    public void close(TransferBuffer tb) throws IOException {
+        try {
+            if (tb != null) position += tb.flushTo(channel);
+            checkpoint();
+        } finally {
+            try { raf.close(); }
+            catch (Exception e) { }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        if (syncPolicy != Config.SYNC_NEVER) channel.force(false);
+        part.saveCommitted(position);
+        lastCheckpoint = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Properties;
+
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A download in progress, kept as a ".part" file next to the final file plus a
+ * small ".part.info" sidecar holding the validator (ETag / Last-Modified) and
+ * total length the server reported, so an interrupted transfer can be resumed
+ * with a Range request instead of starting over. The .part file is grown to
+ * its full length before the transfer starts, so for single-stream downloads
+ * the sidecar also records the committed offset: how far the bytes on disk
+ * are known to be good.
+ */
+public class PartialDownload {
+    public static final String PART_SUFFIX = ".part";
+    public static final String INFO_SUFFIX = ".part.info";
+
+    public static class NoSpaceException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NoSpaceException(String msg) {
+            super(msg);
+        }
+    }
+
+    private final File destFile;
+    private final File partFile;
+    private final File infoFile;
+
+    private String url = null;
+    private String etag = null;
+    private String lastModified = null;
+    private long length = -1;
+    private long committed = -1;
+    private String segmentState = null;
+
+    public PartialDownload(File destFile) {
+        this.destFile = destFile;
+        this.partFile = new File(destFile.getPath() + PART_SUFFIX);
+        this.infoFile = new File(destFile.getPath() + INFO_SUFFIX);
+    }
+
+    public static boolean isPartialFile(File file) {
+        String name = file.getName();
+        return name.endsWith(PART_SUFFIX) || name.endsWith(INFO_SUFFIX);
+    }
+
+    public File getDestFile() {
+        return destFile;
+    }
+
+    public File getPartFile() {
+        return partFile;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public boolean load(String url) {
+        this.url = url;
+        if (!partFile.exists() || !infoFile.exists()) {
+            discard();
+            return false;
+        }
+
+        Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(infoFile);
+            props.load(is);
+        } catch (Exception e) {
+            e.printStackTrace();
+            discard();
+            return false;
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+        }
+
+        if (!url.equals(props.getProperty("url"))) {
+            Log.v("OTA::Download", "partial download is for another url, discarding");
+            discard();
+            return false;
+        }
+
+        etag = props.getProperty("etag");
+        lastModified = props.getProperty("last_modified");
+        segmentState = props.getProperty("segments");
+        try {
+            length = Long.parseLong(props.getProperty("length", "-1"));
+            committed = Long.parseLong(props.getProperty("committed", "-1"));
+        } catch (NumberFormatException e) {
+            length = -1;
+            committed = -1;
+        }
+
+        if (etag == null && lastModified == null) {
+            // without a validator we can't tell whether the bytes on disk still
+            // belong to what the server is handing out
+            discard();
+            return false;
+        }
+        if (length > 0 && partFile.length() > length) {
+            discard();
+            return false;
+        }
+        return true;
+    }
+
+    public String getValidator() {
+        return etag != null ? etag : lastModified;
+    }
+
+    /**
+     * Segmented downloads preallocate the whole .part file and track progress
+     * per byte range instead, see {@link SegmentedDownload}.
+     */
+    public boolean isSegmented() {
+        return segmentState != null;
+    }
+
+    public String getSegmentState() {
+        return segmentState;
+    }
+
+    public void saveSegmentState(String segmentState) {
+        this.segmentState = segmentState;
+        store();
+    }
+
+    public long getResumeOffset() {
+        if (isSegmented()) return 0;
+        if (!partFile.exists()) return 0;
+        // files from before preallocation only ever held what was written
+        if (committed < 0) return partFile.length();
+        return Math.min(committed, partFile.length());
+    }
+
+    /**
+     * Records that everything before offset is on disk. Callers force the
+     * data out first if they want the record to survive a crash.
+     */
+    public void saveCommitted(long offset) {
+        this.committed = offset;
+        store();
+    }
+
+    public boolean isComplete() {
+        return !isSegmented() && length > 0 && getResumeOffset() == length;
+    }
+
+    /**
+     * Feeds the bytes already on disk into hasher, so the streaming hash can
+     * pick up where the interrupted transfer left off.
+     */
+    public void digestExisting(FileHasher hasher) throws IOException {
+        hasher.hashFile(partFile, isSegmented() ? partFile.length() : getResumeOffset());
+    }
+
+    public void addResumeHeaders(URLConnection conn) {
+        long offset = getResumeOffset();
+        if (offset <= 0) return;
+        conn.setRequestProperty("Range", "bytes=" + offset + "-");
+        conn.setRequestProperty("If-Range", getValidator());
+    }
+
+    /**
+     * Checks whether conn actually answered the Range request for the current
+     * offset; anything else means the server sent the whole body again.
+     */
+    public boolean isResumeResponse(HttpURLConnection conn) throws IOException {
+        long offset = getResumeOffset();
+        if (offset <= 0) return false;
+        if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) return false;
+
+        String range = conn.getHeaderField("Content-Range");
+        return range != null && range.startsWith("bytes " + offset + "-");
+    }
+
+    /**
+     * Opens the .part file for positional writes, emptied first if truncate
+     * is set, and claims length bytes for it up front when the length is
+     * known. Throws NoSpaceException if the filesystem can't hold that much.
+     */
+    public RandomAccessFile openFile(boolean truncate, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+        try {
+            if (truncate) raf.setLength(0);
+            if (length > raf.length()) allocate(raf, length);
+        } catch (IOException e) {
+            try { raf.close(); }
+            catch (Exception ex) { }
+            throw e;
+        }
+        return raf;
+    }
+
+    private static void allocate(RandomAccessFile raf, long length) throws IOException {
+        if (Build.VERSION.SDK_INT >= 21) {
+            try {
+                // reserves the blocks, unlike setLength which may leave a sparse file
+                Class<?> os = Class.forName("android.system.Os");
+                Method fallocate = os.getMethod("posix_fallocate", FileDescriptor.class, long.class, long.class);
+                fallocate.invoke(null, raf.getFD(), 0L, length);
+                return;
+            } catch (InvocationTargetException e) {
+                String error = String.valueOf(e.getCause());
+                if (error.contains("ENOSPC")) throw new NoSpaceException(error);
+                // not supported by this filesystem, setLength below still works
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            raf.setLength(length);
+        } catch (IOException e) {
+            throw new NoSpaceException("couldn't grow to " + length + " bytes: " + e.getMessage());
+        }
+    }
+
+    public void saveValidator(URLConnection conn, long length) {
+        this.etag = conn.getHeaderField("ETag");
+        this.lastModified = conn.getHeaderField("Last-Modified");
+        this.length = length;
+        this.committed = 0;
+        this.segmentState = null;
+        store();
+    }
+
+    private void store() {
+        if (etag == null && lastModified == null) {
+            infoFile.delete();
+            return;
+        }
+
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        if (etag != null) props.setProperty("etag", etag);
+        if (lastModified != null) props.setProperty("last_modified", lastModified);
+        props.setProperty("length", String.valueOf(length));
+        if (committed >= 0) props.setProperty("committed", String.valueOf(committed));
+        if (segmentState != null) props.setProperty("segments", segmentState);
+
+        // the committed offset is only worth anything if it never gets ahead
+        // of the sidecar on disk, so write it aside and swap it in whole
+        File tmpFile = new File(infoFile.getPath() + ".tmp");
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(tmpFile);
+            props.store(os, null);
+            os.getFD().sync();
+            os.close();
+            os = null;
+            if (!tmpFile.renameTo(infoFile)) {
+                Log.w("OTA::Download", "couldn't replace " + infoFile.getName());
+                tmpFile.delete();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            tmpFile.delete();
+        } finally {
+            if (os != null) {
+                try { os.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    public boolean commit() {
+        destFile.delete();
+        if (!partFile.renameTo(destFile)) return false;
+        infoFile.delete();
+        return true;
+    }
+
+    public void discard() {
+        partFile.delete();
+        infoFile.delete();
+        etag = null;
+        lastModified = null;
+        length = -1;
+        committed = -1;
+        segmentState = null;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import android.os.SystemClock;
+
+/**
+ * Decides when a transfer's progress is worth reporting (at most once per
+ * interval, plus on completion) and keeps an exponentially weighted moving
+ * average of the throughput to estimate the time remaining.
+ */
+public class ProgressReporter {
+    public static final long DEFAULT_INTERVAL = 100;
+
+    private static final double SMOOTHING = 0.3;
+
+    private final long interval;
+
+    private long lastTime = -1;
+    private long lastBytes = 0;
+    private double rate = -1;
+
+    public ProgressReporter() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public ProgressReporter(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Starts measuring from bytes already transferred, e.g. when resuming.
+     */
+    public void reset(long bytes) {
+        lastTime = SystemClock.elapsedRealtime();
+        lastBytes = bytes;
+        rate = -1;
+    }
+
+    /**
+     * Records that bytes of total have been transferred. Returns true if this
+     * update should be passed on to the UI.
+     */
+    public boolean update(long bytes, long total) {
+        long now = SystemClock.elapsedRealtime();
+        if (lastTime < 0) {
+            lastTime = now;
+            lastBytes = bytes;
+            return true;
+        }
+
+        long elapsed = now - lastTime;
+        if (elapsed < interval && bytes != total) return false;
+
+        if (elapsed > 0) {
+            double current = (bytes - lastBytes) * 1000d / elapsed;
+            rate = rate < 0 ? current : SMOOTHING * current + (1 - SMOOTHING) * rate;
+        }
+        lastTime = now;
+        lastBytes = bytes;
+        return true;
+    }
+
+    /**
+     * Smoothed throughput in bytes per second, or -1 if not known yet.
+     */
+    public long getRate() {
+        return (long) rate;
+    }
+
+    /**
+     * Estimated seconds until total is reached, or -1 if not known.
+     */
+    public long getEta(long bytes, long total) {
+        if (rate <= 0 || total <= 0 || bytes > total) return -1;
+        return (long) Math.ceil((total - bytes) / rate);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the properties straight out of build.prop style files ("name=value",
+ * '#' comments) without starting any process. Later files override earlier
+ * ones, the same way init loads them.
+ */
+public class PropFilePropertyProvider implements SystemPropertyProvider {
+    public static final File[] DEFAULT_FILES = new File[] {
+        new File("/default.prop"),
+        new File("/system/build.prop"),
+    };
+
+    private final File[] files;
+
+    public PropFilePropertyProvider() {
+        this(DEFAULT_FILES);
+    }
+
+    public PropFilePropertyProvider(File... files) {
+        this.files = files;
+    }
+
+    @Override
+    public Map<String, String> load() {
+        HashMap<String, String> props = new HashMap<String, String>();
+        boolean readAny = false;
+        for (File file : files) {
+            if (!file.canRead()) continue;
+
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new FileReader(file));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    parseLine(line, props);
+                }
+                readAny = true;
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (in != null) {
+                    try { in.close(); }
+                    catch (Exception e) { }
+                }
+            }
+        }
+        return readAny ? props : null;
+    }
+
+    static void parseLine(String line, Map<String, String> props) {
+        line = line.trim();
+        if (!line.startsWith(OTA_PROP_PREFIX)) return;
+        int split = line.indexOf('=');
+        if (split < 0) return;
+
+        String name = line.substring(0, split).trim();
+        String value = line.substring(split + 1).trim();
+        if (value.length() == 0) {
+            props.remove(name);
+        } else {
+            props.put(name, value);
+        }
+    }
+}
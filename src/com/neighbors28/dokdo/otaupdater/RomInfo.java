@@ -28,24 +28,45 @@ public class RomInfo {
     public String url;
     public String md5;
     public Date date;
+    public String hashAlgorithm;
+    public String hash;
+    public String channel;
+    public String deltaUrl;
+    public String deltaBaseMd5;
+    public String deltaMd5;
+    public String blocksUrl;
 
     public RomInfo(String romName, String version, String changelog, String downurl, String md5, Date date) {
+        this(romName, version, changelog, downurl, md5, date, null, null);
+    }
+
+    public RomInfo(String romName, String version, String changelog, String downurl, String md5, Date date, String hashAlgorithm, String hash) {
         this.romName = romName;
         this.version = version;
         this.changelog = changelog;
         this.url = downurl;
         this.md5 = md5;
         this.date = date;
+        this.hashAlgorithm = hashAlgorithm;
+        this.hash = hash;
     }
 
     public static RomInfo fromIntent(Intent i) {
-        return new RomInfo(
+        RomInfo info = new RomInfo(
                 i.getStringExtra("info_rom"),
                 i.getStringExtra("info_version"),
                 i.getStringExtra("info_changelog"),
                 i.getStringExtra("info_url"),
                 i.getStringExtra("info_md5"),
-                Utils.parseDate(i.getStringExtra("info_date")));
+                Utils.parseDate(i.getStringExtra("info_date")),
+                i.getStringExtra("info_hash_algo"),
+                i.getStringExtra("info_hash"));
+        info.channel = i.getStringExtra("info_channel");
+        info.deltaUrl = i.getStringExtra("info_delta_url");
+        info.deltaBaseMd5 = i.getStringExtra("info_delta_base");
+        info.deltaMd5 = i.getStringExtra("info_delta_md5");
+        info.blocksUrl = i.getStringExtra("info_blocks_url");
+        return info;
     }
 
     public void addToIntent(Intent i) {
@@ -55,5 +76,44 @@ public class RomInfo {
         i.putExtra("info_url", url);
         i.putExtra("info_md5", md5);
         i.putExtra("info_date", Utils.formatDate(date));
+        i.putExtra("info_hash_algo", hashAlgorithm);
+        i.putExtra("info_hash", hash);
+        i.putExtra("info_channel", channel);
+        i.putExtra("info_delta_url", deltaUrl);
+        i.putExtra("info_delta_base", deltaBaseMd5);
+        i.putExtra("info_delta_md5", deltaMd5);
+        i.putExtra("info_blocks_url", blocksUrl);
+    }
+
+    /**
+     * Name the package is saved under in the download directory.
+     */
+    public String getFileName() {
+        return Slugify.slugify(romName + "_ota_" + "package_" + version) + ".zip";
+    }
+
+    /**
+     * Whether the manifest offers a patch against an earlier package.
+     */
+    public boolean hasDelta() {
+        return deltaUrl != null && deltaBaseMd5 != null;
+    }
+
+    /**
+     * The digests a download of this package has to be checked against: MD5
+     * always, plus the manifest's extra hash if it names a supported one.
+     */
+    public String[] getHashAlgorithms() {
+        String algorithm = FileHasher.normalize(hashAlgorithm);
+        if (hash == null || algorithm == null || algorithm.equals(FileHasher.MD5)) {
+            return new String[] { FileHasher.MD5 };
+        }
+        return new String[] { FileHasher.MD5, algorithm };
+    }
+
+    public String getExpectedHash(String algorithm) {
+        if (algorithm.equals(FileHasher.MD5)) return md5;
+        if (algorithm.equals(FileHasher.normalize(hashAlgorithm))) return hash;
+        return null;
     }
 }
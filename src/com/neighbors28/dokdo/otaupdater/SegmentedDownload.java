@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Fetches a package over several connections at once, each one pulling its own
+ * byte range into a preallocated .part file with positional writes. Per-range
+ * progress is checkpointed into the {@link PartialDownload} sidecar so an
+ * interrupted transfer picks up every range where it stopped.
+ */
+public class SegmentedDownload {
+    public static final long MIN_SEGMENT_SIZE = 4 * 1048576;
+
+    private static final int TIMEOUT = 30000;
+    private static final long CHECKPOINT_INTERVAL = 5000;
+
+    public static class RangeNotSupportedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RangeNotSupportedException(String msg) {
+            super(msg);
+        }
+    }
+
+    private static class Segment {
+        final long start;
+        final long end;
+        volatile long done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+        }
+
+        boolean isDone() {
+            return start + done > end;
+        }
+    }
+
+    private final PartialDownload part;
+    private final URL url;
+    private final Segment[] segments;
+    private final int syncPolicy;
+
+    private RandomAccessFile raf = null;
+    private FileChannel channel = null;
+    private ExecutorService executor = null;
+    private CountDownLatch latch = null;
+    private long lastCheckpoint = 0;
+    private int blockSize = 0;
+
+    private volatile boolean cancelled = false;
+    private volatile IOException error = null;
+
+    public SegmentedDownload(PartialDownload part, URL url, int count, int syncPolicy) {
+        this.part = part;
+        this.url = url;
+        this.syncPolicy = syncPolicy;
+
+        Segment[] segments = part.isSegmented() ? decode(part.getSegmentState()) : null;
+        if (segments == null) segments = split(part.getLength(), count);
+        this.segments = segments;
+    }
+
+    /**
+     * Whether the response to a plain GET says the server will honour byte
+     * ranges for this file and the file is big enough to be worth splitting.
+     */
+    public static boolean canSegment(URLConnection conn, PartialDownload part, int count) {
+        if (count < 2) return false;
+        if (!(conn instanceof HttpURLConnection)) return false;
+        if (part.getValidator() == null) return false;
+        if (part.getLength() < 2 * MIN_SEGMENT_SIZE) return false;
+        return "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+    }
+
+    private static Segment[] split(long length, int count) {
+        count = (int) Math.max(1, Math.min(count, length / MIN_SEGMENT_SIZE));
+        Segment[] segments = new Segment[count];
+        long size = length / count;
+        for (int q = 0; q < count; q++) {
+            long start = q * size;
+            long end = q == count - 1 ? length - 1 : start + size - 1;
+            segments[q] = new Segment(start, end, 0);
+        }
+        return segments;
+    }
+
+    private static Segment[] decode(String state) {
+        try {
+            String[] parts = state.split(",");
+            Segment[] segments = new Segment[parts.length];
+            for (int q = 0; q < parts.length; q++) {
+                String[] fields = parts[q].split("[-:]");
+                segments[q] = new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+            }
+            return segments;
+        } catch (Exception e) {
+            Log.w("OTA::Download", "unreadable range state, starting over: " + e);
+            return null;
+        }
+    }
+
+    private String encode() {
+        StringBuilder state = new StringBuilder();
+        for (Segment seg : segments) {
+            if (state.length() != 0) state.append(',');
+            state.append(seg.start).append('-').append(seg.end).append(':').append(seg.done);
+        }
+        return state.toString();
+    }
+
+    public long getBytesDone() {
+        long total = 0;
+        for (Segment seg : segments) {
+            total += seg.done;
+        }
+        return total;
+    }
+
+    public void start() throws IOException {
+        raf = part.openFile(false, part.getLength());
+        channel = raf.getChannel();
+        blockSize = TransferBuffer.getBlockSize(part.getPartFile().getParent());
+        part.saveSegmentState(encode());
+        lastCheckpoint = System.currentTimeMillis();
+
+        int pending = 0;
+        for (Segment seg : segments) {
+            if (!seg.isDone()) pending++;
+        }
+        Log.v("OTA::Download", "segmented download, " + pending + " of " + segments.length + " ranges pending");
+
+        latch = new CountDownLatch(pending);
+        if (pending == 0) return;
+
+        executor = Executors.newFixedThreadPool(pending);
+        for (final Segment seg : segments) {
+            if (seg.isDone()) continue;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(seg);
+                    } catch (RangeNotSupportedException e) {
+                        if (error == null) error = e;
+                        cancelled = true;
+                    } catch (IOException e) {
+                        Log.w("OTA::Download", "range " + seg.start + "-" + seg.end + " stopped: " + e);
+                        if (error == null) error = e;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits up to timeout ms for all ranges to finish, checkpointing progress
+     * along the way. Returns true once every range has stopped.
+     */
+    public boolean await(long timeout) throws IOException {
+        boolean finished;
+        try {
+            finished = latch.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            cancel();
+            return true;
+        }
+
+        if (!finished && System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+        return finished;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Stops all ranges, records how far each one got and releases the file.
+     * Throws whatever error stopped a range, if any.
+     */
+    public void finish() throws IOException {
+        cancelled = true;
+        try {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+            checkpoint();
+        } finally {
+            if (raf != null) {
+                try { raf.close(); }
+                catch (Exception e) { }
+                raf = null;
+            }
+        }
+
+        if (error != null) throw error;
+    }
+
+    public boolean isComplete() {
+        for (Segment seg : segments) {
+            if (!seg.isDone()) return false;
+        }
+        return true;
+    }
+
+    private void checkpoint() throws IOException {
+        if (channel == null || !channel.isOpen()) return;
+        // the ranges recorded as done must actually be on disk
+        if (syncPolicy != Config.SYNC_NEVER) channel.force(false);
+        part.saveSegmentState(encode());
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private void fetch(Segment seg) throws IOException {
+        long pos = seg.start + seg.done;
+        if (pos > seg.end) return;
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(TIMEOUT);
+        conn.setReadTimeout(TIMEOUT);
+        conn.setRequestProperty("Range", "bytes=" + pos + "-" + seg.end);
+        conn.setRequestProperty("If-Range", part.getValidator());
+
+        InputStream is = null;
+        TransferBuffer tb = null;
+        try {
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new RangeNotSupportedException("server answered range " + pos + "-" + seg.end + " with " + conn.getResponseCode());
+            }
+
+            is = conn.getInputStream();
+            tb = new TransferBuffer(blockSize, pos);
+            int nRead = -1;
+            while (!cancelled && pos <= seg.end
+                    && (nRead = tb.readFrom(is, seg.end - pos + 1, null)) != -1) {
+                pos += nRead;
+                // only count what is actually in the file, checkpoints rely on it
+                int written = tb.drainTo(channel);
+                if (written > 0 && syncPolicy == Config.SYNC_ALWAYS) channel.force(false);
+                seg.done += written;
+            }
+
+            if (!cancelled && pos <= seg.end) {
+                throw new IOException("range " + seg.start + "-" + seg.end + " closed at " + pos);
+            }
+        } finally {
+            if (tb != null) {
+                try { seg.done += tb.flushTo(channel); }
+                catch (Exception e) { }
+                tb.release();
+            }
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+            conn.disconnect();
+        }
+    }
+}
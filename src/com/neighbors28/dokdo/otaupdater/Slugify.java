@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.util.regex.Pattern;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+final class Slugify {
+    private static final Pattern NON_ASCII = Pattern.compile("[^\\p{ASCII}]");
+
+    public static String slugify(String input) {
+        if (input == null || input.length() == 0) return "";
+        String toReturn = normalize(input);
+        toReturn = toReturn.replace(" ", "-");
+        toReturn = toReturn.toLowerCase();
+        return toReturn;
+    }
+
+    @TargetApi(9)
+    private static String normalize(String input) {
+        if (input == null || input.length() == 0) return "";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            input = Normalizer.normalize(input, Form.NFD);
+        }
+        return NON_ASCII.matcher(input).replaceAll("");
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps the properties read by another provider in SharedPreferences and
+ * serves them from there until the installed build changes, so only the first
+ * start after a flash has to fork getprop.
+ */
+public class SnapshotPropertyProvider implements SystemPropertyProvider {
+    private static final String PREFS_NAME = "propsnapshot";
+    private static final String BUILD_KEY = "build";
+
+    private final SharedPreferences PREFS;
+    private final SystemPropertyProvider source;
+
+    public SnapshotPropertyProvider(Context ctx, SystemPropertyProvider source) {
+        this.PREFS = ctx.getApplicationContext().getSharedPreferences(PREFS_NAME, 0);
+        this.source = source;
+    }
+
+    private static String getBuildKey() {
+        // custom builds often keep the stock fingerprint, the build time always changes
+        return Build.FINGERPRINT + "@" + Build.TIME;
+    }
+
+    @Override
+    public Map<String, String> load() {
+        String buildKey = getBuildKey();
+        if (buildKey.equals(PREFS.getString(BUILD_KEY, null))) {
+            HashMap<String, String> props = new HashMap<String, String>();
+            for (Map.Entry<String, ?> e : PREFS.getAll().entrySet()) {
+                if (e.getKey().startsWith(OTA_PROP_PREFIX)) {
+                    props.put(e.getKey(), (String) e.getValue());
+                }
+            }
+            return props;
+        }
+
+        Log.v("OTA::Props", "no property snapshot for this build, reading properties");
+        Map<String, String> props = source.load();
+        if (props == null) return null;
+
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.clear();
+            for (Map.Entry<String, String> e : props.entrySet()) {
+                editor.putString(e.getKey(), e.getValue());
+            }
+            editor.putString(BUILD_KEY, buildKey);
+            editor.commit();
+        }
+        return props;
+    }
+}
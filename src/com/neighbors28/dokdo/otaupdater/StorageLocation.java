@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Resolves (and creates) the download directory on a background thread the
+ * first time it is asked for, instead of whenever Config happens to be loaded.
+ * Background callers that need the directory before that finishes block until
+ * it has; the main thread asks with a {@link Callback} instead.
+ */
+public class StorageLocation {
+    public static interface Callback {
+        void onResolved(File dir);
+    }
+
+    private static final CountDownLatch resolved = new CountDownLatch(1);
+    private static final ArrayList<Callback> callbacks = new ArrayList<Callback>();
+    private static boolean started = false;
+    private static File downloadDir = null;
+
+    public static synchronized void resolveAsync() {
+        if (started) return;
+        started = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    resolve();
+                } finally {
+                    finishResolve();
+                }
+            }
+        }, "OTA::StorageLocation").start();
+    }
+
+    public static boolean isResolved() {
+        return resolved.getCount() == 0;
+    }
+
+    /**
+     * Calls callback with the download directory, straight away if it is
+     * already resolved and otherwise on the main thread once it is.
+     */
+    public static void getDownloadDir(Callback callback) {
+        synchronized (StorageLocation.class) {
+            if (!isResolved()) {
+                callbacks.add(callback);
+                resolveAsync();
+                return;
+            }
+        }
+        callback.onResolved(downloadDir);
+    }
+
+    /**
+     * Blocks until the download directory is resolved; not for the main
+     * thread.
+     */
+    public static File getDownloadDir() {
+        resolveAsync();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                resolved.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return downloadDir;
+    }
+
+    public static String getDownloadPath() {
+        return getDownloadDir().getPath() + "/";
+    }
+
+    private static void resolve() {
+        File dir = new File("/" + Utils.getOSSdPath() + "/" + Config.DL_DIR);
+        if (dir.exists()) {
+            if (!dir.isDirectory()) {
+                dir.delete();
+                dir.mkdirs();
+            }
+        } else {
+            dir.mkdirs();
+        }
+        Log.v("OTA::StorageLocation", "download directory: " + dir);
+        downloadDir = dir;
+    }
+
+    private static void finishResolve() {
+        final ArrayList<Callback> waiting;
+        synchronized (StorageLocation.class) {
+            resolved.countDown();
+            waiting = new ArrayList<Callback>(callbacks);
+            callbacks.clear();
+        }
+        if (waiting.isEmpty()) return;
+
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : waiting) {
+                    callback.onResolved(downloadDir);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.util.Map;
+
+/**
+ * Source of the otaupdater.* system properties. Implementations read all of
+ * them in one pass rather than one lookup per property.
+ */
+public interface SystemPropertyProvider {
+    public static final String OTA_PROP_PREFIX = "otaupdater.";
+
+    /**
+     * Returns every otaupdater.* property with a non-empty value, or null if
+     * the properties couldn't be read at all.
+     */
+    Map<String, String> load();
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.StatFs;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Sits between a network stream and the file it is being written to. Bytes are
+ * read straight into a pooled buffer (no BufferedInputStream copy in between)
+ * and only written out once the buffer is full, cut at a storage block
+ * boundary so FAT/FUSE sdcards see few, whole-block writes. The buffer grows
+ * or shrinks with the measured throughput so a fast link isn't throttled by
+ * tiny writes and a slow one doesn't sit on a megabyte of unwritten data.
+ */
+public class TransferBuffer {
+    // middle of the 16-256 KB range where write size stops mattering
+    // (benchmarks/results/buffersize.txt), until the first resize
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    // how much data a write should carry, in ms of transfer at the current rate;
+    // 64 KB/s-1 MB/s links land in the flat 16-256 KB range of buffersize.txt
+    private static final long TARGET_FILL_TIME = 250;
+    private static final long RESIZE_INTERVAL = 1000;
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private final int blockSize;
+    private final int minSize;
+
+    private byte[] buf;
+    private int fill = 0;
+    private long position;
+
+    private long windowStart;
+    private long windowBytes = 0;
+
+    /**
+     * position is the file offset the first buffered byte will be written at.
+     */
+    public TransferBuffer(int blockSize, long position) {
+        if (blockSize <= 0 || blockSize > BufferPool.MAX_SIZE / 2) blockSize = 1;
+        this.blockSize = blockSize;
+        this.minSize = BufferPool.sizeFor(2 * blockSize);
+        this.position = position;
+        this.buf = BufferPool.acquire(Math.max(minSize, DEFAULT_SIZE));
+        this.windowStart = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Block size of the filesystem holding path, falling back to 4 KB if
+     * StatFs can't tell.
+     */
+    public static int getBlockSize(String path) {
+        try {
+            int size = new StatFs(path).getBlockSize();
+            if (size > 0) return size;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return DEFAULT_BLOCK_SIZE;
+    }
+
+    public int getSize() {
+        return buf.length;
+    }
+
+    public boolean isFull() {
+        return fill == buf.length;
+    }
+
+    /**
+     * Reads at most max bytes from is into the buffer, feeding them to hasher
+     * if there is one. Returns the number of bytes read or -1 at end of
+     * stream. Call one of the drainTo methods before reading into a full
+     * buffer.
+     */
+    public int readFrom(InputStream is, long max, FileHasher hasher) throws IOException {
+        int len = (int) Math.min(buf.length - fill, max);
+        int nRead = is.read(buf, fill, len);
+        if (nRead <= 0) return nRead;
+        if (hasher != null) hasher.update(buf, fill, nRead);
+        fill += nRead;
+        return nRead;
+    }
+
+    /**
+     * Writes out the block-aligned part of a full buffer, keeping the tail.
+     * Returns the number of bytes written, 0 if the buffer wasn't full yet.
+     */
+    public int drainTo(OutputStream os) throws IOException {
+        if (!isFull()) return 0;
+        int len = alignedLength();
+        os.write(buf, 0, len);
+        consumed(len);
+        return len;
+    }
+
+    /**
+     * Like {@link #drainTo(OutputStream)}, but with positional writes so
+     * several buffers can share channel.
+     */
+    public int drainTo(FileChannel channel) throws IOException {
+        if (!isFull()) return 0;
+        int len = alignedLength();
+        write(channel, len);
+        consumed(len);
+        return len;
+    }
+
+    /**
+     * Writes out everything still buffered, returning the number of bytes.
+     */
+    public int flushTo(OutputStream os) throws IOException {
+        int len = fill;
+        if (len > 0) os.write(buf, 0, len);
+        consumed(len);
+        return len;
+    }
+
+    public int flushTo(FileChannel channel) throws IOException {
+        int len = fill;
+        write(channel, len);
+        consumed(len);
+        return len;
+    }
+
+    /**
+     * Hands the buffer back to the pool; anything not flushed is lost.
+     */
+    public void release() {
+        if (buf == null) return;
+        BufferPool.release(buf);
+        buf = null;
+        fill = 0;
+    }
+
+    private void write(FileChannel channel, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        while (bb.hasRemaining()) {
+            channel.write(bb, position + bb.position());
+        }
+    }
+
+    private int alignedLength() {
+        long end = position + fill;
+        int len = (int) (end - end % blockSize - position);
+        return len > 0 ? len : fill;
+    }
+
+    private void consumed(int len) {
+        if (len < fill) System.arraycopy(buf, len, buf, 0, fill - len);
+        fill -= len;
+        position += len;
+        windowBytes += len;
+        adapt();
+    }
+
+    private void adapt() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - windowStart;
+        if (elapsed < RESIZE_INTERVAL) return;
+
+        long rate = windowBytes * 1000 / elapsed;
+        windowStart = now;
+        windowBytes = 0;
+
+        int size = BufferPool.sizeFor((int) Math.min(BufferPool.MAX_SIZE, Math.max(minSize, rate * TARGET_FILL_TIME / 1000)));
+        if (size == buf.length || size < fill) return;
+
+        byte[] resized = BufferPool.acquire(size);
+        System.arraycopy(buf, 0, resized, 0, fill);
+        BufferPool.release(buf);
+        buf = resized;
+        Log.v("OTA::Download", "transfer buffer now " + (size / 1024) + " KB at " + (rate / 1024) + " KB/s");
+    }
+}
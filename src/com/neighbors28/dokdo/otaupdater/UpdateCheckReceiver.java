@@ -17,11 +17,15 @@
 
 package com.neighbors28.dokdo.otaupdater;
 
+import android.annotation.TargetApi;
 import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
@@ -34,11 +38,15 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
     public void onReceive(final Context context, Intent intent) {
         final Config cfg = Config.getInstance(context.getApplicationContext());
 
+        // picks up downloads that were still queued when the device went down
+        DownloadService.startPending(context);
+        PackageRetention.getInstance(context).enforceAsync();
+
         if (cfg.hasStoredUpdate()) {
             RomInfo info = cfg.getStoredUpdate();
-            if (Utils.isUpdate(info)) {
+            if (Utils.isUpdate(context, info)) {
                 if (cfg.getShowNotif()) {
-                    Utils.showUpdateNotif(context, info);
+                    showUpdateNotif(context, info);
                     Log.v("OTA::Receiver", "Found stored update");
                 } else {
                     Log.v("OTA::Receiver", "Found stored update, notif not shown");
@@ -77,6 +85,14 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
                     setAlarm(context);
                 }
 
+                if (!Utils.dataAvailable(context)) {
+                    // ConstraintReceiver runs the check once there's a network again
+                    Log.v("OTA::Receiver", "No data connection, deferring update check");
+                    cfg.setCheckDeferred(true);
+                    DownloadPolicy.setWatching(context, true);
+                    return;
+                }
+
                 PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
                 final WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, UpdateCheckReceiver.class.getName());
                 wl.acquire();
@@ -86,10 +102,10 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
                     public void onStartLoading() { }
                     @Override
                     public void onLoaded(RomInfo info) {
-                        if (Utils.isUpdate(info)) {
+                        if (Utils.isUpdate(context, info)) {
                             cfg.storeUpdate(info);
                             if (cfg.getShowNotif()) {
-                                Utils.showUpdateNotif(context, info);
+                                showUpdateNotif(context, info);
                             } else {
                                 Log.v("OTA::Receiver", "found update, notif not shown");
                             }
@@ -118,4 +134,31 @@ public class UpdateCheckReceiver extends BroadcastReceiver {
         am.cancel(pendingIntent);
         am.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis(), AlarmManager.INTERVAL_DAY, pendingIntent);
     }
+
+    @TargetApi(11)
+    @SuppressWarnings("deprecation")
+    public static void showUpdateNotif(Context ctx, RomInfo info) {
+        Intent i = new Intent(ctx, OTAUpdaterActivity.class);
+        i.setAction(OTAUpdaterActivity.NOTIF_ACTION);
+        info.addToIntent(i);
+
+        NotificationManager nm = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        PendingIntent contentIntent = PendingIntent.getActivity(ctx, 0, i, PendingIntent.FLAG_CANCEL_CURRENT);
+
+        Notification notif = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            Notification.Builder builder = new Notification.Builder(ctx);
+            builder.setContentIntent(contentIntent);
+            builder.setContentTitle(ctx.getString(R.string.notif_source));
+            builder.setContentText(ctx.getString(R.string.notif_text_rom));
+            builder.setTicker(ctx.getString(R.string.notif_text_rom));
+            builder.setWhen(System.currentTimeMillis());
+            builder.setSmallIcon(R.drawable.ic_launcher);
+            notif = builder.getNotification();
+        } else {
+            notif = new Notification(R.drawable.ic_launcher, ctx.getString(R.string.notif_text_rom), System.currentTimeMillis());
+            notif.setLatestEventInfo(ctx, ctx.getString(R.string.notif_source), ctx.getString(R.string.notif_text_rom), contentIntent);
+        }
+        nm.notify(1, notif);
+    }
 }
@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Every release the server has offered and what became of it, kept as an
+ * append-only log in the app's files dir. An offer record carries the full
+ * {@link RomInfo}; later records only name the release and the event
+ * (downloaded, verified, installed, dismissed). The log is replayed into a
+ * sorted index on load, and rewritten with one set of records per release
+ * once it holds far more records than releases or too many releases.
+ * <p>
+ * New records are written straight away unless a write-behind scheduler is
+ * set, in which case they are held in memory until {@link #flush()}.
+ */
+public class UpdateHistory {
+    public static final int EVENT_DOWNLOADED = 1;
+    public static final int EVENT_VERIFIED = 2;
+    public static final int EVENT_INSTALLED = 3;
+    public static final int EVENT_DISMISSED = 4;
+
+    private static final String LOG_NAME = "history";
+    private static final String BACKUP_SUFFIX = ".bad";
+    private static final String MAGIC = "OTAHIST";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int RECORD_OFFER = 1;
+    private static final int RECORD_EVENT = 2;
+
+    private static final int MAX_ENTRIES = 500;
+    private static final int SLACK_RECORDS = 64;
+
+    public static class Entry {
+        public final RomInfo info;
+        final Key key;
+        long offeredAt = 0;
+        long downloadedAt = 0;
+        long verifiedAt = 0;
+        long installedAt = 0;
+        long dismissedAt = 0;
+
+        Entry(RomInfo info) {
+            this.info = info;
+            this.key = new Key(info);
+        }
+
+        public long getOfferedAt() {
+            return offeredAt;
+        }
+
+        public long getDownloadedAt() {
+            return downloadedAt;
+        }
+
+        public long getVerifiedAt() {
+            return verifiedAt;
+        }
+
+        public long getInstalledAt() {
+            return installedAt;
+        }
+
+        public boolean isPending() {
+            return installedAt == 0 && dismissedAt == 0;
+        }
+    }
+
+    /**
+     * Orders releases by build date, then version.
+     */
+    private static class Key implements Comparable<Key> {
+        final long date;
+        final String version;
+
+        Key(RomInfo info) {
+            this(info.date == null ? -1 : info.date.getTime(), info.version);
+        }
+
+        Key(long date, String version) {
+            this.date = date;
+            this.version = version == null ? "" : version.toLowerCase();
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            if (date != other.date) return date < other.date ? -1 : 1;
+            return version.compareTo(other.version);
+        }
+    }
+
+    private final File logFile;
+    private final TreeMap<Key, Entry> entries = new TreeMap<Key, Entry>();
+    private final TreeMap<Key, Entry> pending = new TreeMap<Key, Entry>();
+    private final HashMap<String, Entry> byVersion = new HashMap<String, Entry>();
+    private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+    private Runnable writeBehind = null;
+    private int records = 0;
+
+    // package-private so tests can load a log of their own
+    UpdateHistory(Context ctx) {
+        logFile = new File(ctx.getFilesDir(), LOG_NAME);
+        load();
+        markInstalled(Utils.getOtaVersion());
+        if (needsCompaction()) compact();
+    }
+    private static UpdateHistory instance = null;
+    public static synchronized UpdateHistory getInstance(Context ctx) {
+        if (instance == null) instance = new UpdateHistory(ctx.getApplicationContext());
+        return instance;
+    }
+
+    /**
+     * The newest release that has been offered and neither installed nor
+     * dismissed since, or null.
+     */
+    public synchronized RomInfo getNewestPending() {
+        if (pending.isEmpty()) return null;
+        return pending.lastEntry().getValue().info;
+    }
+
+    public synchronized boolean isNewestPending(RomInfo info) {
+        return !pending.isEmpty() && pending.lastKey().compareTo(new Key(info)) == 0;
+    }
+
+    public synchronized boolean isInstalled(RomInfo info) {
+        Entry entry = entries.get(new Key(info));
+        return entry != null && entry.installedAt != 0;
+    }
+
+    public synchronized Entry find(String version) {
+        if (version == null) return null;
+        return byVersion.get(version.toLowerCase());
+    }
+
+    /**
+     * Newest first.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.descendingMap().values());
+    }
+
+    /**
+     * Records that the server offers info, which replaces whatever it offered
+     * before.
+     */
+    public synchronized void offered(RomInfo info) {
+        Key key = new Key(info);
+        long now = System.currentTimeMillis();
+        for (Entry entry : new ArrayList<Entry>(pending.values())) {
+            if (entry.key.compareTo(key) != 0) addEvent(entry, EVENT_DISMISSED, now);
+        }
+
+        Entry existing = entries.get(key);
+        if (existing != null && existing.isPending() && sameRelease(existing.info, info)) return;
+        addOffer(info, now);
+    }
+
+    public synchronized void record(RomInfo info, int event) {
+        Entry entry = entries.get(new Key(info));
+        if (entry == null) {
+            addOffer(info, System.currentTimeMillis());
+            entry = entries.get(new Key(info));
+        }
+        addEvent(entry, event, System.currentTimeMillis());
+    }
+
+    /**
+     * Dismisses every pending release, for when the server says there is
+     * nothing newer than what's installed.
+     */
+    public synchronized void dismissPending() {
+        if (pending.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        for (Entry entry : new ArrayList<Entry>(pending.values())) {
+            addEvent(entry, EVENT_DISMISSED, now);
+        }
+    }
+
+    private void markInstalled(String version) {
+        Entry installed = find(version);
+        if (installed == null || installed.installedAt != 0) return;
+
+        long now = System.currentTimeMillis();
+        addEvent(installed, EVENT_INSTALLED, now);
+        // anything built before the running ROM is no longer an update
+        for (Entry entry : new ArrayList<Entry>(pending.headMap(installed.key).values())) {
+            addEvent(entry, EVENT_DISMISSED, now);
+        }
+        Log.v("OTA::History", "now running " + version);
+    }
+
+    private void addOffer(RomInfo info, long time) {
+        applyOffer(info, time);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            writeOffer(out, info, time);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        append(record.toByteArray());
+    }
+
+    private void addEvent(Entry entry, int event, long time) {
+        applyEvent(entry, event, time);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            writeEvent(out, entry, event, time);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        append(record.toByteArray());
+    }
+
+    private void applyOffer(RomInfo info, long time) {
+        Key key = new Key(info);
+        Entry entry = entries.get(key);
+        Entry updated = new Entry(info);
+        if (entry != null) {
+            updated.offeredAt = entry.offeredAt;
+            updated.downloadedAt = entry.downloadedAt;
+            updated.verifiedAt = entry.verifiedAt;
+            updated.installedAt = entry.installedAt;
+        }
+        if (updated.offeredAt == 0) updated.offeredAt = time;
+        // offering a release again brings it back even if it was dismissed
+        entries.put(key, updated);
+        byVersion.put(key.version, updated);
+        if (updated.isPending()) {
+            pending.put(key, updated);
+        } else {
+            pending.remove(key);
+        }
+    }
+
+    private void applyEvent(Entry entry, int event, long time) {
+        switch (event) {
+        case EVENT_DOWNLOADED:
+            entry.downloadedAt = time;
+            break;
+        case EVENT_VERIFIED:
+            entry.verifiedAt = time;
+            break;
+        case EVENT_INSTALLED:
+            entry.installedAt = time;
+            break;
+        case EVENT_DISMISSED:
+            entry.dismissedAt = time;
+            break;
+        }
+        if (!entry.isPending()) pending.remove(entry.key);
+    }
+
+    private static boolean sameRelease(RomInfo a, RomInfo b) {
+        return equal(a.url, b.url) && equal(a.md5, b.md5) && equal(a.hash, b.hash)
+                && equal(a.deltaUrl, b.deltaUrl) && equal(a.blocksUrl, b.blocksUrl)
+                && equal(a.changelog, b.changelog);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void writeOffer(DataOutputStream out, RomInfo info, long time) throws IOException {
+        out.writeByte(RECORD_OFFER);
+        out.writeLong(time);
+        writeString(out, info.romName);
+        writeString(out, info.version);
+        writeString(out, info.changelog);
+        writeString(out, info.url);
+        writeString(out, info.md5);
+        out.writeLong(info.date == null ? -1 : info.date.getTime());
+        writeString(out, info.hashAlgorithm);
+        writeString(out, info.hash);
+        writeString(out, info.channel);
+        writeString(out, info.deltaUrl);
+        writeString(out, info.deltaBaseMd5);
+        writeString(out, info.deltaMd5);
+        writeString(out, info.blocksUrl);
+    }
+
+    private static void writeEvent(DataOutputStream out, Entry entry, int event, long time) throws IOException {
+        out.writeByte(RECORD_EVENT);
+        out.writeLong(time);
+        out.writeByte(event);
+        out.writeLong(entry.key.date);
+        writeString(out, entry.key.version);
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len == -1) return null;
+        if (len < 0) throw new IOException("bad string length " + len);
+        // running past the end is what a torn append looks like
+        if (len > in.available()) throw new EOFException();
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void load() {
+        if (!logFile.exists()) return;
+
+        // compaction keeps the log small enough to read in one go
+        byte[] data = new byte[(int) logFile.length()];
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(logFile);
+            new DataInputStream(is).readFully(data);
+        } catch (Exception e) {
+            e.printStackTrace();
+            logFile.delete();
+            return;
+        } finally {
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+        }
+
+        ByteArrayInputStream bis = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bis);
+        long good = 0;
+        String problem = null;
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!MAGIC.equals(new String(magic, "US-ASCII")) || in.readInt() != FORMAT_VERSION) {
+                Log.w("OTA::History", "unknown history format, starting over");
+                backUp(data);
+                logFile.delete();
+                return;
+            }
+            good = data.length - bis.available();
+
+            while (bis.available() > 0) {
+                int type = in.readByte();
+                if (!readRecord(in, type)) {
+                    problem = "unknown record type " + type;
+                    break;
+                }
+                good = data.length - bis.available();
+                records++;
+            }
+        } catch (EOFException e) {
+            // a record cut off by process death, dropped below
+        } catch (Exception e) {
+            problem = e.toString();
+        }
+
+        if (good == 0) {
+            logFile.delete();
+        } else if (data.length != good) {
+            if (problem == null) {
+                Log.w("OTA::History", "dropping " + (data.length - good) + " bytes of torn records");
+            } else {
+                // records carry no length, so nothing after a bad one can be found again
+                Log.w("OTA::History", "history corrupt at offset " + good + " (" + problem + "), keeping " + records
+                        + " records and dropping the last " + (data.length - good) + " bytes");
+                backUp(data);
+            }
+            truncate(good);
+        }
+    }
+
+    /**
+     * Keeps a copy of a log that is about to lose more than a torn record,
+     * replacing any earlier copy.
+     */
+    private void backUp(byte[] data) {
+        File backupFile = new File(logFile.getPath() + BACKUP_SUFFIX);
+        FileOutputStream os = null;
+        try {
+            os = new FileOutputStream(backupFile);
+            os.write(data);
+            Log.w("OTA::History", "original history kept in " + backupFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (os != null) {
+                try { os.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    /**
+     * Replays one record, returning false if it isn't a record at all.
+     */
+    private boolean readRecord(DataInputStream in, int type) throws IOException {
+        long time = in.readLong();
+        if (type == RECORD_OFFER) {
+            String romName = readString(in);
+            String version = readString(in);
+            String changelog = readString(in);
+            String url = readString(in);
+            String md5 = readString(in);
+            long date = in.readLong();
+            RomInfo info = new RomInfo(romName, version, changelog, url, md5, date < 0 ? null : new Date(date),
+                    readString(in), readString(in));
+            info.channel = readString(in);
+            info.deltaUrl = readString(in);
+            info.deltaBaseMd5 = readString(in);
+            info.deltaMd5 = readString(in);
+            info.blocksUrl = readString(in);
+            applyOffer(info, time);
+            return true;
+        } else if (type == RECORD_EVENT) {
+            int event = in.readByte();
+            long date = in.readLong();
+            String version = readString(in);
+            Entry entry = entries.get(new Key(date, version));
+            // events for releases or of kinds this version doesn't know are skipped
+            if (entry != null && event >= EVENT_DOWNLOADED && event <= EVENT_DISMISSED) {
+                applyEvent(entry, event, time);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Holds new records back until {@link #flush()}, calling scheduler each
+     * time one is added so the owner can arrange for that flush.
+     */
+    public synchronized void setWriteBehind(Runnable scheduler) {
+        writeBehind = scheduler;
+    }
+
+    private void append(byte[] record) {
+        unwritten.write(record, 0, record.length);
+        records++;
+        if (writeBehind != null) {
+            writeBehind.run();
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Appends every record not yet written in one write.
+     */
+    public synchronized void flush() {
+        if (unwritten.size() == 0) return;
+
+        FileOutputStream os = null;
+        try {
+            boolean fresh = !logFile.exists() || logFile.length() == 0;
+            os = new FileOutputStream(logFile, !fresh);
+            if (fresh) {
+                DataOutputStream out = new DataOutputStream(os);
+                out.write(MAGIC.getBytes("US-ASCII"));
+                out.writeInt(FORMAT_VERSION);
+            }
+            unwritten.writeTo(os);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (os != null) {
+                try { os.close(); }
+                catch (Exception e) { }
+            }
+        }
+        unwritten.reset();
+        if (needsCompaction()) compact();
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(logFile, "rw");
+            raf.setLength(length);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (raf != null) {
+                try { raf.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    private boolean needsCompaction() {
+        return entries.size() > MAX_ENTRIES || records > 3 * entries.size() + SLACK_RECORDS;
+    }
+
+    /**
+     * Rewrites the log with one offer plus its events per release, dropping
+     * the oldest releases that are no longer pending once there are too many.
+     */
+    private void compact() {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (entries.size() > MAX_ENTRIES && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            if (entry.isPending()) continue;
+            oldest.remove();
+            if (byVersion.get(entry.key.version) == entry) byVersion.remove(entry.key.version);
+        }
+
+        File tmpFile = new File(logFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        int written = 0;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+            out.write(MAGIC.getBytes("US-ASCII"));
+            out.writeInt(FORMAT_VERSION);
+            for (Entry entry : entries.values()) {
+                writeOffer(out, entry.info, entry.offeredAt);
+                written++;
+                long[] times = { entry.downloadedAt, entry.verifiedAt, entry.installedAt, entry.dismissedAt };
+                for (int q = 0; q < times.length; q++) {
+                    if (times[q] == 0) continue;
+                    writeEvent(out, entry, EVENT_DOWNLOADED + q, times[q]);
+                    written++;
+                }
+            }
+            out.close();
+            out = null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            tmpFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try { out.close(); }
+                catch (Exception e) { }
+            }
+        }
+
+        if (tmpFile.renameTo(logFile)) {
+            Log.v("OTA::History", "compacted " + records + " records into " + written);
+            records = written;
+        } else {
+            tmpFile.delete();
+        }
+    }
+}
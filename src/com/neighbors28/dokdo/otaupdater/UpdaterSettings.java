@@ -19,15 +19,22 @@ package com.neighbors28.dokdo.otaupdater;
 
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 
 @SuppressWarnings("deprecation")
-public class UpdaterSettings extends PreferenceActivity implements OnPreferenceClickListener {
+public class UpdaterSettings extends PreferenceActivity implements OnPreferenceClickListener, OnPreferenceChangeListener {
     private Config cfg;
     
 	private CheckBoxPreference showNotifPref;
+	private CheckBoxPreference wifiOnlyPref;
+	private CheckBoxPreference chargingOnlyPref;
+	private ListPreference minBatteryPref;
+	private ListPreference quotaPref;
+	private ListPreference syncPolicyPref;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -40,6 +47,29 @@ public class UpdaterSettings extends PreferenceActivity implements OnPreferenceC
 		showNotifPref = (CheckBoxPreference) findPreference("show_notif");
 		showNotifPref.setChecked(cfg.getShowNotif());
 		showNotifPref.setOnPreferenceClickListener(this);
+
+		wifiOnlyPref = (CheckBoxPreference) findPreference("dl_wifi_only");
+		wifiOnlyPref.setChecked(cfg.getWifiOnly());
+		wifiOnlyPref.setOnPreferenceClickListener(this);
+
+		chargingOnlyPref = (CheckBoxPreference) findPreference("dl_charging_only");
+		chargingOnlyPref.setChecked(cfg.getChargingOnly());
+		chargingOnlyPref.setOnPreferenceClickListener(this);
+
+		minBatteryPref = (ListPreference) findPreference("dl_min_battery");
+		minBatteryPref.setValue(String.valueOf(cfg.getMinBattery()));
+		minBatteryPref.setSummary(minBatteryPref.getEntry());
+		minBatteryPref.setOnPreferenceChangeListener(this);
+
+		quotaPref = (ListPreference) findPreference("dl_quota");
+		quotaPref.setValue(String.valueOf(cfg.getDownloadQuota() / 1048576));
+		quotaPref.setSummary(quotaPref.getEntry());
+		quotaPref.setOnPreferenceChangeListener(this);
+
+		syncPolicyPref = (ListPreference) findPreference("dl_sync_policy");
+		syncPolicyPref.setValue(String.valueOf(cfg.getSyncPolicy()));
+		syncPolicyPref.setSummary(syncPolicyPref.getEntry());
+		syncPolicyPref.setOnPreferenceChangeListener(this);
 	}
 	
 	@Override
@@ -47,7 +77,43 @@ public class UpdaterSettings extends PreferenceActivity implements OnPreferenceC
 	    if (preference == showNotifPref) {
 	        cfg.setShowNotif(showNotifPref.isChecked());
 	        return true;
+	    } else if (preference == wifiOnlyPref) {
+	        cfg.setWifiOnly(wifiOnlyPref.isChecked());
+	        policyChanged();
+	        return true;
+	    } else if (preference == chargingOnlyPref) {
+	        cfg.setChargingOnly(chargingOnlyPref.isChecked());
+	        policyChanged();
+	        return true;
 	    }
 	    return false;
     }
+
+	@Override
+	public boolean onPreferenceChange(Preference preference, Object newValue) {
+	    if (preference == minBatteryPref) {
+	        cfg.setMinBattery(Integer.parseInt((String) newValue));
+	        minBatteryPref.setValue((String) newValue);
+	        minBatteryPref.setSummary(minBatteryPref.getEntry());
+	        policyChanged();
+	        return true;
+	    } else if (preference == quotaPref) {
+	        cfg.setDownloadQuota(Integer.parseInt((String) newValue));
+	        quotaPref.setValue((String) newValue);
+	        quotaPref.setSummary(quotaPref.getEntry());
+	        PackageRetention.getInstance(this).enforceAsync();
+	        return true;
+	    } else if (preference == syncPolicyPref) {
+	        cfg.setSyncPolicy(Integer.parseInt((String) newValue));
+	        syncPolicyPref.setValue((String) newValue);
+	        syncPolicyPref.setSummary(syncPolicyPref.getEntry());
+	        return true;
+	    }
+	    return false;
+	}
+
+	private void policyChanged() {
+	    // let waiting downloads start, or the running one wait, under the new rules
+	    DownloadService.startPending(this);
+	}
 }
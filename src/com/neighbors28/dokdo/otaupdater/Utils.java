@@ -17,24 +17,15 @@
 
 package com.neighbors28.dokdo.otaupdater;
 
-import java.io.InputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.util.HashMap;
+import java.util.Map;
 
-import android.annotation.TargetApi;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.Build;
 
 public class Utils {
     private static String cachedRomID = null;
@@ -44,7 +35,45 @@ public class Utils {
     private static String cachedRcvrySdPath = null;
     private static String cachedRebootCmd = null;
     private static String cachedNoflash = null;
-    
+
+    private static SystemPropertyProvider propProvider = null;
+    private static boolean propsLoaded = false;
+
+    public static synchronized void setPropertyProvider(SystemPropertyProvider provider) {
+        propProvider = provider;
+        propsLoaded = false;
+    }
+
+    private static synchronized void loadProps() {
+        if (propsLoaded) return;
+
+        Map<String, String> props = propProvider != null ? propProvider.load() : readSystemProperties();
+        // don't remember a failed read, the next caller gets to try again
+        boolean loaded = props != null;
+        if (props == null) props = new HashMap<String, String>();
+
+        cachedRomID = props.get(Config.OTA_ID_PROP);
+        cachedOtaVer = props.get(Config.OTA_VER_PROP);
+        cachedOtaDate = parseDate(props.get(Config.OTA_DATE_PROP));
+
+        cachedOSSdPath = props.get(Config.OTA_SD_PATH_OS_PROP);
+        if (cachedOSSdPath == null) cachedOSSdPath = "sdcard";
+        cachedRcvrySdPath = props.get(Config.OTA_SD_PATH_RECOVERY_PROP);
+        if (cachedRcvrySdPath == null) cachedRcvrySdPath = "sdcard";
+        cachedRebootCmd = props.get(Config.OTA_REBOOT_CMD_PROP);
+        if (cachedRebootCmd == null) cachedRebootCmd = "reboot recovery";
+        cachedNoflash = props.get(Config.OTA_NOFLASH_PROP);
+        if (cachedNoflash == null) cachedNoflash = "0";
+
+        propsLoaded = loaded;
+    }
+
+    protected static Map<String, String> readSystemProperties() {
+        Map<String, String> props = new GetpropPropertyProvider().load();
+        if (props == null) props = new PropFilePropertyProvider().load();
+        return props;
+    }
+
     public static boolean marketAvailable(Context ctx) {
         PackageManager pm = ctx.getPackageManager();
         try {
@@ -61,95 +90,40 @@ public class Utils {
     }
 
     public static String getRomID() {
-        if (cachedRomID == null) {
-            cachedRomID = getprop(Config.OTA_ID_PROP);
-        }
+        loadProps();
         return cachedRomID;
     }
-    
+
     public static String getOSSdPath() {
-        if (cachedOSSdPath == null) {
-            cachedOSSdPath = getprop(Config.OTA_SD_PATH_OS_PROP);
-            if (cachedOSSdPath == null) {
-            	cachedOSSdPath = "sdcard";
-            }
-        }
+        loadProps();
         return cachedOSSdPath;
     }
 
     public static String getRcvrySdPath() {
-    	if (cachedRcvrySdPath == null) {
-    		cachedRcvrySdPath = getprop(Config.OTA_SD_PATH_RECOVERY_PROP);
-    		if (cachedRcvrySdPath == null) {
-    			cachedRcvrySdPath = "sdcard";
-    		}
-    	}
-    	return cachedRcvrySdPath;
-    }
-    
+        loadProps();
+        return cachedRcvrySdPath;
+    }
+
     public static String getRebootCmd() {
-        if (cachedRebootCmd == null) {
-            cachedRebootCmd = getprop(Config.OTA_REBOOT_CMD_PROP);
-            if (cachedRebootCmd == null) {
-                cachedRebootCmd = "reboot recovery";
-            }
-        }
+        loadProps();
         return cachedRebootCmd;
     }
-    
+
     public static boolean getNoflash() {
-        if (cachedNoflash == null) {
-            cachedNoflash = getprop(Config.OTA_NOFLASH_PROP);
-            if (cachedNoflash == null) {
-                cachedNoflash = "0";
-            }
-        }
+        loadProps();
         return cachedNoflash.equals("1") || cachedNoflash.equalsIgnoreCase("true");
     }
-    
+
     public static Date getOtaDate() {
-        if (cachedOtaDate == null) {
-            String otaDateStr = getprop(Config.OTA_DATE_PROP);
-            if (otaDateStr == null) return null;
-            cachedOtaDate = parseDate(otaDateStr);
-        }
+        loadProps();
         return cachedOtaDate;
     }
 
     public static String getOtaVersion() {
-        if (cachedOtaVer == null) {
-            cachedOtaVer = getprop(Config.OTA_VER_PROP);
-        }
+        loadProps();
         return cachedOtaVer;
     }
 
-    private static String getprop(String name) {
-        ProcessBuilder pb = new ProcessBuilder("/system/bin/getprop", name);
-        pb.redirectErrorStream(true);
-
-        Process p = null;
-        InputStream is = null;
-        try {
-            p = pb.start();
-            is = p.getInputStream();
-            Scanner scan = new Scanner(is);
-            scan.useDelimiter("\n");
-            String prop = scan.next();
-            if (prop.length() == 0) return null;
-            return prop;
-        } catch (NoSuchElementException e) {
-            return null;
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try { is.close(); }
-                catch (Exception e) { }
-            }
-        }
-        return null;
-    }
-
     public static boolean dataAvailable(Context ctx) {
         ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo ni = cm.getActiveNetworkInfo();
@@ -157,65 +131,48 @@ public class Utils {
     }
 
     public static Date parseDate(String date) {
-        if (date == null) return null;
-        try {
-            return new SimpleDateFormat("yyyyMMdd-kkmm").parse(date);
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-        return null;
+        long millis = DateCodec.parse(date);
+        return millis == DateCodec.INVALID ? null : new Date(millis);
     }
 
     public static String formatDate(Date date) {
         if (date == null) return null;
-        return new SimpleDateFormat("yyyyMMdd-kkmm").format(date);
+        return DateCodec.format(date.getTime());
     }
 
-    public static boolean isUpdate(RomInfo info) {
+    /**
+     * Whether info is an update for the running build. Releases the history
+     * has seen are answered from its index: the newest pending one is, one
+     * that was installed isn't. Anything else is compared against the build.
+     */
+    public static boolean isUpdate(Context ctx, RomInfo info) {
+        if (info == null) return false;
+        UpdateHistory history = Config.getInstance(ctx).getHistory();
+        if (history.isNewestPending(info)) return true;
+        if (history.isInstalled(info)) return false;
+        return isNewerThanBuild(info);
+    }
+
+    public static boolean isNewerThanBuild(RomInfo info) {
         if (info == null) return false;
         if (info.version != null) {
-            if (getOtaVersion() == null || !info.version.equalsIgnoreCase(getOtaVersion())) return true;
+            String otaVer = getOtaVersion();
+            if (otaVer == null || !info.version.equalsIgnoreCase(otaVer)) return true;
         }
         if (info.date != null) {
-            if (getOtaDate() == null || info.date.after(getOtaDate())) return true;
+            Date otaDate = getOtaDate();
+            if (otaDate == null || info.date.after(otaDate)) return true;
         }
         return false;
     }
 
-    @TargetApi(11)
-    @SuppressWarnings("deprecation")
-    public static void showUpdateNotif(Context ctx, RomInfo info) {
-        Intent i = new Intent(ctx, OTAUpdaterActivity.class);
-        i.setAction(OTAUpdaterActivity.NOTIF_ACTION);
-        info.addToIntent(i);
-
-        NotificationManager nm = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
-        PendingIntent contentIntent = PendingIntent.getActivity(ctx, 0, i, PendingIntent.FLAG_CANCEL_CURRENT);
-
-        Notification notif = null;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            Notification.Builder builder = new Notification.Builder(ctx);
-            builder.setContentIntent(contentIntent);
-            builder.setContentTitle(ctx.getString(R.string.notif_source));
-            builder.setContentText(ctx.getString(R.string.notif_text_rom));
-            builder.setTicker(ctx.getString(R.string.notif_text_rom));
-            builder.setWhen(System.currentTimeMillis());
-            builder.setSmallIcon(R.drawable.ic_launcher);
-            notif = builder.getNotification();
-        } else {
-            notif = new Notification(R.drawable.ic_launcher, ctx.getString(R.string.notif_text_rom), System.currentTimeMillis());
-            notif.setLatestEventInfo(ctx, ctx.getString(R.string.notif_source), ctx.getString(R.string.notif_text_rom), contentIntent);
-        }
-        nm.notify(1, notif);
-    }
-
     private static final char[] HEX_DIGITS = new char[] { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
     public static String byteArrToStr(byte[] bytes) {
-        StringBuffer str = new StringBuffer();
+        char[] str = new char[bytes.length * 2];
         for (int q = 0; q < bytes.length; q++) {
-            str.append(HEX_DIGITS[(0xF0 & bytes[q]) >>> 4]);
-            str.append(HEX_DIGITS[0xF & bytes[q]]);
+            str[2 * q] = HEX_DIGITS[(0xF0 & bytes[q]) >>> 4];
+            str[2 * q + 1] = HEX_DIGITS[0xF & bytes[q]];
         }
-        return str.toString();
+        return new String(str);
     }
 }
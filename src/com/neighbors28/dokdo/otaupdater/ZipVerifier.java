@@ -0,0 +1,681 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Checks a package before it is handed to recovery: the central directory
+ * has to describe the local entries exactly, every entry has to inflate to
+ * its recorded size and CRC, and if the package carries a whole-file
+ * signature (the footer signapk appends to the zip comment, which points at
+ * the PKCS#7 block recovery verifies) it has to match the signed bytes. The
+ * file is read front to back once; only the end of central directory and the
+ * central directory itself are fetched up front. Zip64 packages (past 4 GB or
+ * 65535 entries) are understood too.
+ */
+public class ZipVerifier {
+    public static final int RESULT_UNKNOWN = -1;
+    /** Intact, and signed with one of the device's OTA keys. */
+    public static final int RESULT_OK = 0;
+    /** Intact, and the signature matches, but not with a key the device knows. */
+    public static final int RESULT_UNTRUSTED = 1;
+    /** Intact, without a whole-file signature. */
+    public static final int RESULT_UNSIGNED = 2;
+    public static final int RESULT_CORRUPT = 3;
+    public static final int RESULT_BAD_SIGNATURE = 4;
+    /** Couldn't be checked (I/O error, cancelled, unsupported format); not cached. */
+    public static final int RESULT_ERROR = 5;
+
+    private static final String CACHE_KEY = "zip_verdict";
+    private static final String OTA_CERTS = "/system/etc/security/otacerts.zip";
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final int MAX_CENTRAL_DIR = 16 * 1048576;
+
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int LOCAL_HEADER = 30;
+    private static final int CENTRAL_HEADER = 46;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int FOOTER_SIZE = 6;
+
+    private static final byte[] OID_SIGNED_DATA = { 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x02 };
+    private static final byte[] OID_SHA1 = { 0x2b, 0x0e, 0x03, 0x02, 0x1a };
+    private static final byte[] OID_SHA256 = { 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01 };
+
+    private static HashSet<X509Certificate> otaCerts = null;
+
+    public static interface ProgressListener {
+        /**
+         * Returns false to stop verifying.
+         */
+        boolean onProgress(long read, long total);
+    }
+
+    private static class CorruptException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptException(String msg) {
+            super(msg);
+        }
+    }
+
+    private static class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class CentralEntry {
+        byte[] name;
+        int method;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    private static class SignatureBlock {
+        X509Certificate cert;
+        String algorithm;
+        byte[] signature;
+    }
+
+    /**
+     * Reads the file sequentially, feeding the signed prefix to the signature
+     * (if any) and reporting progress as it goes.
+     */
+    private static class Source {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int pos = 0;
+        int limit = 0;
+
+        private final InputStream in;
+        private final long total;
+        private final Signature signature;
+        private final long signedLength;
+        private final ProgressListener listener;
+        private long read = 0;
+        private long nextReport = 0;
+
+        Source(InputStream in, long total, Signature signature, long signedLength, ProgressListener listener) {
+            this.in = in;
+            this.total = total;
+            this.signature = signature;
+            this.signedLength = signedLength;
+            this.listener = listener;
+        }
+
+        long position() {
+            return read - (limit - pos);
+        }
+
+        /**
+         * Makes sure at least one byte is buffered.
+         */
+        void fill() throws IOException {
+            if (pos < limit) return;
+            int n = in.read(buf, 0, buf.length);
+            if (n == -1) throw new EOFException();
+            pos = 0;
+            limit = n;
+
+            if (signature != null && read < signedLength) {
+                try {
+                    signature.update(buf, 0, (int) Math.min(n, signedLength - read));
+                } catch (SignatureException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            read += n;
+
+            if (listener != null && (read >= nextReport || read == total)) {
+                nextReport = read + total / 100;
+                if (!listener.onProgress(read, total)) throw new CancelledException();
+            }
+        }
+
+        void readFully(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                fill();
+                int n = Math.min(len, limit - pos);
+                System.arraycopy(buf, pos, b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void skip(long len) throws IOException {
+            while (len > 0) {
+                fill();
+                int n = (int) Math.min(len, limit - pos);
+                pos += n;
+                len -= n;
+            }
+        }
+
+        void drain() throws IOException {
+            pos = limit;
+            try {
+                while (true) {
+                    fill();
+                    pos = limit;
+                }
+            } catch (EOFException e) {
+            }
+        }
+    }
+
+    public static boolean isInstallable(int result) {
+        return result == RESULT_OK || result == RESULT_UNTRUSTED || result == RESULT_UNSIGNED;
+    }
+
+    /**
+     * The verdict reached for file as it is now, or RESULT_UNKNOWN if it has
+     * not been checked or has changed since.
+     */
+    public static int getCachedResult(Context ctx, File file) {
+        String cached = DigestCache.getInstance(ctx).lookup(file, CACHE_KEY);
+        if (cached == null) return RESULT_UNKNOWN;
+        try {
+            return Integer.parseInt(cached);
+        } catch (NumberFormatException e) {
+            return RESULT_UNKNOWN;
+        }
+    }
+
+    /**
+     * Like {@link #verify(File, ProgressListener)}, but answers from the cache
+     * when the file hasn't changed since it was last checked, and remembers
+     * the verdict otherwise.
+     */
+    public static int verify(Context ctx, File file, ProgressListener listener) {
+        int result = getCachedResult(ctx, file);
+        if (result != RESULT_UNKNOWN) return result;
+
+        result = verify(file, listener);
+        if (result == RESULT_ERROR) return result;
+        DigestCache.getInstance(ctx).store(file, CACHE_KEY, String.valueOf(result));
+        if (isInstallable(result)) recordVerified(ctx, file);
+        return result;
+    }
+
+    public static int verify(File file, ProgressListener listener) {
+        RandomAccessFile raf = null;
+        InputStream is = null;
+        try {
+            long length = file.length();
+            if (length < EOCD_SIZE) return RESULT_CORRUPT;
+
+            raf = new RandomAccessFile(file, "r");
+            int tailLength = (int) Math.min(length, EOCD_SIZE + 0xffff);
+            byte[] tail = new byte[tailLength];
+            raf.seek(length - tailLength);
+            raf.readFully(tail);
+
+            // signapk footer: signature start (from the end), 0xffff, comment length. Without
+            // a comment to hold it, the 0xffff would be the top of a zip64 EOCD's offset
+            int eocd = -1;
+            boolean signed = false;
+            int commentLength = getShort(tail, tailLength - 2);
+            if (commentLength >= FOOTER_SIZE && getShort(tail, tailLength - 4) == 0xffff
+                    && commentLength + EOCD_SIZE <= tailLength
+                    && getInt(tail, tailLength - commentLength - EOCD_SIZE) == EOCD_SIG) {
+                eocd = tailLength - commentLength - EOCD_SIZE;
+                signed = true;
+            } else {
+                for (int q = tailLength - EOCD_SIZE; q >= 0; q--) {
+                    if (getInt(tail, q) == EOCD_SIG && getShort(tail, q + 20) == tailLength - q - EOCD_SIZE) {
+                        eocd = q;
+                        break;
+                    }
+                }
+            }
+            if (eocd == -1) return RESULT_CORRUPT;
+
+            long entryCount = getShort(tail, eocd + 10);
+            long cdSize = getInt(tail, eocd + 12) & 0xffffffffL;
+            long cdOffset = getInt(tail, eocd + 16) & 0xffffffffL;
+            long eocdOffset = length - tailLength + eocd;
+            long cdEnd = eocdOffset;
+            if (entryCount == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) {
+                // zip64: the real values are in a record the locator right before the EOCD points at
+                if (eocdOffset < ZIP64_LOCATOR_SIZE) return RESULT_CORRUPT;
+                byte[] locator = new byte[ZIP64_LOCATOR_SIZE];
+                raf.seek(eocdOffset - ZIP64_LOCATOR_SIZE);
+                raf.readFully(locator);
+                long recordOffset = getLong(locator, 8);
+                if (getInt(locator, 0) != ZIP64_LOCATOR_SIG || recordOffset < 0
+                        || recordOffset + ZIP64_EOCD_SIZE > eocdOffset - ZIP64_LOCATOR_SIZE) return RESULT_CORRUPT;
+
+                byte[] record = new byte[ZIP64_EOCD_SIZE];
+                raf.seek(recordOffset);
+                raf.readFully(record);
+                if (getInt(record, 0) != ZIP64_EOCD_SIG || getInt(record, 16) != 0 || getInt(record, 20) != 0
+                        || getLong(record, 24) != getLong(record, 32)) return RESULT_CORRUPT;
+                entryCount = getLong(record, 32);
+                cdSize = getLong(record, 40);
+                cdOffset = getLong(record, 48);
+                cdEnd = recordOffset;
+            } else if (getShort(tail, eocd + 4) != 0 || getShort(tail, eocd + 6) != 0
+                    || getShort(tail, eocd + 8) != entryCount) {
+                return RESULT_CORRUPT;
+            }
+            if (cdSize < 0 || cdSize > MAX_CENTRAL_DIR || cdOffset < 0 || cdOffset + cdSize != cdEnd) return RESULT_CORRUPT;
+            if (entryCount < 0 || entryCount > cdSize / CENTRAL_HEADER) return RESULT_CORRUPT;
+
+            Signature signature = null;
+            SignatureBlock block = null;
+            long signedLength = 0;
+            if (signed) {
+                int signatureStart = getShort(tail, tailLength - 6);
+                if (signatureStart < FOOTER_SIZE || signatureStart > commentLength) return RESULT_BAD_SIGNATURE;
+                // the signature can't vouch for a second EOCD hiding in the comment
+                for (int q = eocd + 4; q < tailLength - 3; q++) {
+                    if (getInt(tail, q) == EOCD_SIG) return RESULT_BAD_SIGNATURE;
+                }
+                try {
+                    block = parseSignatureBlock(tail, tailLength - signatureStart, tailLength - FOOTER_SIZE);
+                    signature = Signature.getInstance(block.algorithm);
+                    signature.initVerify(block.cert.getPublicKey());
+                } catch (GeneralSecurityException e) {
+                    Log.w("OTA::Verify", "unusable signature block: " + e);
+                    return RESULT_BAD_SIGNATURE;
+                }
+                signedLength = length - commentLength - 2;
+            }
+
+            byte[] cd = new byte[(int) cdSize];
+            raf.seek(cdOffset);
+            raf.readFully(cd);
+            raf.close();
+            raf = null;
+            ArrayList<CentralEntry> entries = parseCentralDirectory(cd, (int) entryCount, cdOffset);
+
+            is = new FileInputStream(file);
+            Source src = new Source(is, length, signature, signedLength, listener);
+            checkEntries(src, entries, cdOffset);
+            src.drain();
+            if (src.position() != length) throw new CorruptException("file changed while reading");
+
+            if (!signed) return RESULT_UNSIGNED;
+            try {
+                if (!signature.verify(block.signature)) return RESULT_BAD_SIGNATURE;
+            } catch (SignatureException e) {
+                return RESULT_BAD_SIGNATURE;
+            }
+            return isTrusted(block.cert) ? RESULT_OK : RESULT_UNTRUSTED;
+        } catch (CorruptException e) {
+            Log.w("OTA::Verify", file.getName() + ": " + e.getMessage());
+            return RESULT_CORRUPT;
+        } catch (EOFException e) {
+            Log.w("OTA::Verify", file.getName() + ": truncated");
+            return RESULT_CORRUPT;
+        } catch (CancelledException e) {
+            return RESULT_ERROR;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return RESULT_ERROR;
+        } finally {
+            if (raf != null) {
+                try { raf.close(); }
+                catch (Exception e) { }
+            }
+            if (is != null) {
+                try { is.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+
+    private static ArrayList<CentralEntry> parseCentralDirectory(byte[] cd, int entryCount, long cdOffset) throws CorruptException {
+        ArrayList<CentralEntry> entries = new ArrayList<CentralEntry>(entryCount);
+        int pos = 0;
+        for (int q = 0; q < entryCount; q++) {
+            if (pos + CENTRAL_HEADER > cd.length || getInt(cd, pos) != CENTRAL_SIG) {
+                throw new CorruptException("bad central directory entry " + q);
+            }
+            if ((getShort(cd, pos + 8) & 1) != 0) throw new CorruptException("encrypted entry");
+
+            CentralEntry entry = new CentralEntry();
+            entry.method = getShort(cd, pos + 10);
+            entry.crc = getInt(cd, pos + 16) & 0xffffffffL;
+            entry.compressedSize = getInt(cd, pos + 20) & 0xffffffffL;
+            entry.size = getInt(cd, pos + 24) & 0xffffffffL;
+            int nameLength = getShort(cd, pos + 28);
+            int extraLength = getShort(cd, pos + 30);
+            int commentLength = getShort(cd, pos + 32);
+            entry.offset = getInt(cd, pos + 42) & 0xffffffffL;
+
+            int end = pos + CENTRAL_HEADER + nameLength + extraLength + commentLength;
+            if (end > cd.length) throw new CorruptException("central directory overruns");
+            entry.name = Arrays.copyOfRange(cd, pos + CENTRAL_HEADER, pos + CENTRAL_HEADER + nameLength);
+            if (entry.size == 0xffffffffL || entry.compressedSize == 0xffffffffL || entry.offset == 0xffffffffL) {
+                readZip64Extra(cd, pos + CENTRAL_HEADER + nameLength, extraLength, entry);
+            }
+            if (entry.offset + LOCAL_HEADER + entry.compressedSize > cdOffset) {
+                throw new CorruptException("entry " + q + " overruns the central directory");
+            }
+            entries.add(entry);
+            pos = end;
+        }
+        if (pos != cd.length) throw new CorruptException("central directory size mismatch");
+
+        Collections.sort(entries, new Comparator<CentralEntry>() {
+            @Override
+            public int compare(CentralEntry a, CentralEntry b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Replaces the sizes and offset entry had to leave at 0xffffffff with
+     * the 64-bit values from its zip64 extra field, which only holds those.
+     */
+    private static void readZip64Extra(byte[] cd, int off, int length, CentralEntry entry) throws CorruptException {
+        int end = off + length;
+        while (off + 4 <= end) {
+            int id = getShort(cd, off);
+            int fieldEnd = off + 4 + getShort(cd, off + 2);
+            if (fieldEnd > end) break;
+            if (id == ZIP64_EXTRA_ID) {
+                int pos = off + 4;
+                if (entry.size == 0xffffffffL) {
+                    if (pos + 8 > fieldEnd) break;
+                    entry.size = getLong(cd, pos);
+                    pos += 8;
+                }
+                if (entry.compressedSize == 0xffffffffL) {
+                    if (pos + 8 > fieldEnd) break;
+                    entry.compressedSize = getLong(cd, pos);
+                    pos += 8;
+                }
+                if (entry.offset == 0xffffffffL) {
+                    if (pos + 8 > fieldEnd) break;
+                    entry.offset = getLong(cd, pos);
+                }
+                if (entry.size < 0 || entry.compressedSize < 0 || entry.offset < 0) break;
+                return;
+            }
+            off = fieldEnd;
+        }
+        throw new CorruptException("bad zip64 extra field");
+    }
+
+    private static void checkEntries(Source src, ArrayList<CentralEntry> entries, long cdOffset) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER];
+        byte[] out = new byte[BUFFER_SIZE];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            for (CentralEntry entry : entries) {
+                long pos = src.position();
+                if (entry.offset < pos) throw new CorruptException("overlapping entries");
+                src.skip(entry.offset - pos);
+
+                src.readFully(header, 0, LOCAL_HEADER);
+                if (getInt(header, 0) != LOCAL_SIG) throw new CorruptException("missing local header");
+                if (getShort(header, 8) != entry.method) throw new CorruptException("method mismatch");
+                byte[] name = new byte[getShort(header, 26)];
+                src.readFully(name, 0, name.length);
+                if (!Arrays.equals(name, entry.name)) throw new CorruptException("name mismatch");
+                src.skip(getShort(header, 28));
+
+                crc.reset();
+                long left = entry.compressedSize;
+                if (entry.method == ZipEntry.STORED) {
+                    if (entry.compressedSize != entry.size) throw new CorruptException("stored size mismatch");
+                    while (left > 0) {
+                        src.fill();
+                        int n = (int) Math.min(left, src.limit - src.pos);
+                        crc.update(src.buf, src.pos, n);
+                        src.pos += n;
+                        left -= n;
+                    }
+                } else if (entry.method == ZipEntry.DEFLATED) {
+                    inflater.reset();
+                    long size = 0;
+                    while (!inflater.finished()) {
+                        if (inflater.needsInput()) {
+                            if (left == 0) break;
+                            src.fill();
+                            int n = (int) Math.min(left, src.limit - src.pos);
+                            inflater.setInput(src.buf, src.pos, n);
+                            src.pos += n;
+                            left -= n;
+                        }
+                        int n;
+                        try {
+                            n = inflater.inflate(out);
+                        } catch (DataFormatException e) {
+                            throw new CorruptException("bad deflate data");
+                        }
+                        if (n == 0 && inflater.needsDictionary()) throw new CorruptException("bad deflate data");
+                        crc.update(out, 0, n);
+                        size += n;
+                    }
+                    if (!inflater.finished() || left != 0 || inflater.getRemaining() != 0 || size != entry.size) {
+                        throw new CorruptException("size mismatch");
+                    }
+                } else {
+                    throw new CorruptException("unsupported method " + entry.method);
+                }
+
+                if (crc.getValue() != entry.crc) {
+                    throw new CorruptException("crc mismatch in " + new String(entry.name, "UTF-8"));
+                }
+            }
+            if (src.position() > cdOffset) throw new CorruptException("entries overrun the central directory");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Picks the signer certificate, digest and signature out of the PKCS#7
+     * SignedData at b[off, end). Only what signapk writes is understood: one
+     * signer, no signed attributes, SHA-1 or SHA-256 with RSA or EC keys.
+     */
+    private static SignatureBlock parseSignatureBlock(byte[] b, int off, int end) throws GeneralSecurityException {
+        int[] info = der(b, off, end, 0x30);
+        int[] type = der(b, info[1], info[2], 0x06);
+        if (!oidEquals(b, type, OID_SIGNED_DATA)) throw new SignatureException("not SignedData");
+        int[] wrap = der(b, type[2], info[2], 0xa0);
+        int[] data = der(b, wrap[1], wrap[2], 0x30);
+
+        int[] e = der(b, data[1], data[2], 0x02); // version
+        e = der(b, e[2], data[2], 0x31); // digest algorithms
+        e = der(b, e[2], data[2], 0x30); // content info, detached
+        e = der(b, e[2], data[2]);
+        int[] certs = null;
+        if (e[0] == 0xa0) {
+            certs = e;
+            e = der(b, e[2], data[2]);
+        }
+        if (e[0] == 0xa1) e = der(b, e[2], data[2]);
+        if (e[0] != 0x31 || certs == null) throw new SignatureException("no signer");
+
+        int[] signer = der(b, e[1], e[2], 0x30);
+        e = der(b, signer[1], signer[2], 0x02); // version
+        int[] issuerSerial = der(b, e[2], signer[2], 0x30);
+        int[] issuer = der(b, issuerSerial[1], issuerSerial[2], 0x30);
+        int[] serial = der(b, issuer[2], issuerSerial[2], 0x02);
+        int[] digestAlgorithm = der(b, issuerSerial[2], signer[2], 0x30);
+        int[] digestOid = der(b, digestAlgorithm[1], digestAlgorithm[2], 0x06);
+        e = der(b, digestAlgorithm[2], signer[2]);
+        if (e[0] == 0xa0) throw new SignatureException("signed attributes not supported");
+        if (e[0] != 0x30) throw new SignatureException("no signature algorithm");
+        int[] encrypted = der(b, e[2], signer[2], 0x04);
+
+        SignatureBlock block = new SignatureBlock();
+        BigInteger serialNumber = new BigInteger(Arrays.copyOfRange(b, serial[1], serial[2]));
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        for (int pos = certs[1]; pos < certs[2] && block.cert == null; ) {
+            int[] cert = der(b, pos, certs[2], 0x30);
+            X509Certificate x509 = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(b, pos, cert[2] - pos));
+            if (x509.getSerialNumber().equals(serialNumber)) block.cert = x509;
+            pos = cert[2];
+        }
+        if (block.cert == null) throw new SignatureException("signer certificate missing");
+
+        String digest;
+        if (oidEquals(b, digestOid, OID_SHA1)) {
+            digest = "SHA1";
+        } else if (oidEquals(b, digestOid, OID_SHA256)) {
+            digest = "SHA256";
+        } else {
+            throw new SignatureException("unsupported digest");
+        }
+        String key = block.cert.getPublicKey().getAlgorithm();
+        if (key.equals("RSA")) {
+            block.algorithm = digest + "withRSA";
+        } else if (key.equals("EC")) {
+            block.algorithm = digest + "withECDSA";
+        } else {
+            throw new SignatureException("unsupported key " + key);
+        }
+        block.signature = Arrays.copyOfRange(b, encrypted[1], encrypted[2]);
+        return block;
+    }
+
+    /**
+     * Returns {tag, start of contents, end of contents} for the DER element
+     * at b[off], which has to end by limit.
+     */
+    private static int[] der(byte[] b, int off, int limit) throws SignatureException {
+        if (off + 2 > limit) throw new SignatureException("truncated signature block");
+        int tag = b[off] & 0xff;
+        int length = b[off + 1] & 0xff;
+        int start = off + 2;
+        if (length >= 0x80) {
+            int count = length & 0x7f;
+            if (count == 0 || count > 3 || start + count > limit) throw new SignatureException("bad length");
+            length = 0;
+            for (int q = 0; q < count; q++) {
+                length = (length << 8) | (b[start++] & 0xff);
+            }
+        }
+        if (length > limit - start) throw new SignatureException("truncated signature block");
+        return new int[] { tag, start, start + length };
+    }
+
+    private static int[] der(byte[] b, int off, int limit, int tag) throws SignatureException {
+        int[] e = der(b, off, limit);
+        if (e[0] != tag) throw new SignatureException("unexpected tag " + e[0]);
+        return e;
+    }
+
+    private static boolean oidEquals(byte[] b, int[] e, byte[] oid) {
+        if (e[2] - e[1] != oid.length) return false;
+        for (int q = 0; q < oid.length; q++) {
+            if (b[e[1] + q] != oid[q]) return false;
+        }
+        return true;
+    }
+
+    private static synchronized boolean isTrusted(X509Certificate cert) {
+        if (otaCerts == null) {
+            otaCerts = new HashSet<X509Certificate>();
+            File certsFile = new File(OTA_CERTS);
+            if (certsFile.exists()) {
+                ZipFile zip = null;
+                try {
+                    zip = new ZipFile(certsFile);
+                    CertificateFactory factory = CertificateFactory.getInstance("X.509");
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        InputStream is = zip.getInputStream(entries.nextElement());
+                        try {
+                            otaCerts.add((X509Certificate) factory.generateCertificate(is));
+                        } finally {
+                            try { is.close(); }
+                            catch (Exception e) { }
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    if (zip != null) {
+                        try { zip.close(); }
+                        catch (Exception e) { }
+                    }
+                }
+            }
+        }
+        return otaCerts.contains(cert);
+    }
+
+    private static void recordVerified(Context ctx, File file) {
+        String md5 = DigestCache.getInstance(ctx).lookup(file, FileHasher.MD5);
+        UpdateHistory history = UpdateHistory.getInstance(ctx);
+        for (UpdateHistory.Entry entry : history.getEntries()) {
+            RomInfo info = entry.info;
+            if (file.getName().equals(info.getFileName()) || (md5 != null && md5.equalsIgnoreCase(info.md5))) {
+                history.record(info, UpdateHistory.EVENT_VERIFIED);
+                return;
+            }
+        }
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (getInt(b, off) & 0xffffffffL) | ((long) getInt(b, off + 4) << 32);
+    }
+}
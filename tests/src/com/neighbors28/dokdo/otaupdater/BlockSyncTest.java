@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Rebuilds synthetic packages from an old one plus Range requests against a
+ * local HTTP stand-in.
+ */
+public class BlockSyncTest {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCKS = 256;
+    private static final int TAIL = 1000;
+    private static final int FS_BLOCK_SIZE = 4096;
+
+    private static final BlockSync.ProgressListener NO_PROGRESS = new BlockSync.ProgressListener() {
+        @Override
+        public boolean onProgress(long done, long total) {
+            return true;
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+    private byte[] newPackage;
+    private HttpServer server;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private volatile boolean honourRanges = true;
+
+    @Before
+    public void setUp() throws IOException {
+        newPackage = randomBytes(BLOCKS * BLOCK_SIZE + TAIL);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip");
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(range);
+        int from = 0;
+        int to = newPackage.length - 1;
+        if (honourRanges && m != null && m.matches()) {
+            rangeRequests.incrementAndGet();
+            from = Integer.parseInt(m.group(1));
+            to = Math.min(Integer.parseInt(m.group(2)), newPackage.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + newPackage.length);
+            exchange.sendResponseHeaders(206, to - from + 1);
+        } else {
+            exchange.sendResponseHeaders(200, newPackage.length);
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        try {
+            for (int pos = from; pos <= to; pos += 8192) {
+                int len = Math.min(8192, to - pos + 1);
+                out.write(newPackage, pos, len);
+                bytesServed.addAndGet(len);
+            }
+        } catch (IOException e) {
+            // client stopped reading
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * The checksum file the server would publish for data, computed the
+     * straightforward way rather than rolling.
+     */
+    private static byte[] checksums(byte[] data, int blockSize) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(BlockSync.MAGIC.getBytes("US-ASCII"));
+        out.writeInt(blockSize);
+        out.writeLong(data.length);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        for (int off = 0; off < data.length; off += blockSize) {
+            int len = Math.min(blockSize, data.length - off);
+            int a = 0;
+            int b = 0;
+            for (int q = 0; q < len; q++) {
+                int x = data[off + q] & 0xFF;
+                a += x;
+                b += (blockSize - q) * x;
+            }
+            out.writeInt((a & 0xFFFF) | (b << 16));
+            md5.update(data, off, len);
+            out.write(md5.digest());
+        }
+        return bytes.toByteArray();
+    }
+
+    private BlockSync newBlockSync() throws Exception {
+        return new BlockSync(new ByteArrayInputStream(checksums(newPackage, BLOCK_SIZE)));
+    }
+
+    private File writeFile(String name, byte[] data) throws IOException {
+        File file = new File(tmp.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * An older package holding the given blocks of the new one, each shifted
+     * by some junk so none of them sits on a block boundary.
+     */
+    private File oldPackage(String name, int... blocks) throws IOException {
+        ByteArrayOutputStream old = new ByteArrayOutputStream();
+        for (int block : blocks) {
+            old.write(randomBytes(1 + random.nextInt(BLOCK_SIZE - 1)));
+            old.write(newPackage, block * BLOCK_SIZE, BLOCK_SIZE);
+        }
+        old.write(randomBytes(777));
+        return writeFile(name, old.toByteArray());
+    }
+
+    private static int[] range(int from, int to) {
+        int[] blocks = new int[to - from];
+        for (int q = from; q < to; q++) {
+            blocks[q - from] = q;
+        }
+        return blocks;
+    }
+
+    private RandomAccessFile openOutput(File file) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(newPackage.length);
+        return out;
+    }
+
+    private static byte[] readFile(RandomAccessFile file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        file.seek(0);
+        file.readFully(data);
+        return data;
+    }
+
+    @Test
+    public void rollingChecksumFindsShiftedBlocks() throws Exception {
+        BlockSync sync = newBlockSync();
+        File old = oldPackage("old.zip", 3, 4, 5, 100, 7, 200, 255);
+        RandomAccessFile out = openOutput(tmp.newFile("out"));
+        try {
+            assertTrue(sync.scan(old, out, NO_PROGRESS));
+            assertEquals(7L * BLOCK_SIZE, sync.getReusedBytes());
+            assertEquals(0, sync.getFetchedBytes());
+            assertFalse(sync.isComplete());
+
+            byte[] data = readFile(out);
+            for (int block : new int[] { 3, 4, 5, 7, 100, 200, 255 }) {
+                int off = block * BLOCK_SIZE;
+                assertArrayEquals("block " + block, Arrays.copyOfRange(newPackage, off, off + BLOCK_SIZE),
+                        Arrays.copyOfRange(data, off, off + BLOCK_SIZE));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void ignoresBlocksWithOnlyAWeakMatch() throws Exception {
+        BlockSync sync = newBlockSync();
+        // +1, -2, +1 on three neighbouring bytes leaves both halves of the weak sum as they were
+        byte[] block = Arrays.copyOfRange(newPackage, 10 * BLOCK_SIZE, 11 * BLOCK_SIZE);
+        int q = 100;
+        while ((block[q] & 0xFF) == 255 || (block[q + 1] & 0xFF) < 2 || (block[q + 2] & 0xFF) == 255) q++;
+        block[q]++;
+        block[q + 1] -= 2;
+        block[q + 2]++;
+
+        RandomAccessFile out = openOutput(tmp.newFile("out"));
+        try {
+            assertTrue(sync.scan(writeFile("old.zip", block), out, NO_PROGRESS));
+            assertEquals(0, sync.getReusedBytes());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void fetchesOnlyTheMissingRanges() throws Exception {
+        BlockSync sync = newBlockSync();
+        File oldA = oldPackage("a.zip", range(0, 100));
+        File oldB = oldPackage("b.zip", range(150, 250));
+        RandomAccessFile out = openOutput(tmp.newFile("out"));
+        try {
+            assertTrue(sync.scan(oldA, out, NO_PROGRESS));
+            assertTrue(sync.scan(oldB, out, NO_PROGRESS));
+            assertEquals(200L * BLOCK_SIZE, sync.getReusedBytes());
+
+            assertTrue(sync.fetchMissing(getUrl(), out, FS_BLOCK_SIZE, NO_PROGRESS));
+            assertTrue(sync.isComplete());
+            assertArrayEquals(newPackage, readFile(out));
+        } finally {
+            out.close();
+        }
+
+        // blocks 100-149, then 250 to the end including the short last block
+        assertEquals(2, rangeRequests.get());
+        long missing = newPackage.length - 200L * BLOCK_SIZE;
+        assertEquals(missing, bytesServed.get());
+        assertEquals(missing, sync.getFetchedBytes());
+        assertEquals(newPackage.length, sync.getDoneBytes());
+    }
+
+    @Test
+    public void resumesFromSavedState() throws Exception {
+        File old = oldPackage("old.zip", range(0, 64));
+        File synced = tmp.newFile("out");
+        File state = new File(tmp.getRoot(), "out.state");
+
+        BlockSync first = newBlockSync();
+        assertFalse(first.resume(state));
+        RandomAccessFile out = openOutput(synced);
+        try {
+            assertTrue(first.scan(old, out, NO_PROGRESS));
+            assertFalse(first.fetchMissing(getUrl(), out, FS_BLOCK_SIZE, new BlockSync.ProgressListener() {
+                @Override
+                public boolean onProgress(long done, long total) {
+                    return done < total / 2;
+                }
+            }));
+            first.checkpoint(out);
+        } finally {
+            out.close();
+        }
+        long doneBefore = first.getDoneBytes();
+        assertTrue(doneBefore >= newPackage.length / 2 - BLOCK_SIZE);
+        assertTrue(doneBefore < newPackage.length);
+
+        BlockSync second = newBlockSync();
+        assertTrue(second.resume(state));
+        assertTrue(second.isScanned(old));
+        assertEquals(doneBefore, second.getDoneBytes());
+        assertEquals(64L * BLOCK_SIZE, second.getReusedBytes());
+
+        long servedBefore = bytesServed.get();
+        out = new RandomAccessFile(synced, "rw");
+        try {
+            assertTrue(second.scan(old, out, new BlockSync.ProgressListener() {
+                @Override
+                public boolean onProgress(long done, long total) {
+                    fail("scanned the same package twice");
+                    return false;
+                }
+            }));
+            assertTrue(second.fetchMissing(getUrl(), out, FS_BLOCK_SIZE, NO_PROGRESS));
+            assertArrayEquals(newPackage, readFile(out));
+        } finally {
+            out.close();
+        }
+        assertEquals(newPackage.length - doneBefore, bytesServed.get() - servedBefore);
+    }
+
+    @Test
+    public void ignoresStateForOtherChecksums() throws Exception {
+        File state = new File(tmp.getRoot(), "out.state");
+        BlockSync first = newBlockSync();
+        first.resume(state);
+        RandomAccessFile out = openOutput(tmp.newFile("out"));
+        try {
+            first.scan(oldPackage("old.zip", range(0, 10)), out, NO_PROGRESS);
+            first.checkpoint(out);
+        } finally {
+            out.close();
+        }
+        assertTrue(newBlockSync().resume(state));
+
+        newPackage[0] ^= 1;
+        BlockSync other = newBlockSync();
+        assertFalse(other.resume(state));
+        assertEquals(0, other.getDoneBytes());
+    }
+
+    @Test
+    public void refusesServerWithoutRanges() throws Exception {
+        honourRanges = false;
+        BlockSync sync = newBlockSync();
+        RandomAccessFile out = openOutput(tmp.newFile("out"));
+        try {
+            sync.fetchMissing(getUrl(), out, FS_BLOCK_SIZE, NO_PROGRESS);
+            fail("expected RangeNotSupportedException");
+        } catch (SegmentedDownload.RangeNotSupportedException e) {
+            assertEquals(0, sync.getFetchedBytes());
+        } finally {
+            out.close();
+        }
+    }
+}
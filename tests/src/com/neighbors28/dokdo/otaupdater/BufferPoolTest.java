@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.IdentityHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolTest {
+    @Before
+    public void setUp() {
+        BufferPool.trim();
+    }
+
+    @Test
+    public void roundsUpToPowersOfTwoWithinBounds() {
+        assertEquals(BufferPool.MIN_SIZE, BufferPool.sizeFor(1));
+        assertEquals(BufferPool.MIN_SIZE, BufferPool.sizeFor(BufferPool.MIN_SIZE));
+        assertEquals(2 * BufferPool.MIN_SIZE, BufferPool.sizeFor(BufferPool.MIN_SIZE + 1));
+        assertEquals(131072, BufferPool.sizeFor(100000));
+        assertEquals(131072, BufferPool.sizeFor(131072));
+        assertEquals(BufferPool.MAX_SIZE, BufferPool.sizeFor(5 * BufferPool.MAX_SIZE));
+    }
+
+    @Test
+    public void reusesReleasedBuffersOfTheSameSize() {
+        byte[] buf = BufferPool.acquire(100000);
+        assertEquals(131072, buf.length);
+        BufferPool.release(buf);
+        assertNotSame(buf, BufferPool.acquire(65536));
+        assertSame(buf, BufferPool.acquire(70000));
+    }
+
+    @Test
+    public void ignoresBuffersItDidNotSize() {
+        byte[] odd = new byte[20000];
+        BufferPool.release(odd);
+        assertEquals(32768, BufferPool.acquire(20000).length);
+    }
+
+    @Test
+    public void keepsAtMostFourMegabytes() {
+        byte[][] bufs = new byte[6][];
+        for (int q = 0; q < bufs.length; q++) {
+            bufs[q] = BufferPool.acquire(BufferPool.MAX_SIZE);
+        }
+        for (byte[] buf : bufs) {
+            BufferPool.release(buf);
+        }
+
+        // the oldest ones made way for the newest
+        IdentityHashMap<byte[], Boolean> reused = new IdentityHashMap<byte[], Boolean>();
+        for (int q = 0; q < bufs.length; q++) {
+            reused.put(BufferPool.acquire(BufferPool.MAX_SIZE), true);
+        }
+        for (int q = 0; q < bufs.length; q++) {
+            assertEquals("buffer " + q, q >= 2, reused.containsKey(bufs[q]));
+        }
+    }
+}
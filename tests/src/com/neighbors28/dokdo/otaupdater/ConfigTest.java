@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfigTest {
+    // UpdateHistory is a singleton, so every Config in this class shares one files dir
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private CountingPrefs prefs;
+    private Config config;
+
+    @BeforeClass
+    public static void setUpProps() {
+        final HashMap<String, String> props = new HashMap<String, String>();
+        props.put(Config.OTA_ID_PROP, "dokdo_hammerhead");
+        props.put(Config.OTA_VER_PROP, "4.4.2-20140301");
+        props.put(Config.OTA_DATE_PROP, "20140301-1200");
+        Utils.setPropertyProvider(new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return props;
+            }
+        });
+    }
+
+    @Before
+    public void setUp() {
+        prefs = new CountingPrefs();
+        config = new Config(new FakeContext(tmp.getRoot(), prefs));
+        // a fresh install isn't up to date, so the constructor has already queued a write
+        config.flush();
+        prefs.commits.set(0);
+    }
+
+    private static void waitForCommit(CountingPrefs prefs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (prefs.commits.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void burstOfChangesCostsOneCommit() throws InterruptedException {
+        for (int q = 0; q <= 100; q++) {
+            config.setMinBattery(q);
+            config.setWifiOnly(q % 2 == 0);
+            config.setDownloadQuota(q * 10);
+        }
+        config.setShowNotif(false);
+        assertEquals(0, prefs.commits.get());
+        assertEquals(100, config.getMinBattery());
+
+        waitForCommit(prefs);
+        // long enough for a second scheduled flush to have shown up
+        Thread.sleep(600);
+        assertEquals(1, prefs.commits.get());
+        assertEquals(100, prefs.getInt("minBattery", -1));
+        assertTrue(prefs.getBoolean("wifiOnly", false));
+        assertEquals(1000, prefs.getInt("dlQuota", -1));
+        assertFalse(prefs.getBoolean("showNotif", true));
+    }
+
+    @Test
+    public void laterBurstGetsItsOwnCommit() throws InterruptedException {
+        config.setMinBattery(20);
+        waitForCommit(prefs);
+        assertEquals(1, prefs.commits.get());
+
+        config.setMinBattery(30);
+        config.setChargingOnly(true);
+        Thread.sleep(600);
+        assertEquals(2, prefs.commits.get());
+        assertEquals(30, prefs.getInt("minBattery", -1));
+        assertTrue(prefs.getBoolean("chargingOnly", false));
+    }
+
+    @Test
+    public void flushIsABarrier() throws InterruptedException {
+        config.setSyncPolicy(Config.SYNC_ALWAYS);
+        config.setCheckDeferred(true);
+        config.flush();
+        assertEquals(1, prefs.commits.get());
+        assertEquals(Config.SYNC_ALWAYS, prefs.getInt("syncPolicy", -1));
+        assertTrue(prefs.getBoolean("checkDeferred", false));
+
+        // the flush that was scheduled for these changes finds nothing left to write
+        Thread.sleep(600);
+        assertEquals(1, prefs.commits.get());
+    }
+
+    @Test
+    public void flushWithNothingPendingDoesNotCommit() {
+        config.flush();
+        config.flush();
+        assertEquals(0, prefs.commits.get());
+    }
+
+    @Test
+    public void concurrentWritersShareCommits() throws InterruptedException {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 1000;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int q = 0; q < 250; q++) {
+                        config.setMinBattery(base + q);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        config.flush();
+
+        assertTrue(prefs.commits.get() <= 2);
+        assertEquals(config.getMinBattery(), prefs.getInt("minBattery", -1));
+    }
+
+    @Test
+    public void movesOldUpdateKeysOutInOneCommit() {
+        CountingPrefs old = new CountingPrefs();
+        old.values.put("version", 1);
+        old.values.put("device", "generic");
+        old.values.put("romid", "dokdo_hammerhead");
+        old.values.put("info_rom", "Dokdo");
+        old.values.put("info_version", "4.4.2-20140308");
+        old.values.put("info_url", "http://example.com/dokdo.zip");
+        old.values.put("info_md5", "d41d8cd98f00b204e9800998ecf8427e");
+        old.values.put("info_date", "20140308-1200");
+
+        Config migrated = new Config(new FakeContext(tmp.getRoot(), old));
+        assertNotNull(migrated.getStoredUpdate());
+        assertEquals("4.4.2-20140308", migrated.getStoredUpdate().version);
+        migrated.flush();
+
+        assertEquals(1, old.commits.get());
+        assertFalse(old.contains("info_rom"));
+        assertFalse(old.contains("info_version"));
+        assertFalse(old.contains("info_url"));
+        assertTrue(old.contains("romid"));
+    }
+
+    private static RomInfo release(int day) {
+        String version = "4.4.2-201404" + (day < 10 ? "0" : "") + day;
+        return new RomInfo("Dokdo", version, null, "http://example.com/" + version + ".zip",
+                "d41d8cd98f00b204e9800998ecf8427e", Utils.parseDate("201404" + (day < 10 ? "0" : "") + day + "-1200"),
+                null, null);
+    }
+
+    @Test
+    public void burstOfOffersIsWrittenOnce() throws InterruptedException {
+        File log = new File(tmp.getRoot(), "history");
+        long before = log.length();
+        long modified = log.lastModified();
+        for (int q = 1; q <= 30; q++) {
+            config.storeUpdate(release(q));
+            if (q % 10 == 0) config.clearStoredUpdate();
+        }
+        config.storeUpdate(release(30));
+        // nothing touches the log on the caller's thread
+        assertEquals(before, log.length());
+        assertEquals(modified, log.lastModified());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.length() == before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        long after = log.length();
+        assertTrue(after > before);
+        Thread.sleep(600);
+        assertEquals(after, log.length());
+
+        UpdateHistory reloaded = new UpdateHistory(new FakeContext(tmp.getRoot(), prefs));
+        assertEquals("4.4.2-20140430", reloaded.getNewestPending().version);
+        assertFalse(reloaded.find("4.4.2-20140420").isPending());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a package past 2 GiB through Downloader from a local
+ * {@link FixtureServer}: interrupted past the int range, then resumed.
+ */
+public class DownloaderTest {
+    private static final long SIZE = Integer.MAX_VALUE + 8L * 1048576 + 12345;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FixtureServer server;
+    private FakeContext ctx;
+
+    @Before
+    public void setUp() throws Exception {
+        File sdcard = tmp.newFolder("sdcard");
+        // the property is the sdcard path without its leading slash; StorageLocation
+        // reads it once, when the first download directory lookup happens
+        final Map<String, String> props = Collections.singletonMap(
+                Config.OTA_SD_PATH_OS_PROP, sdcard.getPath().substring(1));
+        Utils.setPropertyProvider(new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return props;
+            }
+        });
+        server = new FixtureServer(tmp.newFolder("www"), SIZE, false);
+        ctx = new FakeContext(tmp.newFolder("files"), new CountingPrefs());
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        Utils.setPropertyProvider(null);
+    }
+
+    /**
+     * Records every progress callback, and cancels the download once it is
+     * past cancelAt bytes.
+     */
+    private static class Recorder implements Downloader.Listener {
+        final List<long[]> events = new ArrayList<long[]>();
+        final long cancelAt;
+        Downloader downloader;
+
+        Recorder(long cancelAt) {
+            this.cancelAt = cancelAt;
+        }
+
+        @Override
+        public void onIndeterminate() {
+        }
+
+        @Override
+        public void onProgress(long bytes, long total, long rate, long eta) {
+            events.add(new long[] { bytes, total });
+            if (bytes > cancelAt) downloader.cancel();
+        }
+    }
+
+    private static int run(Downloader downloader, Recorder recorder) {
+        recorder.downloader = downloader;
+        return downloader.run();
+    }
+
+    private static void assertProgress(Recorder recorder, long from, long to) {
+        assertTrue(recorder.events.size() > 2);
+        assertEquals(from, recorder.events.get(0)[0]);
+        long last = from;
+        for (long[] event : recorder.events) {
+            assertEquals(SIZE, event[1]);
+            assertTrue(event[0] >= last);
+            last = event[0];
+        }
+        assertTrue(last >= to);
+    }
+
+    @Test
+    public void resumesPastTwoGigabytes() throws Exception {
+        FileHasher fixtureHasher = new FileHasher(FileHasher.MD5);
+        fixtureHasher.hashFile(server.getFile());
+        RomInfo info = new RomInfo(FixtureServer.class.getSimpleName(), "fixture", null,
+                server.getUrl(), fixtureHasher.digest()[0], new Date());
+        File destFile = new File(StorageLocation.getDownloadDir(), info.getFileName());
+
+        // progress only reaches the listener every so often, so slow down
+        // past the int range to make sure the cancel lands before the end
+        server.throttle(Integer.MAX_VALUE, 1048576);
+        Recorder first = new Recorder(Integer.MAX_VALUE + 1048576L);
+        assertEquals(Downloader.RESULT_INTERRUPTED, run(new Downloader(ctx, info, destFile, first), first));
+        assertProgress(first, 0, Integer.MAX_VALUE + 1048576L);
+
+        PartialDownload part = new PartialDownload(destFile);
+        assertTrue(part.load(info.url));
+        assertEquals(SIZE, part.getLength());
+        long offset = part.getResumeOffset();
+        assertTrue("resume offset " + offset, offset > Integer.MAX_VALUE && offset < SIZE);
+
+        server.throttle(Long.MAX_VALUE, 0);
+        Recorder second = new Recorder(Long.MAX_VALUE);
+        assertEquals(Downloader.RESULT_OK, run(new Downloader(ctx, info, destFile, second), second));
+        assertProgress(second, offset, SIZE);
+        assertEquals(SIZE, second.events.get(second.events.size() - 1)[0]);
+        assertEquals(SIZE, destFile.length());
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+/**
+ * Context that hands out one set of preferences and a private files directory.
+ */
+class FakeContext extends Context {
+    private final File filesDir;
+    private final SharedPreferences prefs;
+
+    FakeContext(File filesDir, SharedPreferences prefs) {
+        this.filesDir = filesDir;
+        this.prefs = prefs;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.neighbors28.dokdo.otaupdater";
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return new PackageManager() {
+            @Override
+            public PackageInfo getPackageInfo(String packageName, int flags) {
+                PackageInfo info = new PackageInfo();
+                info.versionCode = 1;
+                return info;
+            }
+        };
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return prefs;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return filesDir;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileHasherTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // a few 256 KB reads plus a short one
+    private final byte[] data = new byte[3 * 262144 + 12345];
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(4).nextBytes(data);
+        file = tmp.newFile("update.zip");
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static String hex(String algorithm, byte[] data, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(algorithm);
+        digest.update(data, 0, length);
+        StringBuilder str = new StringBuilder();
+        for (byte b : digest.digest()) {
+            str.append(String.format("%02x", b & 0xff));
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void matchesMessageDigestForEveryAlgorithm() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5, FileHasher.SHA1, FileHasher.SHA256);
+        hasher.hashFile(file);
+        assertArrayEquals(new String[] {
+                hex("MD5", data, data.length),
+                hex("SHA-1", data, data.length),
+                hex("SHA-256", data, data.length) }, hasher.digest());
+    }
+
+    @Test
+    public void hashesOnlyTheRequestedPrefix() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5);
+        hasher.hashFile(file, 300000);
+        assertEquals(hex("MD5", data, 300000), hasher.digest()[0]);
+
+        hasher.hashFile(file, data.length + 1000);
+        assertEquals(hex("MD5", data, data.length), hasher.digest()[0]);
+    }
+
+    @Test
+    public void arrayAndBufferUpdatesAgree() throws Exception {
+        FileHasher arrays = new FileHasher(FileHasher.MD5, FileHasher.SHA256);
+        arrays.update(data, 0, 1000);
+        arrays.update(data, 1000, data.length - 1000);
+
+        FileHasher buffers = new FileHasher(FileHasher.MD5, FileHasher.SHA256);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.flip();
+        buffers.update(direct);
+
+        assertArrayEquals(arrays.digest(), buffers.digest());
+    }
+
+    @Test
+    public void resetStartsOver() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.SHA1);
+        hasher.update(data, 0, 5000);
+        hasher.reset();
+        hasher.update(data, 0, 100);
+        assertEquals(hex("SHA-1", data, 100), hasher.digest()[0]);
+    }
+
+    @Test
+    public void emptyFileHashesToTheEmptyDigest() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5);
+        hasher.hashFile(tmp.newFile("empty.zip"));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", hasher.digest()[0]);
+    }
+
+    @Test
+    public void normalizesManifestSpellings() {
+        assertEquals(FileHasher.SHA256, FileHasher.normalize("sha256"));
+        assertEquals(FileHasher.SHA256, FileHasher.normalize("SHA-256"));
+        assertEquals(FileHasher.SHA1, FileHasher.normalize("sha_1"));
+        assertEquals(FileHasher.MD5, FileHasher.normalize("md5"));
+        assertNull(FileHasher.normalize("crc32"));
+        assertNull(FileHasher.normalize(null));
+    }
+
+    @Test
+    public void keepsTheOrderAlgorithmsWereGivenIn() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.SHA256, FileHasher.MD5);
+        assertEquals(Arrays.asList(FileHasher.SHA256, FileHasher.MD5), Arrays.asList(hasher.getAlgorithms()));
+        hasher.hashFile(file);
+        String[] digests = hasher.digest();
+        assertEquals(64, digests[0].length());
+        assertEquals(32, digests[1].length());
+    }
+}
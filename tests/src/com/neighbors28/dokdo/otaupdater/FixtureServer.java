@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a sparse fixture from 127.0.0.1 (GET/HEAD with byte ranges and an
+ * ETag, like the real mirrors), so multi-GB downloads can run through
+ * resume, preallocation, hashing and progress without touching the network.
+ * The fixture is zeros except for its own offset stamped every megabyte, so
+ * a byte landing in the wrong place changes the digest.
+ */
+public class FixtureServer {
+    private static final String FIXTURE_NAME = "fixture.bin";
+    private static final int STAMP_INTERVAL = 1048576;
+    private static final int TIMEOUT = 30000;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final String etag;
+    private final boolean ranges;
+    private final ServerSocket socket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private volatile long throttleFrom = Long.MAX_VALUE;
+    private volatile int throttleRate = 0;
+
+    /**
+     * Creates a size byte fixture in dir and starts serving it. Without
+     * ranges, Accept-Ranges isn't advertised, so downloads stay on a single
+     * stream; Range requests are still honoured for resumes.
+     */
+    public FixtureServer(File dir, long size, boolean ranges) throws IOException {
+        this.file = new File(dir, FIXTURE_NAME);
+        createFixture(file, size);
+        this.etag = "\"" + file.length() + "-" + file.lastModified() + "\"";
+        this.ranges = ranges;
+        this.socket = new ServerSocket(0, 4, InetAddress.getByName("127.0.0.1"));
+        listen();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + socket.getLocalPort() + "/" + FIXTURE_NAME;
+    }
+
+    /**
+     * Sends everything past offset from at bytesPerSecond, so a test can
+     * act while a download is in a known stretch of the file.
+     * Long.MAX_VALUE turns it off again.
+     */
+    public void throttle(long from, int bytesPerSecond) {
+        throttleFrom = Long.MAX_VALUE;
+        throttleRate = bytesPerSecond;
+        throttleFrom = from;
+    }
+
+    public void stop() {
+        try { socket.close(); }
+        catch (Exception e) { }
+        executor.shutdownNow();
+    }
+
+    private static void createFixture(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(size);
+            for (long pos = 0; pos + 8 <= size; pos += STAMP_INTERVAL) {
+                raf.seek(pos);
+                raf.writeLong(pos);
+            }
+        } finally {
+            try { raf.close(); }
+            catch (Exception e) { }
+        }
+    }
+
+    private void listen() {
+        Thread accept = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        final Socket client = socket.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(client);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // stopped
+                        return;
+                    }
+                }
+            }
+        }, "OTA::Fixture");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    private void serve(Socket client) {
+        RandomAccessFile raf = null;
+        try {
+            client.setSoTimeout(TIMEOUT);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            String request = readLine(in);
+            String range = null;
+            String ifRange = null;
+            String line;
+            while ((line = readLine(in)) != null && line.length() != 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                String name = line.substring(0, colon).trim();
+                if (name.equalsIgnoreCase("Range")) range = line.substring(colon + 1).trim();
+                else if (name.equalsIgnoreCase("If-Range")) ifRange = line.substring(colon + 1).trim();
+            }
+            if (request == null) return;
+
+            OutputStream out = client.getOutputStream();
+            String[] fields = request.split(" ");
+            boolean head = fields[0].equals("HEAD");
+            if (fields.length < 2 || !(head || fields[0].equals("GET"))
+                    || !fields[1].equals("/" + FIXTURE_NAME)) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+                return;
+            }
+
+            long length = file.length();
+            long start = 0;
+            long end = length - 1;
+            boolean partial = false;
+            if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag))) {
+                try {
+                    String[] bounds = range.substring(6).split("-", -1);
+                    start = Long.parseLong(bounds[0]);
+                    if (bounds[1].length() != 0) end = Math.min(end, Long.parseLong(bounds[1]));
+                    partial = true;
+                } catch (Exception e) {
+                    start = 0;
+                }
+                if (partial && start > end) {
+                    out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */" + length
+                            + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+                    return;
+                }
+            }
+
+            StringBuilder header = new StringBuilder();
+            header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+            header.append("Content-Type: application/zip\r\n");
+            header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            if (partial) header.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+            if (ranges) header.append("Accept-Ranges: bytes\r\n");
+            header.append("ETag: ").append(etag).append("\r\n");
+            header.append("Connection: close\r\n\r\n");
+            out.write(header.toString().getBytes("US-ASCII"));
+            if (head) return;
+
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(start);
+            byte[] buf = new byte[BUFFER_SIZE];
+            long pos = start;
+            long left = end - start + 1;
+            while (left > 0) {
+                int n = raf.read(buf, 0, (int) Math.min(buf.length, left));
+                if (n == -1) break;
+                out.write(buf, 0, n);
+                pos += n;
+                left -= n;
+                if (pos > throttleFrom) {
+                    out.flush();
+                    Thread.sleep(n * 1000L / throttleRate);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the downloader hung up, e.g. paused or cancelled
+        } catch (InterruptedException e) {
+            // stopped
+        } finally {
+            if (raf != null) {
+                try { raf.close(); }
+                catch (Exception e) { }
+            }
+            try { client.close(); }
+            catch (Exception e) { }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') line.append((char) c);
+        }
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+}
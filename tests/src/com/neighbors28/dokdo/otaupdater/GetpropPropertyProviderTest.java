@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class GetpropPropertyProviderTest {
+    private static Map<String, String> parse(String... lines) {
+        HashMap<String, String> props = new HashMap<String, String>();
+        for (String line : lines) {
+            GetpropPropertyProvider.parseLine(line, props);
+        }
+        return props;
+    }
+
+    @Test
+    public void keepsOnlyOtaProperties() {
+        Map<String, String> props = parse(
+                "[dalvik.vm.heapsize]: [256m]",
+                "[otaupdater.otaid]: [dokdo_hammerhead]",
+                "[otaupdater.otaver]: [4.4.2-2014]",
+                "[ro.build.id]: [KOT49H]",
+                "[otaupdater.otatime]: [20140301-1200]");
+
+        assertEquals(3, props.size());
+        assertEquals("dokdo_hammerhead", props.get("otaupdater.otaid"));
+        assertEquals("4.4.2-2014", props.get("otaupdater.otaver"));
+        assertEquals("20140301-1200", props.get("otaupdater.otatime"));
+    }
+
+    @Test
+    public void skipsEmptyValues() {
+        Map<String, String> props = parse(
+                "[otaupdater.noflash]: []",
+                "[otaupdater.sdcard.os]: [sdcard]");
+
+        assertFalse(props.containsKey("otaupdater.noflash"));
+        assertEquals("sdcard", props.get("otaupdater.sdcard.os"));
+    }
+
+    @Test
+    public void keepsBracketsInsideValue() {
+        Map<String, String> props = parse("[otaupdater.rebootcmd]: [reboot [recovery]]");
+        assertEquals("reboot [recovery]", props.get("otaupdater.rebootcmd"));
+    }
+
+    @Test
+    public void ignoresMalformedLines() {
+        Map<String, String> props = parse(
+                "",
+                "otaupdater.otaid=dokdo",
+                "[otaupdater.otaid] [dokdo]",
+                "[otaupdater.otaver]: [4.4.2",
+                " [otaupdater.otatime]: [20140301-1200]");
+        assertTrue(props.isEmpty());
+    }
+
+    @Test
+    public void lastValueWins() {
+        Map<String, String> props = parse(
+                "[otaupdater.otaver]: [1]",
+                "[otaupdater.otaver]: [2]");
+        assertEquals("2", props.get("otaupdater.otaver"));
+    }
+
+    @Test
+    public void loadsFromCommandOutput() {
+        Map<String, String> props = new GetpropPropertyProvider("/bin/sh", "-c",
+                "echo '[ro.build.id]: [KOT49H]'; echo '[otaupdater.otaid]: [dokdo_hammerhead]'").load();
+        assertEquals(1, props.size());
+        assertEquals("dokdo_hammerhead", props.get("otaupdater.otaid"));
+    }
+
+    @Test
+    public void failedCommandLoadsNothing() {
+        assertNull(new GetpropPropertyProvider("/bin/sh", "-c",
+                "echo '[otaupdater.otaid]: [dokdo]'; exit 1").load());
+        assertNull(new GetpropPropertyProvider("/nonexistent/getprop").load());
+    }
+}
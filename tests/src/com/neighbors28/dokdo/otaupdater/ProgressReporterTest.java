@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.SystemClock;
+
+public class ProgressReporterTest {
+    private ProgressReporter reporter;
+
+    @Before
+    public void setUp() {
+        SystemClock.setFrozenTime(10000);
+        reporter = new ProgressReporter(100);
+    }
+
+    @After
+    public void tearDown() {
+        SystemClock.setFrozenTime(-1);
+    }
+
+    private static void at(long millis) {
+        SystemClock.setFrozenTime(10000 + millis);
+    }
+
+    @Test
+    public void reportsTheFirstUpdate() {
+        assertTrue(reporter.update(0, 1000));
+        assertEquals(-1, reporter.getRate());
+    }
+
+    @Test
+    public void reportsAtMostOncePerInterval() {
+        assertTrue(reporter.update(0, 100000));
+        at(50);
+        assertFalse(reporter.update(500, 100000));
+        at(99);
+        assertFalse(reporter.update(990, 100000));
+        at(100);
+        assertTrue(reporter.update(1000, 100000));
+        at(150);
+        assertFalse(reporter.update(1500, 100000));
+    }
+
+    @Test
+    public void alwaysReportsCompletion() {
+        assertTrue(reporter.update(0, 1000));
+        at(10);
+        assertTrue(reporter.update(1000, 1000));
+    }
+
+    @Test
+    public void smoothsTheRate() {
+        reporter.reset(0);
+        at(1000);
+        assertTrue(reporter.update(1000, 20000));
+        assertEquals(1000, reporter.getRate());
+
+        // 3000 B/s now, weighted 0.3 against the 1000 B/s so far
+        at(2000);
+        assertTrue(reporter.update(4000, 20000));
+        assertEquals(1600, reporter.getRate());
+        assertEquals(10, reporter.getEta(4000, 20000));
+    }
+
+    @Test
+    public void resetForgetsTheRate() {
+        reporter.reset(0);
+        at(1000);
+        reporter.update(1000, 20000);
+        reporter.reset(5000);
+        assertEquals(-1, reporter.getRate());
+        assertEquals(-1, reporter.getEta(5000, 20000));
+
+        // measured from the resumed offset, not from zero
+        at(2000);
+        reporter.update(7000, 20000);
+        assertEquals(2000, reporter.getRate());
+    }
+
+    @Test
+    public void noEtaWithoutAKnownTotal() {
+        reporter.reset(0);
+        at(1000);
+        reporter.update(1000, -1);
+        assertEquals(-1, reporter.getEta(1000, -1));
+        assertEquals(-1, reporter.getEta(3000, 2000));
+    }
+}
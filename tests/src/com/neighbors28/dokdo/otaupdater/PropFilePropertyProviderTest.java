@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropFilePropertyProviderTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File write(String name, String... lines) throws IOException {
+        File file = tmp.newFile(name);
+        FileWriter out = new FileWriter(file);
+        try {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void readsOtaPropertiesOnly() throws IOException {
+        File buildProp = write("build.prop",
+                "# begin build properties",
+                "ro.build.id=KOT49H",
+                "otaupdater.otaid=dokdo_hammerhead",
+                "  otaupdater.otaver = 4.4.2-2014  ",
+                "#otaupdater.otatime=20140301-1200",
+                "otaupdater.rebootcmd=reboot recovery");
+
+        Map<String, String> props = new PropFilePropertyProvider(buildProp).load();
+        assertEquals(3, props.size());
+        assertEquals("dokdo_hammerhead", props.get("otaupdater.otaid"));
+        assertEquals("4.4.2-2014", props.get("otaupdater.otaver"));
+        assertEquals("reboot recovery", props.get("otaupdater.rebootcmd"));
+    }
+
+    @Test
+    public void keepsEqualsInsideValue() throws IOException {
+        File buildProp = write("build.prop", "otaupdater.rebootcmd=setprop a=b");
+        Map<String, String> props = new PropFilePropertyProvider(buildProp).load();
+        assertEquals("setprop a=b", props.get("otaupdater.rebootcmd"));
+    }
+
+    @Test
+    public void laterFilesOverrideEarlierOnes() throws IOException {
+        File defaultProp = write("default.prop",
+                "otaupdater.otaid=default",
+                "otaupdater.noflash=1",
+                "otaupdater.sdcard.os=sdcard");
+        File buildProp = write("build.prop",
+                "otaupdater.otaid=dokdo_hammerhead",
+                "otaupdater.noflash=");
+
+        Map<String, String> props = new PropFilePropertyProvider(defaultProp, buildProp).load();
+        assertEquals("dokdo_hammerhead", props.get("otaupdater.otaid"));
+        assertFalse(props.containsKey("otaupdater.noflash"));
+        assertEquals("sdcard", props.get("otaupdater.sdcard.os"));
+    }
+
+    @Test
+    public void skipsMissingFiles() throws IOException {
+        File buildProp = write("build.prop", "otaupdater.otaid=dokdo_hammerhead");
+        File missing = new File(tmp.getRoot(), "missing.prop");
+
+        Map<String, String> props = new PropFilePropertyProvider(missing, buildProp).load();
+        assertEquals("dokdo_hammerhead", props.get("otaupdater.otaid"));
+    }
+
+    @Test
+    public void returnsNullWhenNothingIsReadable() {
+        File missing = new File(tmp.getRoot(), "missing.prop");
+        assertNull(new PropFilePropertyProvider(missing).load());
+    }
+}
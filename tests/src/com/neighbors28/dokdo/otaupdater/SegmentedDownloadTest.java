@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs segmented downloads against a local HTTP stand-in that can refuse
+ * ranges or cut every response short.
+ */
+public class SegmentedDownloadTest {
+    private static final String ETAG = "\"dokdo-20140308\"";
+    private static final int SEGMENTS = 4;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // three segments' worth, since each has to be at least MIN_SEGMENT_SIZE
+    private final byte[] pkg = new byte[(int) (3 * SegmentedDownload.MIN_SEGMENT_SIZE) + 12345];
+    private HttpServer server;
+    private File dest;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private volatile boolean honourRanges = true;
+    private volatile int cutAfter = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(2).nextBytes(pkg);
+        dest = new File(tmp.getRoot(), "update.zip");
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip";
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher m = range == null ? null : Pattern.compile("bytes=(\\d+)-(\\d+)").matcher(range);
+        int from = 0;
+        int to = pkg.length - 1;
+        boolean head = exchange.getRequestMethod().equals("HEAD");
+        exchange.getResponseHeaders().set("ETag", ETAG);
+        if (honourRanges) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (honourRanges && m != null && m.matches()) {
+            rangeRequests.incrementAndGet();
+            from = Integer.parseInt(m.group(1));
+            to = Math.min(Integer.parseInt(m.group(2)), pkg.length - 1);
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + pkg.length);
+            exchange.sendResponseHeaders(206, to - from + 1);
+        } else {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(pkg.length));
+            exchange.sendResponseHeaders(200, head ? -1 : pkg.length);
+        }
+        if (head) {
+            exchange.close();
+            return;
+        }
+
+        int end = cutAfter < 0 ? to : Math.min(to, from + cutAfter - 1);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            for (int pos = from; pos <= end; pos += 65536) {
+                int len = Math.min(65536, end - pos + 1);
+                out.write(pkg, pos, len);
+                bytesServed.addAndGet(len);
+            }
+        } catch (IOException e) {
+            // client stopped reading
+        } finally {
+            // short of the promised length this drops the connection mid-body
+            exchange.close();
+        }
+    }
+
+    /**
+     * Starts a download the way Downloader does: a plain request whose
+     * validator and length are saved before deciding to split it up.
+     */
+    private PartialDownload begin() throws IOException {
+        PartialDownload part = new PartialDownload(dest);
+        assertFalse(part.load(getUrl()));
+        HttpURLConnection conn = (HttpURLConnection) new URL(getUrl()).openConnection();
+        conn.setRequestMethod("HEAD");
+        try {
+            conn.connect();
+            part.saveValidator(conn, pkg.length);
+            assertEquals(honourRanges, SegmentedDownload.canSegment(conn, part, SEGMENTS));
+        } finally {
+            conn.disconnect();
+        }
+        return part;
+    }
+
+    private static void run(SegmentedDownload segDl) throws IOException {
+        try {
+            segDl.start();
+            while (!segDl.await(100)) {
+            }
+        } finally {
+            segDl.finish();
+        }
+    }
+
+    private byte[] readPart() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dest.getPath() + PartialDownload.PART_SUFFIX), "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void fetchesEveryRangeIntoThePartFile() throws IOException {
+        PartialDownload part = begin();
+        SegmentedDownload segDl = new SegmentedDownload(part, new URL(getUrl()), SEGMENTS, Config.SYNC_CHECKPOINT);
+        run(segDl);
+
+        assertTrue(segDl.isComplete());
+        assertEquals(pkg.length, segDl.getBytesDone());
+        // capped by MIN_SEGMENT_SIZE, not by the count asked for
+        assertEquals(3, rangeRequests.get());
+        assertArrayEquals(pkg, readPart());
+    }
+
+    @Test
+    public void resumesEachRangeWhereItStopped() throws IOException {
+        PartialDownload part = begin();
+        cutAfter = 1048576;
+        try {
+            run(new SegmentedDownload(part, new URL(getUrl()), SEGMENTS, Config.SYNC_CHECKPOINT));
+            fail("every range was cut short");
+        } catch (IOException e) {
+        }
+        long firstRound = bytesServed.get();
+
+        cutAfter = -1;
+        PartialDownload resumed = new PartialDownload(dest);
+        assertTrue(resumed.load(getUrl()));
+        assertTrue(resumed.isSegmented());
+        SegmentedDownload segDl = new SegmentedDownload(resumed, new URL(getUrl()), SEGMENTS, Config.SYNC_CHECKPOINT);
+        long done = segDl.getBytesDone();
+        assertEquals(firstRound, done);
+        run(segDl);
+
+        assertTrue(segDl.isComplete());
+        assertArrayEquals(pkg, readPart());
+        // only what was missing went over the wire again
+        assertEquals(pkg.length - done, bytesServed.get() - firstRound);
+    }
+
+    @Test
+    public void refusesServerWithoutRanges() throws IOException {
+        honourRanges = false;
+        PartialDownload part = begin();
+        try {
+            run(new SegmentedDownload(part, new URL(getUrl()), SEGMENTS, Config.SYNC_CHECKPOINT));
+            fail("server ignored Range");
+        } catch (SegmentedDownload.RangeNotSupportedException e) {
+        }
+    }
+}
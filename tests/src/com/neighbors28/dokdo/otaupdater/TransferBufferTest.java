@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TransferBufferTest {
+    private static final int BLOCK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final byte[] data = new byte[1048576 + 777];
+
+    @Before
+    public void setUp() {
+        new Random(16).nextBytes(data);
+        BufferPool.trim();
+    }
+
+    /**
+     * Hands out at most chunk bytes per read, like a socket would.
+     */
+    private static InputStream trickle(byte[] data, final int chunk) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    /**
+     * Remembers the length of every write it gets.
+     */
+    private static class RecordingStream extends ByteArrayOutputStream {
+        final List<Integer> writes = new ArrayList<Integer>();
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes.add(len);
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    public void copiesAndHashesTheStream() throws Exception {
+        FileHasher hasher = new FileHasher(FileHasher.MD5);
+        RecordingStream out = new RecordingStream();
+        TransferBuffer tb = new TransferBuffer(BLOCK_SIZE, 0);
+        InputStream is = trickle(data, 1500);
+        while (tb.readFrom(is, Integer.MAX_VALUE, hasher) != -1) {
+            tb.drainTo(out);
+        }
+        tb.flushTo(out);
+        tb.release();
+
+        assertArrayEquals(data, out.toByteArray());
+        FileHasher expected = new FileHasher(FileHasher.MD5);
+        expected.update(data, 0, data.length);
+        assertEquals(expected.digest()[0], hasher.digest()[0]);
+    }
+
+    @Test
+    public void drainsEndOnBlockBoundaries() throws IOException {
+        long start = 1000;
+        RecordingStream out = new RecordingStream();
+        TransferBuffer tb = new TransferBuffer(BLOCK_SIZE, start);
+        InputStream is = trickle(data, 1500);
+        while (tb.readFrom(is, Integer.MAX_VALUE, null) != -1) {
+            tb.drainTo(out);
+        }
+        int drains = out.writes.size();
+        tb.flushTo(out);
+        tb.release();
+
+        assertTrue(drains > 1);
+        long position = start;
+        for (int q = 0; q < drains; q++) {
+            position += out.writes.get(q);
+            assertEquals("write " + q, 0, position % BLOCK_SIZE);
+        }
+        assertEquals(start + data.length, position + out.writes.get(drains));
+    }
+
+    @Test
+    public void readsNoMoreThanAsked() throws IOException {
+        TransferBuffer tb = new TransferBuffer(BLOCK_SIZE, 0);
+        assertEquals(100, tb.readFrom(new ByteArrayInputStream(data), 100, null));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, tb.drainTo(out));
+        assertEquals(100, tb.flushTo(out));
+        assertArrayEquals(Arrays.copyOf(data, 100), out.toByteArray());
+        tb.release();
+    }
+
+    @Test
+    public void writesToTheChannelAtItsPosition() throws IOException {
+        long start = 5000;
+        File file = tmp.newFile("update.zip.part");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            TransferBuffer tb = new TransferBuffer(BLOCK_SIZE, start);
+            InputStream is = trickle(data, 70000);
+            while (tb.readFrom(is, Integer.MAX_VALUE, null) != -1) {
+                tb.drainTo(channel);
+            }
+            tb.flushTo(channel);
+            tb.release();
+
+            assertEquals(start + data.length, raf.length());
+            byte[] written = new byte[data.length];
+            raf.seek(start);
+            raf.readFully(written);
+            assertArrayEquals(data, written);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void fallsBackToFourKilobyteBlocks() {
+        assertEquals(BLOCK_SIZE, TransferBuffer.getBlockSize(tmp.getRoot().getPath()));
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import android.content.Context;
+
+public class UpdateHistoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Context ctx;
+    private File log;
+    private File backup;
+    private long goodLength;
+
+    private final RomInfo older = new RomInfo("Dokdo", "4.4.2-20140301", null, "http://example.com/a.zip",
+            "0cc175b9c0f1b6a831c399e269772661", new Date(1393675200000L));
+    private final RomInfo newer = new RomInfo("Dokdo", "4.4.2-20140308", null, "http://example.com/b.zip",
+            "92eb5ffee6ae2fec3ad71c777531578f", new Date(1394280000000L));
+
+    @BeforeClass
+    public static void setUpProps() {
+        final HashMap<String, String> props = new HashMap<String, String>();
+        props.put(Config.OTA_VER_PROP, "4.4.2-20140201");
+        Utils.setPropertyProvider(new SystemPropertyProvider() {
+            @Override
+            public Map<String, String> load() {
+                return props;
+            }
+        });
+    }
+
+    @Before
+    public void setUp() {
+        ctx = new Context() {
+            @Override
+            public File getFilesDir() {
+                return tmp.getRoot();
+            }
+        };
+        log = new File(tmp.getRoot(), "history");
+        backup = new File(tmp.getRoot(), "history.bad");
+
+        UpdateHistory history = new UpdateHistory(ctx);
+        history.offered(older);
+        history.record(older, UpdateHistory.EVENT_DOWNLOADED);
+        history.offered(newer);
+        goodLength = log.length();
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream os = new FileOutputStream(log, true);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] event(RomInfo info, int event) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(2);
+        out.writeLong(System.currentTimeMillis());
+        out.writeByte(event);
+        out.writeLong(info.date.getTime());
+        byte[] version = info.version.getBytes("UTF-8");
+        out.writeInt(version.length);
+        out.write(version);
+        return record.toByteArray();
+    }
+
+    private static byte[] offerHead(int firstStringLength) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(1);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(firstStringLength);
+        return record.toByteArray();
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertKeptGoodRecords(UpdateHistory history) {
+        assertEquals(2, history.getEntries().size());
+        assertTrue(history.find(older.version).getDownloadedAt() != 0);
+        assertEquals(newer.version, history.getNewestPending().version);
+        assertEquals(goodLength, log.length());
+    }
+
+    @Test
+    public void reloadsWhatWasWritten() {
+        UpdateHistory history = new UpdateHistory(ctx);
+        assertKeptGoodRecords(history);
+        assertFalse(backup.exists());
+    }
+
+    @Test
+    public void dropsTornRecordQuietly() throws IOException {
+        append(new byte[] { 1, 0, 0, 0 });
+        assertKeptGoodRecords(new UpdateHistory(ctx));
+        assertFalse(backup.exists());
+    }
+
+    @Test
+    public void treatsStringRunningPastTheEndAsTorn() throws IOException {
+        append(offerHead(Integer.MAX_VALUE));
+        assertKeptGoodRecords(new UpdateHistory(ctx));
+        assertFalse(backup.exists());
+    }
+
+    @Test
+    public void backsUpBeforeDroppingUnknownRecordType() throws IOException {
+        append(new byte[] { 9, 1, 2, 3, 4, 5, 6, 7, 8 });
+        append(event(newer, UpdateHistory.EVENT_DOWNLOADED));
+        byte[] original = read(log);
+
+        assertKeptGoodRecords(new UpdateHistory(ctx));
+        assertArrayEquals(original, read(backup));
+    }
+
+    @Test
+    public void backsUpBeforeDroppingBadStringLength() throws IOException {
+        append(offerHead(-5));
+        append(new byte[64]);
+        byte[] original = read(log);
+
+        assertKeptGoodRecords(new UpdateHistory(ctx));
+        assertArrayEquals(original, read(backup));
+    }
+
+    @Test
+    public void skipsEventsOfUnknownKind() throws IOException {
+        append(event(newer, 9));
+        append(event(newer, UpdateHistory.EVENT_DOWNLOADED));
+        long length = log.length();
+
+        UpdateHistory history = new UpdateHistory(ctx);
+        assertTrue(history.find(newer.version).getDownloadedAt() != 0);
+        assertEquals(length, log.length());
+        assertFalse(backup.exists());
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs bursts of manifest checks through the shared client against a local
+ * HTTPS stand-in that counts TCP connections and TLS handshakes.
+ */
+public class UpdaterHttpClientTest {
+    private static final String PASSWORD = "changeit";
+    private static final String MANIFEST = "{\"rom\":\"dokdo\",\"version\":\"4.4.2-2014\",\"date\":\"20140301-1200\"}";
+
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Server server;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        File keystore = new File(tmp.getRoot(), "localhost.p12");
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool",
+                "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-alias", "localhost",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        keytool.getInputStream().close();
+        assertEquals("keytool", 0, keytool.waitFor());
+
+        // the shared client uses the platform trust store, so trust the stand-in there
+        System.setProperty("javax.net.ssl.trustStore", keystore.getPath());
+        System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+        System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+
+        server = new Server(keystore);
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+        if (server != null) server.close();
+    }
+
+    @Before
+    public void closePool() {
+        UpdaterHttpClient.getInstance().getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        server.reset();
+    }
+
+    private static String check(HttpClient client) throws IOException {
+        HttpResponse r = client.execute(new HttpGet(server.getUrl()));
+        assertEquals(200, r.getStatusLine().getStatusCode());
+        return EntityUtils.toString(r.getEntity());
+    }
+
+    @Test
+    public void burstOfChecksSharesOneHandshake() throws IOException {
+        HttpClient client = UpdaterHttpClient.getInstance();
+        for (int q = 0; q < 20; q++) {
+            assertEquals(MANIFEST, check(client));
+        }
+
+        assertEquals(20, server.requests.get());
+        assertEquals(20, server.gzipRequests.get());
+        assertEquals(1, server.connections.get());
+        assertEquals(1, server.handshakes.get());
+    }
+
+    @Test
+    public void concurrentChecksStayWithinPerRouteLimit() throws Exception {
+        final HttpClient client = UpdaterHttpClient.getInstance();
+        final AtomicInteger failures = new AtomicInteger();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int q = 0; q < 10; q++) {
+                            if (!MANIFEST.equals(check(client))) failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertEquals(80, server.requests.get());
+        // MAX_CONNECTIONS_PER_ROUTE
+        assertTrue("connections: " + server.connections.get(), server.connections.get() <= 2);
+        assertEquals(server.connections.get(), server.handshakes.get());
+    }
+
+    @Test
+    public void connectionIsDroppedAfterServerKeepAlive() throws Exception {
+        HttpClient client = UpdaterHttpClient.getInstance();
+        server.keepAliveSeconds = 1;
+        try {
+            check(client);
+            check(client);
+            assertEquals(1, server.handshakes.get());
+
+            Thread.sleep(1500);
+            check(client);
+            assertEquals(2, server.connections.get());
+            assertEquals(2, server.handshakes.get());
+        } finally {
+            server.keepAliveSeconds = 0;
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 over TLS server answering every request with a gzipped
+     * manifest and keeping the connection open.
+     */
+    private static class Server implements Runnable {
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger handshakes = new AtomicInteger();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger gzipRequests = new AtomicInteger();
+        volatile int keepAliveSeconds = 0;
+
+        private final SSLServerSocket socket;
+        private final byte[] body;
+
+        Server(File keystore) throws Exception {
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            FileInputStream in = new FileInputStream(keystore);
+            try {
+                ks.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(ks, PASSWORD.toCharArray());
+            SSLContext ssl = SSLContext.getInstance("TLS");
+            ssl.init(kmf.getKeyManagers(), null, null);
+
+            socket = (SSLServerSocket) ssl.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+            ByteArrayOutputStream gz = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(gz);
+            out.write(MANIFEST.getBytes("UTF-8"));
+            out.close();
+            body = gz.toByteArray();
+
+            Thread thread = new Thread(this, "https-stand-in");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "https://localhost:" + socket.getLocalPort() + "/pull";
+        }
+
+        void reset() {
+            connections.set(0);
+            handshakes.set(0);
+            requests.set(0);
+            gzipRequests.set(0);
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                final SSLSocket conn;
+                try {
+                    conn = (SSLSocket) socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                connections.incrementAndGet();
+                conn.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    @Override
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        handshakes.incrementAndGet();
+                    }
+                });
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(conn);
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket conn) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), "US-ASCII"));
+                OutputStream out = conn.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() == 0) continue;
+                    boolean gzip = false;
+                    while ((line = in.readLine()) != null && line.length() != 0) {
+                        if (line.toLowerCase().startsWith("accept-encoding:") && line.contains("gzip")) gzip = true;
+                    }
+                    requests.incrementAndGet();
+                    if (gzip) gzipRequests.incrementAndGet();
+
+                    StringBuilder head = new StringBuilder();
+                    head.append("HTTP/1.1 200 OK\r\n");
+                    head.append("Content-Type: application/json\r\n");
+                    head.append("Content-Encoding: gzip\r\n");
+                    head.append("Content-Length: ").append(body.length).append("\r\n");
+                    if (keepAliveSeconds > 0) head.append("Keep-Alive: timeout=").append(keepAliveSeconds).append("\r\n");
+                    head.append("\r\n");
+                    out.write(head.toString().getBytes("US-ASCII"));
+                    out.write(body);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                try { conn.close(); }
+                catch (Exception e) { }
+            }
+        }
+    }
+}
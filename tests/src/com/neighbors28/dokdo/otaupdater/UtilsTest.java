@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UtilsTest {
+    private static class FlakyProvider implements SystemPropertyProvider {
+        int loads = 0;
+
+        @Override
+        public Map<String, String> load() {
+            loads++;
+            if (loads == 1) return null;
+            return Collections.singletonMap(Config.OTA_ID_PROP, "dokdo_hammerhead");
+        }
+    }
+
+    @After
+    public void resetProvider() {
+        Utils.setPropertyProvider(null);
+    }
+
+    @Test
+    public void failedLoadIsRetried() {
+        FlakyProvider provider = new FlakyProvider();
+        Utils.setPropertyProvider(provider);
+
+        assertNull(Utils.getRomID());
+        assertEquals("dokdo_hammerhead", Utils.getRomID());
+        assertEquals("dokdo_hammerhead", Utils.getRomID());
+        assertEquals(2, provider.loads);
+    }
+}
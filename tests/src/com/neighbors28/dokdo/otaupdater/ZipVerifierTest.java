@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.neighbors28.dokdo.otaupdater;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipVerifierTest {
+    private static final String PASSWORD = "changeit";
+
+    private static final byte[] OID_SIGNED_DATA = { 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x02 };
+    private static final byte[] OID_DATA = { 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x07, 0x01 };
+    private static final byte[] OID_SHA256 = { 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01 };
+    private static final byte[] OID_RSA = { 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x01 };
+
+    @ClassRule
+    public static TemporaryFolder keys = new TemporaryFolder();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static PrivateKey signingKey;
+    private static X509Certificate signingCert;
+
+    private final byte[] payload = random(200000);
+    private final byte[] script = "ui_print(\"Dokdo\");\n".getBytes();
+
+    @BeforeClass
+    public static void generateKey() throws Exception {
+        File keystore = new File(keys.getRoot(), "release.p12");
+        Process keytool = new ProcessBuilder(System.getProperty("java.home") + "/bin/keytool",
+                "-genkeypair", "-keyalg", "RSA", "-keysize", "2048", "-alias", "release",
+                "-dname", "CN=Dokdo Release", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        keytool.getInputStream().close();
+        assertEquals("keytool", 0, keytool.waitFor());
+
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        InputStream is = new FileInputStream(keystore);
+        try {
+            store.load(is, PASSWORD.toCharArray());
+        } finally {
+            is.close();
+        }
+        signingKey = (PrivateKey) store.getKey("release", PASSWORD.toCharArray());
+        signingCert = (X509Certificate) store.getCertificate("release");
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private File write(byte[] zip) throws IOException {
+        File file = tmp.newFile();
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(zip);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    private int verify(byte[] zip) throws IOException {
+        return ZipVerifier.verify(write(zip), null);
+    }
+
+    private byte[] twoEntries(boolean zip64) {
+        Fixture fixture = new Fixture(zip64);
+        fixture.add("META-INF/com/google/android/updater-script", script);
+        fixture.add("system.img", payload);
+        return fixture.finish();
+    }
+
+    @Test
+    public void acceptsStoredEntries() throws IOException {
+        assertEquals(ZipVerifier.RESULT_UNSIGNED, verify(twoEntries(false)));
+    }
+
+    @Test
+    public void acceptsWhatZipOutputStreamWrites() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("META-INF/com/google/android/updater-script"));
+        zip.write(script);
+        zip.putNextEntry(new ZipEntry("system/build.prop"));
+        for (int q = 0; q < 1000; q++) {
+            zip.write(("otaupdater.line" + q + "=" + q + "\n").getBytes());
+        }
+        zip.putNextEntry(new ZipEntry("system.img"));
+        zip.write(payload);
+        zip.close();
+        assertEquals(ZipVerifier.RESULT_UNSIGNED, verify(bytes.toByteArray()));
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        byte[] zip = twoEntries(false);
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(Arrays.copyOf(zip, zip.length - 10)));
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(Arrays.copyOf(zip, zip.length / 2)));
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(new byte[10]));
+    }
+
+    @Test
+    public void rejectsMissingBytesBeforeTheCentralDirectory() throws IOException {
+        byte[] zip = twoEntries(false);
+        byte[] cut = new byte[zip.length - 100];
+        System.arraycopy(zip, 0, cut, 0, 1000);
+        System.arraycopy(zip, 1100, cut, 1000, cut.length - 1000);
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(cut));
+    }
+
+    @Test
+    public void rejectsOverlappingEntries() throws IOException {
+        Fixture fixture = new Fixture(false);
+        long offset = fixture.add("system.img", payload);
+        fixture.addCentral("system.img", payload, offset);
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(fixture.finish()));
+    }
+
+    @Test
+    public void rejectsBadCrc() throws IOException {
+        byte[] zip = twoEntries(false);
+        // one bit of the payload, well past its local header
+        zip[script.length + 200] ^= 1;
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(zip));
+    }
+
+    @Test
+    public void rejectsBadCrcInDeflatedEntry() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("system/build.prop"));
+        zip.write(script);
+        zip.close();
+        byte[] data = bytes.toByteArray();
+
+        // the CRC the central directory records, which is the one checked
+        int cd = data.length - 22 - 46 - "system/build.prop".length();
+        data[cd + 16] ^= 1;
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(data));
+    }
+
+    @Test
+    public void acceptsZip64() throws IOException {
+        assertEquals(ZipVerifier.RESULT_UNSIGNED, verify(twoEntries(true)));
+    }
+
+    @Test
+    public void rejectsZip64WithBadLocator() throws IOException {
+        byte[] zip = twoEntries(true);
+        // the locator sits right before the 22 byte EOCD
+        zip[zip.length - 22 - 20] ^= 1;
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(zip));
+    }
+
+    @Test
+    public void rejectsZip64RecordPointingPastTheLocator() throws IOException {
+        byte[] zip = twoEntries(true);
+        int locator = zip.length - 22 - 20;
+        putLong(zip, locator + 8, locator);
+        assertEquals(ZipVerifier.RESULT_CORRUPT, verify(zip));
+    }
+
+    @Test
+    public void acceptsFooterSignature() throws Exception {
+        // nothing on the build machine is in otacerts
+        assertEquals(ZipVerifier.RESULT_UNTRUSTED, verify(sign(twoEntries(false))));
+    }
+
+    @Test
+    public void acceptsFooterSignatureOnZip64() throws Exception {
+        assertEquals(ZipVerifier.RESULT_UNTRUSTED, verify(sign(twoEntries(true))));
+    }
+
+    @Test
+    public void rejectsChangeOutsideTheCrcs() throws Exception {
+        byte[] zip = sign(twoEntries(false));
+        // the first local header's modification time
+        zip[10] ^= 1;
+        assertEquals(ZipVerifier.RESULT_BAD_SIGNATURE, verify(zip));
+    }
+
+    @Test
+    public void rejectsFooterPointingOutsideTheComment() throws Exception {
+        byte[] zip = sign(twoEntries(false));
+        int commentLength = (zip[zip.length - 2] & 0xff) | ((zip[zip.length - 1] & 0xff) << 8);
+        putShort(zip, zip.length - 6, commentLength + 1);
+        assertEquals(ZipVerifier.RESULT_BAD_SIGNATURE, verify(zip));
+    }
+
+    @Test
+    public void cancelsWhenListenerSaysSo() throws IOException {
+        File file = write(twoEntries(false));
+        int result = ZipVerifier.verify(file, new ZipVerifier.ProgressListener() {
+            @Override
+            public boolean onProgress(long read, long total) {
+                return false;
+            }
+        });
+        assertEquals(ZipVerifier.RESULT_ERROR, result);
+    }
+
+    /**
+     * Signs zip (which must have no comment) the way signapk -w does: a
+     * PKCS#7 signature over everything up to the comment length, stored in
+     * the comment and found through the 6 byte footer at the very end.
+     */
+    private static byte[] sign(byte[] zip) throws Exception {
+        int signedLength = zip.length - 2;
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(signingKey);
+        signer.update(zip, 0, signedLength);
+
+        byte[] algorithm = der(0x30, der(0x06, OID_SHA256), der(0x05));
+        byte[] signerInfo = der(0x30,
+                der(0x02, new byte[] { 1 }),
+                der(0x30, signingCert.getIssuerX500Principal().getEncoded(),
+                        der(0x02, signingCert.getSerialNumber().toByteArray())),
+                algorithm,
+                der(0x30, der(0x06, OID_RSA), der(0x05)),
+                der(0x04, signer.sign()));
+        byte[] signedData = der(0x30,
+                der(0x02, new byte[] { 1 }),
+                der(0x31, algorithm),
+                der(0x30, der(0x06, OID_DATA)),
+                der(0xa0, signingCert.getEncoded()),
+                der(0x31, signerInfo));
+        byte[] block = der(0x30, der(0x06, OID_SIGNED_DATA), der(0xa0, signedData));
+
+        int commentLength = block.length + 6;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(zip, 0, signedLength);
+        writeShort(out, commentLength);
+        out.write(block);
+        writeShort(out, commentLength);
+        writeShort(out, 0xffff);
+        writeShort(out, commentLength);
+        return out.toByteArray();
+    }
+
+    private static byte[] der(int tag, byte[]... parts) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            content.write(part);
+        }
+        int length = content.size();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            byte[] bytes = BigInteger.valueOf(length).toByteArray();
+            int start = bytes[0] == 0 ? 1 : 0;
+            out.write(0x80 | (bytes.length - start));
+            out.write(bytes, start, bytes.length - start);
+        }
+        content.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) value & 0xffff);
+        writeShort(out, (int) (value >>> 16) & 0xffff);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, value & 0xffffffffL);
+        writeInt(out, value >>> 32);
+    }
+
+    private static void putShort(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putLong(byte[] b, int off, long value) {
+        for (int q = 0; q < 8; q++) {
+            b[off + q] = (byte) (value >>> (8 * q));
+        }
+    }
+
+    /**
+     * Lays out a zip of stored entries byte by byte, so a test can write
+     * central directory entries that disagree with the data and use the
+     * zip64 records even for a small file.
+     */
+    private static class Fixture {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream cd = new ByteArrayOutputStream();
+        private final boolean zip64;
+        private int count = 0;
+
+        Fixture(boolean zip64) {
+            this.zip64 = zip64;
+        }
+
+        /**
+         * Writes the entry and its central directory record, returning the
+         * offset of its local header.
+         */
+        long add(String name, byte[] data) {
+            long offset = out.size();
+            byte[] nameBytes = name.getBytes();
+            writeInt(out, 0x04034b50);
+            writeShort(out, 10);
+            writeShort(out, 0);
+            writeShort(out, ZipEntry.STORED);
+            writeInt(out, 0);
+            writeInt(out, crc(data));
+            writeInt(out, data.length);
+            writeInt(out, data.length);
+            writeShort(out, nameBytes.length);
+            writeShort(out, 0);
+            out.write(nameBytes, 0, nameBytes.length);
+            out.write(data, 0, data.length);
+            addCentral(name, data, offset);
+            return offset;
+        }
+
+        void addCentral(String name, byte[] data, long offset) {
+            byte[] nameBytes = name.getBytes();
+            writeInt(cd, 0x02014b50);
+            writeShort(cd, zip64 ? 45 : 10);
+            writeShort(cd, zip64 ? 45 : 10);
+            writeShort(cd, 0);
+            writeShort(cd, ZipEntry.STORED);
+            writeInt(cd, 0);
+            writeInt(cd, crc(data));
+            writeInt(cd, data.length);
+            writeInt(cd, data.length);
+            writeShort(cd, nameBytes.length);
+            writeShort(cd, zip64 ? 12 : 0);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeShort(cd, 0);
+            writeInt(cd, 0);
+            writeInt(cd, zip64 ? 0xffffffffL : offset);
+            cd.write(nameBytes, 0, nameBytes.length);
+            if (zip64) {
+                writeShort(cd, 0x0001);
+                writeShort(cd, 8);
+                writeLong(cd, offset);
+            }
+            count++;
+        }
+
+        /**
+         * Appends the central directory and end records, with no comment.
+         */
+        byte[] finish() {
+            long cdOffset = out.size();
+            long cdSize = cd.size();
+            out.write(cd.toByteArray(), 0, cd.size());
+            if (zip64) {
+                long recordOffset = out.size();
+                writeInt(out, 0x06064b50);
+                writeLong(out, 44);
+                writeShort(out, 45);
+                writeShort(out, 45);
+                writeInt(out, 0);
+                writeInt(out, 0);
+                writeLong(out, count);
+                writeLong(out, count);
+                writeLong(out, cdSize);
+                writeLong(out, cdOffset);
+
+                writeInt(out, 0x07064b50);
+                writeInt(out, 0);
+                writeLong(out, recordOffset);
+                writeInt(out, 1);
+            }
+            writeInt(out, 0x06054b50);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, zip64 ? 0xffff : count);
+            writeShort(out, zip64 ? 0xffff : count);
+            writeInt(out, zip64 ? 0xffffffffL : cdSize);
+            writeInt(out, zip64 ? 0xffffffffL : cdOffset);
+            writeShort(out, 0);
+            return out.toByteArray();
+        }
+
+        private static long crc(byte[] data) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return crc.getValue();
+        }
+    }
+}
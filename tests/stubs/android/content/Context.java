@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.content;
+
+import java.io.File;
+
+import android.content.pm.PackageManager;
+
+/**
+ * Plain JVM stand-in. Nothing is implemented; tests subclass it and override
+ * what the code under test uses.
+ */
+public abstract class Context {
+    public static final String CONNECTIVITY_SERVICE = "connectivity";
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        throw new UnsupportedOperationException();
+    }
+
+    public PackageManager getPackageManager() {
+        throw new UnsupportedOperationException();
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object getSystemService(String name) {
+        throw new UnsupportedOperationException();
+    }
+
+    public File getFilesDir() {
+        throw new UnsupportedOperationException();
+    }
+
+    public File getCacheDir() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Plain JVM stand-in. There is no database on the JVM; nothing here is
+ * implemented.
+ */
+public final class SQLiteDatabase {
+    public static interface CursorFactory {
+    }
+
+    private SQLiteDatabase() {
+    }
+
+    public void execSQL(String sql) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs,
+            String groupBy, String having, String orderBy) {
+        throw new UnsupportedOperationException();
+    }
+
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void beginTransaction() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void setTransactionSuccessful() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void endTransaction() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.os;
+
+import java.io.File;
+
+/**
+ * Plain JVM stand-in: 4 KB blocks, free space from java.io.File.
+ */
+public class StatFs {
+    private static final int BLOCK_SIZE = 4096;
+
+    private final File path;
+
+    public StatFs(String path) {
+        this.path = new File(path);
+    }
+
+    public int getBlockSize() {
+        return BLOCK_SIZE;
+    }
+
+    public int getBlockCount() {
+        return (int) Math.min(path.getTotalSpace() / BLOCK_SIZE, Integer.MAX_VALUE);
+    }
+
+    public int getAvailableBlocks() {
+        return (int) Math.min(path.getUsableSpace() / BLOCK_SIZE, Integer.MAX_VALUE);
+    }
+}
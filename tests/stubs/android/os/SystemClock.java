@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013-2014 Dokdo Project - neighbors28
+ * Copyright (C) 2012 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * You may only use this file in compliance with the license and provided you are not associated with or are in co-operation anyone by the name 'X Vanderpoel'.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.os;
+
+/**
+ * Plain JVM stand-in backed by System.nanoTime(), which tests can stop at a
+ * time of their choosing.
+ */
+public final class SystemClock {
+    private static volatile long frozen = -1;
+
+    private SystemClock() {
+    }
+
+    /**
+     * Not in the real class: pins both clocks at millis, or lets them run
+     * again for -1.
+     */
+    public static void setFrozenTime(long millis) {
+        frozen = millis;
+    }
+
+    public static long elapsedRealtime() {
+        long now = frozen;
+        return now >= 0 ? now : System.nanoTime() / 1000000;
+    }
+
+    public static long uptimeMillis() {
+        return elapsedRealtime();
+    }
+}